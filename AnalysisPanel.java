@@ -22,10 +22,12 @@ import java.awt.Color;
 public class AnalysisPanel extends JPanel {
   
   private HospitalRecords HR; 
+  private HospitalVersion shownVersion; //version the results on display were found in, null if none
   private JComboBox dropDown;
   private JLabel resultLabel, errorLabel;
   private JPanel resultPanel;
   private JTextField ageL, ageH, disorderName;
+  private JComboBox genderChoice;
   private Color lighterBlue, darkerBlue, darkestBlue;
   
   
@@ -68,7 +70,7 @@ public class AnalysisPanel extends JPanel {
     add(explanationPanel);
     
     //contains the menu options to be shown to the user
-    String[] menuOptions= {"Please select form of analysis", "Patients with disorder X", "Patients of age (..,..)", "Female patients", "Male patients"};
+    String[] menuOptions= {"Please select form of analysis", "Patients with disorder X", "Patients of age (..,..)", "Female patients", "Male patients", "Patients matching several conditions"};
     
     //initializes the menu, adds to panel and adds action listener
     dropDown = new JComboBox (menuOptions);
@@ -82,6 +84,41 @@ public class AnalysisPanel extends JPanel {
     
   }
   
+  /** *****************************************************************************
+    * Returns a scroll panel with the results of the query, run on a version of the
+    * hospital pinned for as long as the results are shown. Scrolling through them
+    * then always shows the patients as they were found, while intake goes on. The
+    * version of the results shown before is let go.
+    * 
+    * @params query
+    **************************************************************************** **/
+  private BasicScrollPanel resultsOf(PatientQuery query) {
+    releaseShownVersion();
+    shownVersion = HR.pinVersion();
+    return new BasicScrollPanel(shownVersion, query);
+  }
+  
+  /** *****************************************************************************
+    * Lets go of the version of the results on display, once they are taken off the
+    * panel, so that the hospital stops keeping old copies of the rows changed since
+    **************************************************************************** **/
+  private void releaseShownVersion() {
+    if (shownVersion != null) {
+      shownVersion.close();
+      shownVersion = null;
+    }
+  }
+  
+  /** *****************************************************************************
+    * Takes the results off the panel when it is taken out of the frame, or the frame
+    * is closed, so that their version is not pinned forever
+    **************************************************************************** **/
+  public void removeNotify() {
+    resultPanel.removeAll();
+    releaseShownVersion();
+    super.removeNotify();
+  }
+  
    /** *****************************************************************************
     * A AnalysisListener class detects which menu option was selected, and shows the
     * appropriate panel depending on the selection.
@@ -98,10 +135,11 @@ public class AnalysisPanel extends JPanel {
       **************************************************************************** **/
     public void actionPerformed (ActionEvent event) {
       
-      //clears the result panel from any previous results
+      //clears the result panel from any previous results, and lets go of their version
       resultPanel.removeAll();
       resultPanel.revalidate(); 
       resultPanel.repaint(); 
+      releaseShownVersion();
       
       int selected = dropDown.getSelectedIndex();
       
@@ -163,12 +201,56 @@ public class AnalysisPanel extends JPanel {
         } else if (selected == 3) {
           System.out.println("Search for female patients");
           
-          resultPanel.add(new BasicScrollPanel(HR,HR.getPatientsOfGender("female")));
+          resultPanel.add(resultsOf(new PatientQuery().withGender("female")));
           
         } else if (selected == 4) {
           System.out.println("Search for male patients");
           
-          resultPanel.add(new BasicScrollPanel(HR,HR.getPatientsOfGender("male")));
+          resultPanel.add(resultsOf(new PatientQuery().withGender("male")));
+          
+        } else if (selected == 5) {
+          System.out.println("Search for patients matching several conditions");
+          
+          JPanel combinedPanel = new JPanel();
+          combinedPanel.setBackground(lighterBlue);
+          combinedPanel.setLayout(new BoxLayout (combinedPanel,BoxLayout.Y_AXIS));
+          
+          JLabel label  = new JLabel ("Fill in the conditions to combine, empty fields are ignored.");
+          label.setForeground(darkestBlue);
+          errorLabel  = new JLabel ("              ");
+          JLabel disorder  = new JLabel ("Disorder:");
+          disorder.setForeground(darkerBlue);
+          JLabel lower  = new JLabel ("Lower age bound:");
+          lower.setForeground(darkerBlue);
+          JLabel higher  = new JLabel ("Higher age bound:");
+          higher.setForeground(darkerBlue);
+          JLabel gender  = new JLabel ("Gender:");
+          gender.setForeground(darkerBlue);
+          
+          disorderName = new JTextField(4);
+          ageL = new JTextField(4);
+          ageH = new JTextField(4);
+          String[] genderOptions = {"Any", "female", "male"};
+          genderChoice = new JComboBox (genderOptions);
+          
+          JButton search = new JButton("Search");
+          
+          search.addActionListener(new CombinedListener());
+          
+          //add the labels, text fields and gender menu into the panel
+          combinedPanel.add(label);
+          combinedPanel.add(errorLabel);
+          combinedPanel.add(disorder);
+          combinedPanel.add(disorderName);
+          combinedPanel.add(lower);
+          combinedPanel.add(ageL);
+          combinedPanel.add(higher);
+          combinedPanel.add(ageH);
+          combinedPanel.add(gender);
+          combinedPanel.add(genderChoice);
+          combinedPanel.add(search);
+          
+          resultPanel.add(combinedPanel);
         }
         
       } else {
@@ -200,7 +282,54 @@ public class AnalysisPanel extends JPanel {
           resultPanel.revalidate(); 
           resultPanel.repaint(); 
           
-          resultPanel.add(new BasicScrollPanel(HR,HR.getPatientsOfAge(age1, age2)));
+          resultPanel.add(resultsOf(new PatientQuery().withAgeRange(age1, age2)));
+          
+        } catch (NumberFormatException e){
+          
+          errorLabel.setText("Please enter integers to the age fields.");
+          errorLabel.setForeground(darkerBlue);
+          System.out.println("Please enter a valid number");
+          
+          resultPanel.revalidate(); 
+        }
+      } 
+    }
+    
+    /** *****************************************************************************
+    * A CombinedListener builds a query out of the filled in conditions and updates the
+    * result panel with the patients matching all of them
+    * @author Meltem Ozcan
+    *************************************************************************** **/
+    private class CombinedListener implements ActionListener {
+       /** *****************************************************************************
+      * Builds the query and shows its results
+      * @params event
+      **************************************************************************** **/
+      public void actionPerformed (ActionEvent event){
+        
+        try {
+          
+          PatientQuery query = new PatientQuery();
+          
+          if (!disorderName.getText().isEmpty())
+            query.withDisorder(disorderName.getText());
+          
+          //an age range is only used if at least one of its bounds is given
+          if (!ageL.getText().isEmpty() || !ageH.getText().isEmpty()) {
+            int age1 =  ageL.getText().isEmpty()?0:Integer.parseInt(ageL.getText());
+            int age2 =  ageH.getText().isEmpty()?Integer.MAX_VALUE:Integer.parseInt(ageH.getText());
+            query.withAgeRange(age1, age2);
+          }
+          
+          if (genderChoice.getSelectedIndex() > 0)
+            query.withGender((String) genderChoice.getSelectedItem());
+          
+          //clears the previous labels and text fields 
+          resultPanel.removeAll();
+          resultPanel.revalidate(); 
+          resultPanel.repaint(); 
+          
+          resultPanel.add(resultsOf(query));
           
         } catch (NumberFormatException e){
           
@@ -231,7 +360,7 @@ public class AnalysisPanel extends JPanel {
         resultPanel.revalidate(); 
         resultPanel.repaint(); 
         
-        resultPanel.add(new BasicScrollPanel(HR,HR.getPatientsWithDisorder(disorderName.getText())));
+        resultPanel.add(resultsOf(new PatientQuery().withDisorder(disorderName.getText())));
         
       }
     }
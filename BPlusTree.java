@@ -0,0 +1,503 @@
+/* FILENAME: BPlusTree.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: A sorted map from int keys to small byte arrays kept in the pages of a
+ * file, used to keep patients on disk by patient number.
+ *
+ * */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/** *****************************************************************************
+  * A BPlusTree keeps its entries in the pages of a BufferPool, which can hold
+  * several trees. The meta page of a tree holds the number of its root page and the
+  * number of entries. Every other page of the tree is a node:
+  *
+  *   inner node: type, number of keys, first child, then (key, child) pairs, where
+  *               the key is the smallest key found under the child after it
+  *   leaf:       type, number of entries, next leaf, then (key, value length,
+  *               value) entries sorted by key
+  *
+  * Lookups and changes work on the pages in place, a node is only decoded when it
+  * is full and has to be split. A full node is split in two and the split moves up
+  * to its parent. Patient numbers are mostly given out in increasing order, so a
+  * node that overflows at its end keeps all its old entries and starts a new node
+  * with the new one, which leaves the tree nearly full instead of half full.
+  * Removing entries does not merge nodes.
+  *
+  * The tree is not safe for use by several threads, its user has to lock around it.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class BPlusTree {
+
+  //identifies the meta page of a tree, "BPTR"
+  private static final int MAGIC = 0x42505452;
+
+  //node types
+  private static final byte INNER = 1;
+  private static final byte LEAF = 2;
+
+  //type, count and first child or next leaf
+  private static final int HEADER_SIZE = 7;
+
+  //keys an inner node can hold
+  private static final int MAX_KEYS = (BufferPool.PAGE_SIZE - HEADER_SIZE) / 8;
+
+  //largest value, so that a leaf can always be split into two that fit
+  public static final int MAX_VALUE_SIZE = (BufferPool.PAGE_SIZE - HEADER_SIZE) / 2 - 6;
+
+  //instance variables
+  private final BufferPool pool;
+  private final int metaPage;
+  private int root;
+  private int size;
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Starts an empty tree in new pages at the end of the pool's file
+    * @params bufferPool
+    **************************************************************************** **/
+  public BPlusTree(BufferPool bufferPool) throws IOException {
+    pool = bufferPool;
+    metaPage = pool.allocatePage();
+    root = pool.allocatePage();
+    ByteBuffer leaf = pool.getPage(root);
+    leaf.put(0, LEAF);
+    leaf.putShort(1, (short) 0);
+    leaf.putInt(3, -1);
+    pool.markDirty(root);
+    writeMeta();
+  }
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Opens the tree whose meta page is the given page of the pool's file
+    * @params bufferPool
+    * @params treeMetaPage
+    **************************************************************************** **/
+  public BPlusTree(BufferPool bufferPool, int treeMetaPage) throws IOException {
+    pool = bufferPool;
+    metaPage = treeMetaPage;
+    ByteBuffer meta = pool.getPage(metaPage);
+    if (meta.getInt(0) != MAGIC)
+      throw new IOException("No B+ tree at page " + metaPage);
+    root = meta.getInt(4);
+    size = meta.getInt(8);
+  }
+
+  /** *****************************************************************************
+    * Returns the value kept under the key, or null if there is none
+    * @params key
+    **************************************************************************** **/
+  public byte[] get(int key) throws IOException {
+    ByteBuffer leaf = pool.getPage(findLeaf(key, null));
+    int count = leaf.getShort(1);
+    int position = HEADER_SIZE;
+    for (int i = 0; i < count; i++) {
+      int entryKey = leaf.getInt(position);
+      int length = leaf.getShort(position + 4);
+      if (entryKey == key) {
+        byte[] value = new byte[length];
+        leaf.position(position + 6);
+        leaf.get(value);
+        return value;
+      }
+      if (entryKey > key)
+        return null;
+      position += 6 + length;
+    }
+    return null;
+  }
+
+  /** *****************************************************************************
+    * Keeps the value under the key, replacing any value kept there before
+    * @params key
+    * @params value
+    **************************************************************************** **/
+  public void put(int key, byte[] value) throws IOException {
+    if (value.length > MAX_VALUE_SIZE)
+      throw new IllegalArgumentException("Values are limited to " + MAX_VALUE_SIZE + " bytes: " + value.length);
+
+    int[] path = new int[32];
+    int leafPage = findLeaf(key, path);
+    if (putInPlace(leafPage, key, value))
+      return;
+
+    Leaf leaf = readLeaf(leafPage);
+
+    int i = leaf.search(key);
+    boolean appended = false;
+    if (i >= 0) {
+      leaf.values.set(i, value);
+    } else {
+      i = -i - 1;
+      appended = (i == leaf.keys.size() && leaf.next < 0);
+      leaf.keys.add(i, key);
+      leaf.values.add(i, value);
+      size++;
+    }
+
+    if (leaf.bytes() <= BufferPool.PAGE_SIZE) {
+      writeLeaf(leafPage, leaf);
+    } else {
+      //splits the leaf and enters the first key of the new right leaf in the parent
+      int split = appended ? leaf.keys.size() - 1 : leaf.balancedSplit();
+      Leaf right = leaf.splitOff(split);
+      int rightPage = pool.allocatePage();
+      right.next = leaf.next;
+      leaf.next = rightPage;
+      writeLeaf(rightPage, right);
+      writeLeaf(leafPage, leaf);
+      insertIntoParent(path, right.keys.get(0), rightPage, appended);
+    }
+    writeMeta();
+  }
+
+  /** *****************************************************************************
+    * Removes the key and its value, returns false if the key was not in the tree
+    * @params key
+    **************************************************************************** **/
+  public boolean remove(int key) throws IOException {
+    int leafPage = findLeaf(key, null);
+    ByteBuffer leaf = pool.getPage(leafPage);
+    int count = leaf.getShort(1);
+    int end = leafEnd(leaf);
+    int position = entryPosition(leaf, key);
+    if (position == end || leaf.getInt(position) != key)
+      return false;
+
+    //closes the gap left by the entry
+    int entrySize = 6 + leaf.getShort(position + 4);
+    System.arraycopy(leaf.array(), position + entrySize, leaf.array(), position, end - position - entrySize);
+    leaf.putShort(1, (short) (count - 1));
+    pool.markDirty(leafPage);
+    size--;
+    writeMeta();
+    return true;
+  }
+
+  /** *****************************************************************************
+    * Returns the number of keys in the tree
+    **************************************************************************** **/
+  public int size() {
+    return size;
+  }
+
+  /** *****************************************************************************
+    * Returns the page the tree is opened from
+    **************************************************************************** **/
+  public int getMetaPage() {
+    return metaPage;
+  }
+
+
+  //helper methods
+
+  /** *****************************************************************************
+    * Puts the entry into the leaf by moving the entries after it, if the leaf has
+    * room for it. Returns false, without changing anything, if the leaf has to be
+    * split.
+    * @params leafPage
+    * @params key
+    * @params value
+    **************************************************************************** **/
+  private boolean putInPlace(int leafPage, int key, byte[] value) throws IOException {
+    ByteBuffer leaf = pool.getPage(leafPage);
+    byte[] page = leaf.array();
+    int end = leafEnd(leaf);
+    int position = entryPosition(leaf, key);
+    boolean replace = (position < end && leaf.getInt(position) == key);
+    int oldSize = replace ? 6 + leaf.getShort(position + 4) : 0;
+    int newSize = 6 + value.length;
+    if (end - oldSize + newSize > BufferPool.PAGE_SIZE)
+      return false;
+
+    System.arraycopy(page, position + oldSize, page, position + newSize, end - position - oldSize);
+    leaf.putInt(position, key);
+    leaf.putShort(position + 4, (short) value.length);
+    System.arraycopy(value, 0, page, position + 6, value.length);
+    if (!replace) {
+      leaf.putShort(1, (short) (leaf.getShort(1) + 1));
+      size++;
+    }
+    pool.markDirty(leafPage);
+    if (!replace)
+      writeMeta();
+    return true;
+  }
+
+  /** *****************************************************************************
+    * Returns the position of the first entry of the leaf with a key not smaller than
+    * the given one, or the end of the entries
+    * @params leaf
+    * @params key
+    **************************************************************************** **/
+  private static int entryPosition(ByteBuffer leaf, int key) {
+    int count = leaf.getShort(1);
+    int position = HEADER_SIZE;
+    for (int i = 0; i < count && leaf.getInt(position) < key; i++)
+      position += 6 + leaf.getShort(position + 4);
+    return position;
+  }
+
+  private static int leafEnd(ByteBuffer leaf) {
+    int count = leaf.getShort(1);
+    int position = HEADER_SIZE;
+    for (int i = 0; i < count; i++)
+      position += 6 + leaf.getShort(position + 4);
+    return position;
+  }
+
+  /** *****************************************************************************
+    * Returns the leaf that holds or would hold the key. If path is given, the pages
+    * from the root down to the leaf's parent are put in it, followed by -1.
+    * @params key
+    * @params path
+    **************************************************************************** **/
+  private int findLeaf(int key, int[] path) throws IOException {
+    int page = root;
+    int depth = 0;
+    ByteBuffer node = pool.getPage(page);
+    while (node.get(0) == INNER) {
+      if (path != null)
+        path[depth++] = page;
+
+      //binary search for the last key not greater than the key
+      int low = 0;
+      int high = node.getShort(1) - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        if (node.getInt(HEADER_SIZE + 8 * middle) <= key)
+          low = middle + 1;
+        else
+          high = middle - 1;
+      }
+      page = (low == 0) ? node.getInt(3) : node.getInt(HEADER_SIZE + 8 * (low - 1) + 4);
+      node = pool.getPage(page);
+    }
+    if (path != null)
+      path[depth] = -1;
+    return page;
+  }
+
+  /** *****************************************************************************
+    * Enters a new child, split off from the child on the path, into the parent at the
+    * end of the path, splitting the parents that overflow up to the root
+    * @params path
+    * @params key
+    * @params child
+    * @params appended
+    **************************************************************************** **/
+  private void insertIntoParent(int[] path, int key, int child, boolean appended) throws IOException {
+    int depth = 0;
+    while (path[depth] >= 0)
+      depth++;
+
+    for (depth--; depth >= 0; depth--) {
+      int page = path[depth];
+      ByteBuffer node = pool.getPage(page);
+      int count = node.getShort(1);
+      int[] keys = new int[count + 1];
+      int[] children = new int[count + 2];
+      children[0] = node.getInt(3);
+      for (int i = 0; i < count; i++) {
+        keys[i] = node.getInt(HEADER_SIZE + 8 * i);
+        children[i + 1] = node.getInt(HEADER_SIZE + 8 * i + 4);
+      }
+
+      //the new child goes right after the keys not greater than its first key
+      int at = 0;
+      while (at < count && keys[at] <= key)
+        at++;
+      System.arraycopy(keys, at, keys, at + 1, count - at);
+      System.arraycopy(children, at + 1, children, at + 2, count - at);
+      keys[at] = key;
+      children[at + 1] = child;
+      count++;
+
+      if (count <= MAX_KEYS) {
+        writeInner(page, keys, children, 0, count);
+        return;
+      }
+
+      //the middle key moves up, or the last one when the node grew at its end
+      int middle = (appended && at == count - 1) ? count - 1 : count / 2;
+      int rightPage = pool.allocatePage();
+      writeInner(rightPage, keys, children, middle + 1, count - middle - 1);
+      writeInner(page, keys, children, 0, middle);
+      key = keys[middle];
+      child = rightPage;
+    }
+
+    //the root was split, a new root holds the two halves
+    int oldRoot = root;
+    root = pool.allocatePage();
+    writeInner(root, new int[] {key}, new int[] {oldRoot, child}, 0, 1);
+  }
+
+  /** *****************************************************************************
+    * Writes count keys starting at the given one, with the children around them,
+    * into an inner node
+    * @params page
+    * @params keys
+    * @params children
+    * @params first
+    * @params count
+    **************************************************************************** **/
+  private void writeInner(int page, int[] keys, int[] children, int first, int count) throws IOException {
+    ByteBuffer node = pool.getPage(page);
+    node.put(0, INNER);
+    node.putShort(1, (short) count);
+    node.putInt(3, children[first]);
+    for (int i = 0; i < count; i++) {
+      node.putInt(HEADER_SIZE + 8 * i, keys[first + i]);
+      node.putInt(HEADER_SIZE + 8 * i + 4, children[first + i + 1]);
+    }
+    pool.markDirty(page);
+  }
+
+  private Leaf readLeaf(int page) throws IOException {
+    ByteBuffer node = pool.getPage(page);
+    Leaf leaf = new Leaf();
+    int count = node.getShort(1);
+    leaf.next = node.getInt(3);
+    node.position(HEADER_SIZE);
+    for (int i = 0; i < count; i++) {
+      leaf.keys.add(node.getInt());
+      byte[] value = new byte[node.getShort()];
+      node.get(value);
+      leaf.values.add(value);
+    }
+    return leaf;
+  }
+
+  private void writeLeaf(int page, Leaf leaf) throws IOException {
+    ByteBuffer node = pool.getPage(page);
+    node.put(LEAF);
+    node.putShort((short) leaf.keys.size());
+    node.putInt(leaf.next);
+    for (int i = 0; i < leaf.keys.size(); i++) {
+      byte[] value = leaf.values.get(i);
+      node.putInt(leaf.keys.get(i));
+      node.putShort((short) value.length);
+      node.put(value);
+    }
+    pool.markDirty(page);
+  }
+
+  private void writeMeta() throws IOException {
+    ByteBuffer meta = pool.getPage(metaPage);
+    meta.putInt(0, MAGIC);
+    meta.putInt(4, root);
+    meta.putInt(8, size);
+    pool.markDirty(metaPage);
+  }
+
+  /** *****************************************************************************
+    * The decoded entries of a leaf that is being changed
+    *************************************************************************** **/
+  private static class Leaf {
+    final ArrayList<Integer> keys = new ArrayList<Integer>();
+    final ArrayList<byte[]> values = new ArrayList<byte[]>();
+    int next;
+
+    /** Returns the index of the key, or -(insertion point) - 1 if it is not there */
+    int search(int key) {
+      return Collections.binarySearch(keys, key);
+    }
+
+    int bytes() {
+      int total = HEADER_SIZE;
+      for (byte[] value : values)
+        total += 6 + value.length;
+      return total;
+    }
+
+    /** Returns the index the right half should start at to make both halves as even as possible */
+    int balancedSplit() {
+      int total = bytes() - HEADER_SIZE;
+      int left = 0;
+      int best = 1;
+      int bestLarger = Integer.MAX_VALUE;
+      for (int i = 1; i < keys.size(); i++) {
+        left += 6 + values.get(i - 1).length;
+        int larger = Math.max(left, total - left);
+        if (larger < bestLarger) {
+          bestLarger = larger;
+          best = i;
+        }
+      }
+      return best;
+    }
+
+    /** Moves the entries from the given index on into a new leaf */
+    Leaf splitOff(int from) {
+      Leaf right = new Leaf();
+      right.keys.addAll(keys.subList(from, keys.size()));
+      right.values.addAll(values.subList(from, values.size()));
+      keys.subList(from, keys.size()).clear();
+      values.subList(from, values.size()).clear();
+      return right;
+    }
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) throws Exception {
+    File file = File.createTempFile("btree", ".dat");
+    try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file.toPath(),
+           java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE)) {
+      BufferPool pool = new BufferPool(channel, 16);
+      BPlusTree tree = new BPlusTree(pool);
+      TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+      Random random = new Random(8);
+
+      //increasing keys, as patient numbers are given out, mixed with random ones
+      for (int i = 0; i < 300000; i++) {
+        int key = (i % 4 == 0) ? random.nextInt(1000000) : 1000000 + i;
+        String value = "value " + key + " " + random.nextInt(1 << 20) + ((i % 1000 == 0) ? new String(new char[2000]) : "");
+        if (i % 5 == 0 && !expected.isEmpty()) {
+          Integer old = expected.ceilingKey(random.nextInt(1000000 + i));
+          if (old != null) {
+            expected.remove(old);
+            tree.remove(old);
+          }
+        }
+        expected.put(key, value);
+        tree.put(key, value.getBytes("UTF-8"));
+      }
+
+      int mismatches = 0;
+      for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+        byte[] value = tree.get(entry.getKey());
+        if (value == null || !new String(value, "UTF-8").equals(entry.getValue()))
+          mismatches++;
+      }
+      for (int i = 0; i < 10000; i++) {
+        int key = random.nextInt(1400000);
+        if (!expected.containsKey(key) && tree.get(key) != null)
+          mismatches++;
+      }
+      System.out.println("Size (" + expected.size() + "): " + tree.size());
+      System.out.println("Mismatches against a TreeMap (0): " + mismatches);
+      System.out.println("Pages for " + expected.size() + " entries with 16 pages in memory: " + pool.getPageCount()
+                           + ", hit rate " + Math.round(pool.getHitRate() * 100) + "%");
+
+      //the tree can be opened again from the file
+      pool.flush();
+      BPlusTree reopened = new BPlusTree(new BufferPool(channel, 4), tree.getMetaPage());
+      System.out.println("Reopened size (" + expected.size() + "): " + reopened.size() + ", last key found: "
+                           + (reopened.get(expected.lastKey()) != null));
+    }
+    file.delete();
+  }
+
+}
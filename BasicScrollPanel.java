@@ -23,9 +23,8 @@ import java.awt.Color;
 public class BasicScrollPanel extends JPanel{
   
   //instance variables
-  private LinkedList PL;
   private HospitalRecords HR;
-  private String[] patientsArray = {};//will be used to create a JList
+  private ListModel<String> patientsModel;//will be used to create a JList
   private JList patientList;
   private Color lighterBlue, darkerBlue;
   
@@ -39,11 +38,38 @@ public class BasicScrollPanel extends JPanel{
     * @params patients
     **************************************************************************** **/
   public BasicScrollPanel(HospitalRecords hospital, LinkedList<Patient> patients) {
+    //calls on toStringArrayWithHtml() to achieve a wrapping format
+    this(hospital, listModelOf(hospital.toStringArrayWithHtml(patients)), "Results of search: ");
+  }
+  
+  /** *****************************************************************************
+    * Constructor
+    * 
+    * Takes in a hospital and a query, runs the query on the hospital and creates a
+    * panel displaying a JList of the matching patient files. Only the files scrolled
+    * into view are formatted.
+    * 
+    * @params hospital
+    * @params query
+    **************************************************************************** **/
+  public BasicScrollPanel(HospitalRecords hospital, PatientQuery query) {
+    this(hospital, new PatientListModel(hospital, query), "Results of search: " + query);
+  }
+  
+  /** *****************************************************************************
+    * Constructor
+    * 
+    * Takes in a hospital, the list model of the patient files and the title to show
+    * above them
+    * 
+    * @params hospital
+    * @params patients
+    * @params title
+    **************************************************************************** **/
+  private BasicScrollPanel(HospitalRecords hospital, ListModel<String> patients, String title) {
     
-    PL = patients; 
+    patientsModel = patients; 
     HR = hospital;
-    //calls on toStringArrayWithHtml() to achieve a wrapping format
-    patientsArray = HR.toStringArrayWithHtml(patients);
     
     //sets colors to be used in the frame
     Color lighterBlue = new Color(225, 240, 250);
@@ -56,16 +82,17 @@ public class BasicScrollPanel extends JPanel{
     JPanel titlePanel = new JPanel();
     
     //Creates and adds the title to the top
-    JLabel label = new JLabel("Results of search: ");
+    JLabel label = new JLabel(title);
     label.setForeground(darkerBlue);//sets font color
     titlePanel.add(label); //adds title to the panel
     titlePanel.setBackground(lighterBlue);
     //adds titlepanel to the frame
     panelForScroll.add(titlePanel, BorderLayout.NORTH);
     
-    patientList = new JList(patientsArray);//makes a JList using the information in the string array
+    patientList = new JList(patientsModel);//makes a JList using the information in the list model
     
-    //sets the height and width for each patient's information
+    //sets the height and width for each patient's information, which also keeps the
+    //JList from asking for every patient file to measure them
     patientList.setFixedCellHeight(170);
     patientList.setFixedCellWidth(400);
     
@@ -80,6 +107,17 @@ public class BasicScrollPanel extends JPanel{
     this.add(panelForScroll);
   }
 
+  /** *****************************************************************************
+    * Returns a list model holding the given patient files
+    * @params patientFiles
+    **************************************************************************** **/
+  private static ListModel<String> listModelOf(String[] patientFiles) {
+    DefaultListModel<String> model = new DefaultListModel<String>();
+    for (String file : patientFiles)
+      model.addElement(file);
+    return model;
+  }
+
   /** *****************************************************************************
     * Provides testing code
     * 
@@ -99,6 +137,7 @@ public class BasicScrollPanel extends JPanel{
                                  + "worthlessness,depressed mood during day,significant weight loss"));
     BMC.addPatient(new Patient("Mark Jones", 23, "male", "schizophrenia", "delusions,hallucinations,disorganized speech,negative symptoms"));
     
+    frame.getContentPane().add(new BasicScrollPanel(BMC, new PatientQuery().withGender("female")));
 
     frame.pack();
     frame.setVisible(true);
@@ -0,0 +1,249 @@
+/* FILENAME: BatchScreener.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Screens every patient of a hospital against the symptom criteria of the
+ * disorders at once, on all cores, instead of one patient at a time through the
+ * criteria panels.
+ *
+ * */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** *****************************************************************************
+  * A BatchScreener class checks the recorded symptoms of every patient in a hospital
+  * against the first criteria of each disorder it is given, the symptom count rule
+  * read by SymptomCriterion, and reports the patients that meet it as candidates
+  * for that diagnosis.
+  *
+  * The patients are split with fork/join: the rows of the hospital are halved until
+  * each piece is small enough, the pieces are screened on the threads of the pool
+  * and their candidates are joined back together. The rows are read when the
+  * screening starts, patients added later are not screened and patients removed
+  * while it runs are skipped. Screen a pinned HospitalVersion for a screening that
+  * sees no changes at all.
+  *
+  * A screener made for every core runs on the common fork/join pool. A screener
+  * made for a given number of threads has a pool of its own, which is shut down
+  * when the screener is closed.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class BatchScreener implements AutoCloseable {
+
+  //fewest rows a piece is split into, smaller pieces cost more to hand out than to screen
+  private static final int MIN_PIECE = 1024;
+  //pieces made per thread, so that threads finishing early can take some from the others
+  private static final int PIECES_PER_THREAD = 8;
+
+  //instance variables
+  private final SymptomCriterion[] criteria;
+  private final ForkJoinPool pool;
+  private final boolean ownPool; //the pool was made for this screener and is shut down with it
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Makes a screener for the given disorders that runs on the common pool, which
+    * uses every core
+    *
+    * @params disorders
+    **************************************************************************** **/
+  public BatchScreener(Collection<Disorder> disorders) {
+    this(disorders, ForkJoinPool.commonPool(), false);
+  }
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Makes a screener for the given disorders that uses a pool of the given number of
+    * threads, to be shut down by closing the screener
+    *
+    * @params disorders
+    * @params threads
+    **************************************************************************** **/
+  public BatchScreener(Collection<Disorder> disorders, int threads) {
+    this(disorders, new ForkJoinPool(threads), true);
+  }
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Makes a screener for the given disorders that runs on the given pool. Disorders
+    * whose first criteria does not count symptoms are left out.
+    *
+    * @params disorders
+    * @params screeningPool
+    * @params ownScreeningPool, whether the pool is shut down when the screener is closed
+    **************************************************************************** **/
+  private BatchScreener(Collection<Disorder> disorders, ForkJoinPool screeningPool, boolean ownScreeningPool) {
+    ArrayList<SymptomCriterion> found = new ArrayList<SymptomCriterion>();
+    for (Disorder d : disorders) {
+      SymptomCriterion criterion = SymptomCriterion.of(d);
+      if (criterion != null)
+        found.add(criterion);
+    }
+    criteria = found.toArray(new SymptomCriterion[found.size()]);
+    pool = screeningPool;
+    ownPool = ownScreeningPool;
+  }
+
+  /** *****************************************************************************
+    * Returns the symptom criteria screened for, one per disorder
+    **************************************************************************** **/
+  public LinkedList<SymptomCriterion> getCriteria() {
+    return new LinkedList<SymptomCriterion>(Arrays.asList(criteria));
+  }
+
+  /** *****************************************************************************
+    * Screens every patient of the hospital and returns the candidates of each disorder
+    * @params hospital
+    **************************************************************************** **/
+  public ScreeningReport screen(HospitalRecords hospital) {
+    long start = System.nanoTime();
+    RowSet record = hospital.hospitalRecord;
+    int[] rows = new int[record.size()];
+    int count = 0;
+    PrimitiveIterator.OfInt it = record.iterator();
+    while (it.hasNext())
+      rows[count++] = it.nextInt();
+
+    int piece = Math.max(MIN_PIECE, count / (pool.getParallelism() * PIECES_PER_THREAD));
+    RowSet[] found = pool.invoke(new ScreeningTask(hospital, rows, 0, count, piece));
+
+    LinkedHashMap<String, RowSet> candidates = new LinkedHashMap<String, RowSet>();
+    for (int k = 0; k < criteria.length; k++)
+      candidates.put(criteria[k].getDisorderName(), found[k]);
+    return new ScreeningReport(hospital, candidates, count, System.nanoTime() - start, pool.getParallelism());
+  }
+
+  /** *****************************************************************************
+    * Shuts down the threads of the screener's own pool, screenings already running
+    * are finished first. The common pool is left running.
+    **************************************************************************** **/
+  public void close() {
+    if (ownPool)
+      pool.shutdown();
+  }
+
+  /** *****************************************************************************
+    * A ScreeningTask screens a range of the rows read from the hospital, splitting
+    * it in halves while it is larger than a piece. It returns the rows of the
+    * candidates of each criteria, in the order of the criteria.
+    *
+    * @author Meltem Ozcan
+    *************************************************************************** **/
+  private class ScreeningTask extends RecursiveTask<RowSet[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    //instance variables
+    private final HospitalRecords hospital;
+    private final int[] rows;
+    private final int from, to; //range of rows screened, to excluded
+    private final int piece;
+
+    /** *****************************************************************************
+      * Constructor
+      * @params hospital, rows, from, to, piece
+      **************************************************************************** **/
+    ScreeningTask(HospitalRecords hospital, int[] rows, int from, int to, int piece) {
+      this.hospital = hospital;
+      this.rows = rows;
+      this.from = from;
+      this.to = to;
+      this.piece = piece;
+    }
+
+    /** *****************************************************************************
+      * Screens the range, or its two halves at the same time if it is too large
+      **************************************************************************** **/
+    protected RowSet[] compute() {
+      if (to - from > piece) {
+        int middle = (from + to) >>> 1;
+        ScreeningTask left = new ScreeningTask(hospital, rows, from, middle, piece);
+        left.fork();
+        RowSet[] right = new ScreeningTask(hospital, rows, middle, to, piece).compute();
+        RowSet[] joined = left.join();
+        for (int k = 0; k < joined.length; k++)
+          joined[k] = joined[k].or(right[k]);
+        return joined;
+      }
+
+      RowSet[] found = new RowSet[criteria.length];
+      for (int k = 0; k < found.length; k++)
+        found[k] = new RowSet();
+      for (int i = from; i < to; i++) {
+        //skips patients removed since the rows were read
+        Patient p = hospital.patientAt(rows[i]);
+        if (p == null)
+          continue;
+        int[] symptomIds = p.getSymptomIds();
+        for (int k = 0; k < criteria.length; k++) {
+          if (criteria[k].isMetBy(symptomIds))
+            found[k].add(rows[i]);
+        }
+      }
+      return found;
+    }
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) {
+    LinkedList<String> files = new LinkedList<String>();
+    files.add(DisorderRegistry.SCHIZOPHRENIA_FILE);
+    files.add(DisorderRegistry.MAJOR_DEPRESSIVE_DISORDER_FILE);
+    LinkedList<Disorder> disorders = DisorderRegistry.getDefault().loadFiles(files);
+
+    HospitalRecords BMC = new HospitalRecords("Boston Medical Center");
+    BMC.addPatient(new Patient("John Smith", 36, "male", "major depressive disorder",
+                               "depressed mood during most of the day,fatigue or loss of energy,significant weight loss/gain,"
+                                 + "insomnia or hypersomnia nearly everyday,thoughts of death/suicidal ideation/attempt/plan"));
+    BMC.addPatient(new Patient("Carry Roy", 21, "female", "schizophrenia", "hallucinations,negative symptoms"));
+    BMC.addPatient(new Patient("Ann Lee", 45, "female", "undiagnosed", "negative symptoms,grossly disorganized or catatonic behavior"));
+    BatchScreener screener = new BatchScreener(disorders);
+    ScreeningReport report = screener.screen(BMC);
+    System.out.println(screener.getCriteria());
+    System.out.println(report);
+    System.out.println("Schizophrenia candidates (Carry Roy): " + report.getCandidates("Schizophrenia").getPage(0, 10).getFirst().getName());
+    System.out.println("Major depressive disorder candidates (John Smith): "
+                         + report.getCandidates("Major Depressive Disorder").getPage(0, 10).getFirst().getName());
+
+    //a million patients with random symptoms of both disorders, screened on one thread and on every core
+    LinkedList<String> symptoms = new LinkedList<String>();
+    for (Disorder d : disorders)
+      symptoms.addAll(d.getSymptoms());
+    String[] symptomArray = symptoms.toArray(new String[symptoms.size()]);
+    HospitalRecords large = new HospitalRecords("Screening Test Hospital", new ColumnarPatientStore());
+    LinkedList<Patient> patients = new LinkedList<Patient>();
+    Random random = new Random(1);
+    for (int i = 0; i < 1000000; i++) {
+      StringBuilder patientSymptoms = new StringBuilder(symptomArray[random.nextInt(symptomArray.length)]);
+      for (int j = random.nextInt(6); j > 0; j--)
+        patientSymptoms.append(",").append(symptomArray[random.nextInt(symptomArray.length)]);
+      patients.add(new Patient("Patient " + i, random.nextInt(90), "female", "undiagnosed", patientSymptoms.toString()));
+    }
+    large.addPatients(patients);
+    patients = null;
+
+    int cores = Runtime.getRuntime().availableProcessors();
+    BatchScreener single = new BatchScreener(disorders, 1);
+    for (int run = 0; run < 3; run++) {
+      System.out.println(single.screen(large));
+      if (cores > 1)
+        System.out.println(screener.screen(large));
+    }
+    single.close();
+
+    //the same screening over a pinned version while patients are removed from the live hospital
+    HospitalVersion version = large.pinVersion();
+    for (int i = 0; i < 1000; i++)
+      large.removePatient("Patient " + i);
+    System.out.println("Patients screened in the pinned version (1000000): " + screener.screen(version).getPatientCount());
+    version.close();
+  }
+}
@@ -0,0 +1,173 @@
+/* FILENAME: BufferPool.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Keeps the recently used pages of a file in memory, so that a data
+ * structure kept on disk only needs as much memory as the pages it is working on.
+ *
+ * */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/** *****************************************************************************
+  * A BufferPool divides a file into pages of PAGE_SIZE bytes and holds a fixed number
+  * of them in memory. A page that is not in memory is read into the frame of the
+  * least recently used page, which is first written back to the file if it was
+  * changed. The memory used is the number of frames times the page size, however
+  * large the file grows.
+  *
+  * The buffer returned by getPage() belongs to the pool and is only valid until the
+  * next call to getPage() or allocatePage(), which may reuse its frame. The pool is
+  * not safe for use by several threads, its user has to lock around it.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class BufferPool {
+
+  //bytes in every page
+  public static final int PAGE_SIZE = 8192;
+
+  //instance variables
+  private final FileChannel channel;
+  private final int frameCount;
+  private final LinkedHashMap<Integer, Frame> frames; //pages in memory, least recently used first
+  private int pageCount;
+  private long reads;
+  private long requests;
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Takes in the file, whose length should be a whole number of pages, and the
+    * number of pages to keep in memory
+    * @params file
+    * @params framesInMemory
+    **************************************************************************** **/
+  public BufferPool(FileChannel file, int framesInMemory) throws IOException {
+    if (framesInMemory < 2)
+      throw new IllegalArgumentException("A buffer pool needs at least 2 frames: " + framesInMemory);
+    channel = file;
+    frameCount = framesInMemory;
+    frames = new LinkedHashMap<Integer, Frame>(framesInMemory * 2, 0.75f, true);
+    pageCount = (int) (channel.size() / PAGE_SIZE);
+  }
+
+  /** *****************************************************************************
+    * Returns the page with the given number, reading it from the file if it is not
+    * in memory. The buffer holds the whole page, from position 0.
+    * @params pageNumber
+    **************************************************************************** **/
+  public ByteBuffer getPage(int pageNumber) throws IOException {
+    if (pageNumber < 0 || pageNumber >= pageCount)
+      throw new IllegalArgumentException("No page " + pageNumber + " in a file of " + pageCount + " pages");
+
+    requests++;
+    Frame frame = frames.get(pageNumber);
+    if (frame == null) {
+      frame = freeFrame(pageNumber);
+      ByteBuffer bytes = frame.bytes;
+      bytes.clear();
+      long position = (long) pageNumber * PAGE_SIZE;
+      while (bytes.hasRemaining()) {
+        if (channel.read(bytes, position + bytes.position()) < 0)
+          throw new EOFException("Page " + pageNumber + " is cut short");
+      }
+      reads++;
+    }
+    frame.bytes.clear();
+    return frame.bytes;
+  }
+
+  /** *****************************************************************************
+    * Marks a page as changed, so that it is written back before its frame is reused
+    * @params pageNumber
+    **************************************************************************** **/
+  public void markDirty(int pageNumber) {
+    Frame frame = frames.get(pageNumber);
+    if (frame == null)
+      throw new IllegalStateException("Page " + pageNumber + " is not in memory");
+    frame.dirty = true;
+  }
+
+  /** *****************************************************************************
+    * Adds an empty page at the end of the file and returns its number. The page is
+    * in memory and marked as changed.
+    **************************************************************************** **/
+  public int allocatePage() throws IOException {
+    int pageNumber = pageCount++;
+    Frame frame = freeFrame(pageNumber);
+    Arrays.fill(frame.bytes.array(), (byte) 0);
+    frame.dirty = true;
+    return pageNumber;
+  }
+
+  /** *****************************************************************************
+    * Returns the number of pages in the file, including those not yet written
+    **************************************************************************** **/
+  public int getPageCount() {
+    return pageCount;
+  }
+
+  /** *****************************************************************************
+    * Returns the share of page requests that found the page in memory
+    **************************************************************************** **/
+  public double getHitRate() {
+    return (requests == 0) ? 1.0 : 1.0 - (double) reads / requests;
+  }
+
+  /** *****************************************************************************
+    * Writes every changed page back to the file
+    **************************************************************************** **/
+  public void flush() throws IOException {
+    for (Frame frame : frames.values()) {
+      if (frame.dirty)
+        writeBack(frame);
+    }
+  }
+
+
+  //helper methods
+
+  /** *****************************************************************************
+    * Returns a frame for the given page, taking the frame of the least recently used
+    * page once all frames are in use
+    * @params pageNumber
+    **************************************************************************** **/
+  private Frame freeFrame(int pageNumber) throws IOException {
+    Frame frame;
+    if (frames.size() < frameCount) {
+      frame = new Frame();
+    } else {
+      Iterator<Frame> leastRecent = frames.values().iterator();
+      frame = leastRecent.next();
+      leastRecent.remove();
+      if (frame.dirty)
+        writeBack(frame);
+    }
+    frame.pageNumber = pageNumber;
+    frames.put(pageNumber, frame);
+    return frame;
+  }
+
+  private void writeBack(Frame frame) throws IOException {
+    ByteBuffer bytes = frame.bytes.duplicate();
+    bytes.clear();
+    long position = (long) frame.pageNumber * PAGE_SIZE;
+    while (bytes.hasRemaining())
+      channel.write(bytes, position + bytes.position());
+    frame.dirty = false;
+  }
+
+  /** *****************************************************************************
+    * A page sized buffer and the page it holds
+    *************************************************************************** **/
+  private static class Frame {
+    final ByteBuffer bytes = ByteBuffer.allocate(PAGE_SIZE);
+    int pageNumber;
+    boolean dirty;
+  }
+
+}
@@ -0,0 +1,330 @@
+/* FILENAME: ColumnarPatientStore.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: A compact way for HospitalRecords to keep its patients. Instead of one
+ * object per patient, every kind of information is kept in its own primitive array.
+ *
+ * */
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** *****************************************************************************
+  * A ColumnarPatientStore keeps the patients as parallel columns: ages and patient
+  * numbers as ints, genders as byte codes, diagnoses as dictionary ids and the
+  * symptoms of every patient as a run of SymptomVocabulary ids in one shared int
+  * array. The Patient objects handed out by the store are lightweight views over a
+  * row.
+  *
+  * Rows are written by one thread at a time and can be read while they are written.
+  * Columns are replaced by larger copies rather than grown in place, and a row's
+  * symptoms are rewritten at the end of the pool before its start is moved, so a
+  * reader never sees a half written list of symptoms.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class ColumnarPatientStore implements PatientStore {
+
+  //instance variables
+  private int rowCount;
+  private volatile String[] names;
+  private volatile int[] patientNumbers;
+  private volatile int[] ages;
+  private volatile byte[] genders;
+  private volatile int[] diagnoses;
+
+  //the symptoms of row r are the run at symptoms.starts[r] of symptoms.pool, made of the
+  //number of symptoms followed by their ids. A removed row has the start -1.
+  private volatile SymptomColumns symptoms;
+  private int symptomPoolSize;
+  private int symptomGarbage; //slots of the pool no longer used by any row
+
+  //dictionaries turning the repeated strings into ids
+  private StringDictionary genderDictionary = new StringDictionary();
+  private StringDictionary diagnosisDictionary = new StringDictionary();
+  private SymptomVocabulary symptomVocabulary = SymptomVocabulary.getDefault();
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Creates an empty store with room for a few patients, the columns grow as
+    * patients are added
+    **************************************************************************** **/
+  public ColumnarPatientStore() {
+    names = new String[16];
+    patientNumbers = new int[16];
+    ages = new int[16];
+    genders = new byte[16];
+    diagnoses = new int[16];
+    symptoms = new SymptomColumns(new AtomicIntegerArray(16), new int[64]);
+  }
+
+  /** *****************************************************************************
+    * Copies the information of the patient into a new row. The patient then becomes
+    * a view over that row.
+    * @params hospital
+    * @params patient
+    **************************************************************************** **/
+  public int addPatient(HospitalRecords hospital, Patient patient) {
+    //a patient of another hospital is copied, so that it stays with that hospital
+    if (patient.isAttached())
+      patient = patient.copy();
+    //the patient already holds the ids of its symptoms, they are copied as they are
+    int row = addRow(patient.getName(), patient.getPatientNumber(), patient.getAge(), patient.getGender(),
+                     patient.getDiagnosis(), patient.getSymptomIds());
+    patient.attach(hospital, this, row);
+    return row;
+  }
+
+  /** *****************************************************************************
+    * Copies the given information into a new row and returns the row number, used
+    * to read patients back without making a Patient object for each of them
+    * @params name
+    * @params patientNumber
+    * @params age
+    * @params gender
+    * @params diagnosis
+    * @params symptomList
+    **************************************************************************** **/
+  int addRow(String name, int patientNumber, int age, String gender, String diagnosis, LinkedList<String> symptomList) {
+    return addRow(name, patientNumber, age, gender, diagnosis, symptomVocabulary.getIds(symptomList));
+  }
+
+  /** *****************************************************************************
+    * Copies the given information, with the symptoms as vocabulary ids, into a new
+    * row and returns the row number
+    * @params name
+    * @params patientNumber
+    * @params age
+    * @params gender
+    * @params diagnosis
+    * @params symptomIds
+    **************************************************************************** **/
+  int addRow(String name, int patientNumber, int age, String gender, String diagnosis, int[] symptomIds) {
+    if (rowCount == names.length)
+      growColumns(rowCount * 2);
+
+    int row = rowCount++;
+    names[row] = name;
+    patientNumbers[row] = patientNumber;
+    ages[row] = age;
+    genders[row] = genderCode(gender);
+    diagnoses[row] = diagnosisDictionary.getId(diagnosis);
+    writeSymptoms(row, symptomIds);
+    return row;
+  }
+
+  /** *****************************************************************************
+    * Releases the symptoms and the name of a removed patient. Views over the row that
+    * are still held somewhere keep reading the remaining columns.
+    * @params row
+    **************************************************************************** **/
+  public void removePatient(int row) {
+    names[row] = null;
+    releaseSymptoms(row);
+    symptoms.starts.set(row, -1);
+  }
+
+  /** *****************************************************************************
+    * Returns a new view over the given row
+    * @params hospital
+    * @params row
+    **************************************************************************** **/
+  public Patient getPatient(HospitalRecords hospital, int row) {
+    return new Patient(hospital, this, row);
+  }
+
+  public void ensureCapacity(int capacity) {
+    if (capacity > names.length)
+      growColumns(capacity);
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+
+  /*GETTERS*/
+
+  public String getName(int row) {
+    return names[row];
+  }
+
+  public int getPatientNumber(int row) {
+    return patientNumbers[row];
+  }
+
+  public int getAge(int row) {
+    return ages[row];
+  }
+
+  public String getGender(int row) {
+    return genderDictionary.getString(genders[row]);
+  }
+
+  public String getDiagnosis(int row) {
+    return diagnosisDictionary.getString(diagnoses[row]);
+  }
+
+  /** *****************************************************************************
+    * Returns a new list with the symptoms of the given row, changes to the list are
+    * not reflected in the store
+    * @params row
+    **************************************************************************** **/
+  public LinkedList<String> getSymptoms(int row) {
+    LinkedList<String> symptomList = new LinkedList<String>();
+    SymptomColumns columns = symptoms;
+    int start = columns.starts.get(row);
+    if (start >= 0) {
+      for (int i = 1; i <= columns.pool[start]; i++)
+        symptomList.add(symptomVocabulary.getString(columns.pool[start + i]));
+    }
+    return symptomList;
+  }
+
+
+  /*SETTERS*/
+
+  public void setName(int row, String newName) {
+    names[row] = newName;
+  }
+
+  public void setAge(int row, int newAge) {
+    ages[row] = newAge;
+  }
+
+  public void setGender(int row, String newGender) {
+    genders[row] = genderCode(newGender);
+  }
+
+  public void setDiagnosis(int row, String newDiagnosis) {
+    diagnoses[row] = diagnosisDictionary.getId(newDiagnosis);
+  }
+
+  public void setSymptoms(int row, LinkedList<String> newSymptoms) {
+    releaseSymptoms(row);
+    writeSymptoms(row, symptomVocabulary.getIds(newSymptoms));
+  }
+
+
+  //helper methods
+
+  /** *****************************************************************************
+    * Returns the byte code of a gender, there are only ever a handful of them
+    * @params gender
+    **************************************************************************** **/
+  private byte genderCode(String gender) {
+    int id = genderDictionary.getId(gender);
+    if (id > Byte.MAX_VALUE)
+      throw new IllegalStateException("Too many distinct genders for a byte code: " + gender);
+    return (byte) id;
+  }
+
+  /** *****************************************************************************
+    * Appends the symptom ids of a row to the end of the shared symptom pool
+    * @params row
+    * @params symptomIds
+    **************************************************************************** **/
+  private void writeSymptoms(int row, int[] symptomIds) {
+    SymptomColumns columns = symptoms;
+    int runLength = symptomIds.length + 1;
+    if (symptomPoolSize + runLength > columns.pool.length) {
+      columns = columns.copy(rowCount, columns.starts.length(), Math.max(columns.pool.length * 2, symptomPoolSize + runLength));
+      symptoms = columns;
+    }
+
+    int start = symptomPoolSize;
+    columns.pool[start] = symptomIds.length;
+    System.arraycopy(symptomIds, 0, columns.pool, start + 1, symptomIds.length);
+    symptomPoolSize += runLength;
+
+    //moving the start last publishes the finished run to readers
+    columns.starts.set(row, start);
+  }
+
+  /** *****************************************************************************
+    * Marks the symptoms of a row as unused, compacting the pool once more than half
+    * of it is unused
+    * @params row
+    **************************************************************************** **/
+  private void releaseSymptoms(int row) {
+    SymptomColumns columns = symptoms;
+    int start = columns.starts.get(row);
+    if (start >= 0)
+      symptomGarbage += columns.pool[start] + 1;
+
+    if (symptomGarbage > symptomPoolSize / 2)
+      compactSymptoms();
+  }
+
+  /** *****************************************************************************
+    * Moves the symptoms of every row to the front of a new pool, in row order. The
+    * old pool is left as it is for readers that are still using it.
+    **************************************************************************** **/
+  private void compactSymptoms() {
+    SymptomColumns old = symptoms;
+    SymptomColumns compacted = new SymptomColumns(new AtomicIntegerArray(old.starts.length()),
+                                                  new int[Math.max(64, (symptomPoolSize - symptomGarbage) * 2)]);
+    int size = 0;
+    for (int row = 0; row < rowCount; row++) {
+      int start = old.starts.get(row);
+      if (start < 0) {
+        compacted.starts.set(row, -1);
+      } else {
+        int runLength = old.pool[start] + 1;
+        System.arraycopy(old.pool, start, compacted.pool, size, runLength);
+        compacted.starts.set(row, size);
+        size += runLength;
+      }
+    }
+    symptoms = compacted;
+    symptomPoolSize = size;
+    symptomGarbage = 0;
+  }
+
+  /** *****************************************************************************
+    * Grows every column to the given number of rows
+    * @params capacity
+    **************************************************************************** **/
+  private void growColumns(int capacity) {
+    names = Arrays.copyOf(names, capacity);
+    patientNumbers = Arrays.copyOf(patientNumbers, capacity);
+    ages = Arrays.copyOf(ages, capacity);
+    genders = Arrays.copyOf(genders, capacity);
+    diagnoses = Arrays.copyOf(diagnoses, capacity);
+    symptoms = symptoms.copy(rowCount, capacity, symptoms.pool.length);
+  }
+
+
+  /** *****************************************************************************
+    * The symptom starts and the symptom pool they point into. A reader takes both
+    * from the same SymptomColumns, which is replaced as a whole whenever the pool
+    * grows or is compacted.
+    *************************************************************************** **/
+  private static class SymptomColumns {
+    final AtomicIntegerArray starts;
+    final int[] pool;
+
+    SymptomColumns(AtomicIntegerArray starts, int[] pool) {
+      this.starts = starts;
+      this.pool = pool;
+    }
+
+    /** *****************************************************************************
+      * Returns a copy of the first usedRows starts and of the pool, with room for the
+      * given number of rows and pool slots
+      * @params usedRows
+      * @params rows
+      * @params poolSize
+      **************************************************************************** **/
+    SymptomColumns copy(int usedRows, int rows, int poolSize) {
+      //the starts are gathered in a plain array, which the AtomicIntegerArray copies in one go
+      int[] newStarts = new int[rows];
+      for (int row = 0; row < usedRows; row++)
+        newStarts[row] = starts.get(row);
+      return new SymptomColumns(new AtomicIntegerArray(newStarts), Arrays.copyOf(pool, poolSize));
+    }
+  }
+
+}
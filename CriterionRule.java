@@ -0,0 +1,235 @@
+/* FILENAME: CriterionRule.java
+ * AUTHOR: Yuyu Li
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Holds a rule of a criteria that can be checked by the program, such as
+ * "two or more of the symptoms", read from a rule line of a disorder file.
+ *
+ * */
+
+import java.util.*;
+
+/** *****************************************************************************
+  * A CriterionRule class holds one rule of a criteria over the symptoms listed in a
+  * disorder file: at least a number of the symptoms in a set must be present. The
+  * set is kept as a bit mask, bit i standing for symptom i + 1 of the file, so a rule
+  * is checked with one AND and one bit count over the mask of present symptoms. A
+  * criteria is met when all of its rules are met.
+  *
+  * In a disorder file, rules are the lines after "#" that start with "@":
+  *
+  *   @A 2 of 1-5        two or more of symptoms 1 to 5
+  *   @A 1 of 1-3        at least one of the first three symptoms
+  *   @B all of 2,4      symptoms 2 and 4 must both be present
+  *
+  * The letter is the criteria the rule belongs to, the symptoms are numbered from 1
+  * in the order of the file and are given as numbers and ranges separated by commas.
+  * Only the first 64 symptoms of a file can be used in rules.
+  *
+  * @author Yuyu Li
+  *************************************************************************** **/
+public class CriterionRule {
+
+  //symptoms a rule can refer to, one per bit of the mask
+  public static final int MAX_SYMPTOMS = 64;
+
+  //instance variables
+  private final int criterion; //0 for criteria A
+  private final int minimumCount; //symptoms of the set that must be present
+  private final long symptoms; //bit i set for symptom i + 1 of the file
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Makes a rule asking for at least minimumCount of the symptoms in the mask
+    *
+    * @params criterion, the criteria of the rule, 0 for criteria A
+    * @params minimumCount, the number of symptoms of the set that must be present
+    * @params symptoms, the set of symptoms, bit i for symptom i + 1 of the file
+    **************************************************************************** **/
+  public CriterionRule(int criterion, int minimumCount, long symptoms) {
+    if (criterion < 0 || criterion >= 26)
+      throw new IllegalArgumentException("There is no criteria " + criterion);
+    if (minimumCount < 1 || minimumCount > Long.bitCount(symptoms))
+      throw new IllegalArgumentException("Cannot ask for " + minimumCount + " of " + Long.bitCount(symptoms) + " symptoms");
+    this.criterion = criterion;
+    this.minimumCount = minimumCount;
+    this.symptoms = symptoms;
+  }
+
+  /** *****************************************************************************
+    * Reads a rule line of a disorder file, such as "@A 2 of 1-5"
+    *
+    * @throws IllegalArgumentException if the line is not a valid rule
+    * @params rule, the line of the file
+    * @params symptomCount, the number of symptoms listed in the file
+    **************************************************************************** **/
+  public static CriterionRule parse(String rule, int symptomCount) {
+    String[] parts = rule.trim().split("\\s+", 4);
+    if (parts.length != 4 || parts[0].length() != 2 || parts[0].charAt(0) != '@' || !parts[2].equalsIgnoreCase("of"))
+      throw new IllegalArgumentException("A rule looks like \"@A 2 of 1-5\", not \"" + rule + "\"");
+    int criterion = Character.toUpperCase(parts[0].charAt(1)) - 'A';
+
+    long symptoms = 0;
+    for (String item : parts[3].split(",")) {
+      String[] range = item.trim().split("\\s*-\\s*");
+      int first = symptomNumber(range[0], symptomCount, rule);
+      int last = (range.length == 1) ? first : symptomNumber(range[1], symptomCount, rule);
+      if (range.length > 2 || last < first)
+        throw new IllegalArgumentException("Invalid symptoms " + item.trim() + " in \"" + rule + "\"");
+      for (int i = first; i <= last; i++)
+        symptoms |= 1L << (i - 1);
+    }
+
+    int minimumCount;
+    if (parts[1].equalsIgnoreCase("all")) {
+      minimumCount = Long.bitCount(symptoms);
+    } else {
+      try {
+        minimumCount = Integer.parseInt(parts[1]);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid count " + parts[1] + " in \"" + rule + "\"");
+      }
+    }
+    return new CriterionRule(criterion, minimumCount, symptoms);
+  }
+
+  /** *****************************************************************************
+    * Returns the number of a symptom in a rule, checking it is listed in the file
+    * @params number, symptomCount, rule
+    **************************************************************************** **/
+  private static int symptomNumber(String number, int symptomCount, String rule) {
+    int n;
+    try {
+      n = Integer.parseInt(number);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid symptom " + number + " in \"" + rule + "\"");
+    }
+    if (n < 1 || n > Math.min(symptomCount, MAX_SYMPTOMS))
+      throw new IllegalArgumentException("There is no symptom " + n + " for \"" + rule + "\"");
+    return n;
+  }
+
+  /** *****************************************************************************
+    * Returns boolean determining if the rule is met by the present symptoms
+    * @params present, bit i set if symptom i + 1 of the file is present
+    **************************************************************************** **/
+  public boolean isMetBy(long present) {
+    return Long.bitCount(present & symptoms) >= minimumCount;
+  }
+
+  /** *****************************************************************************
+    * Returns boolean determining if every rule is met by the present symptoms, true
+    * if there are no rules
+    * @params rules
+    * @params present, bit i set if symptom i + 1 of the file is present
+    **************************************************************************** **/
+  public static boolean allMetBy(CriterionRule[] rules, long present) {
+    for (int i = 0; i < rules.length; i++) {
+      if (Long.bitCount(present & rules[i].symptoms) < rules[i].minimumCount)
+        return false;
+    }
+    return true;
+  }
+
+  /** *****************************************************************************
+    * Returns the same rule for another criteria, used when the criteria before it
+    * are removed
+    * @params newCriterion
+    **************************************************************************** **/
+  public CriterionRule forCriterion(int newCriterion) {
+    return new CriterionRule(newCriterion, minimumCount, symptoms);
+  }
+
+  /** *****************************************************************************
+    * Returns the criteria of the rule, 0 for criteria A
+    **************************************************************************** **/
+  public int getCriterion() {
+    return criterion;
+  }
+
+  /** *****************************************************************************
+    * Returns the letter of the criteria of the rule
+    **************************************************************************** **/
+  public char getCriterionLetter() {
+    return (char)(criterion + 65);
+  }
+
+  /** *****************************************************************************
+    * Returns the number of symptoms of the set that must be present
+    **************************************************************************** **/
+  public int getMinimumCount() {
+    return minimumCount;
+  }
+
+  /** *****************************************************************************
+    * Returns the set of symptoms as a mask, bit i for symptom i + 1 of the file
+    **************************************************************************** **/
+  public long getSymptoms() {
+    return symptoms;
+  }
+
+  /** *****************************************************************************
+    * Gives the rule as a line of a disorder file
+    **************************************************************************** **/
+  public String toString() {
+    StringBuilder s = new StringBuilder("@").append(getCriterionLetter()).append(" ").append(minimumCount).append(" of ");
+    long rest = symptoms;
+    while (rest != 0) {
+      int first = Long.numberOfTrailingZeros(rest);
+      int last = first;
+      while (last + 1 < MAX_SYMPTOMS && (rest & (1L << (last + 1))) != 0)
+        last++;
+      s.append(first + 1);
+      if (last > first)
+        s.append("-").append(last + 1);
+      rest &= (last + 1 < MAX_SYMPTOMS) ? -(1L << (last + 1)) : 0;
+      if (rest != 0)
+        s.append(",");
+    }
+    return s.toString();
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) {
+    CriterionRule twoOf = parse("@A 2 of 1-5", 5);
+    CriterionRule firstThree = parse("@a 1 of 1-3", 5);
+    CriterionRule both = parse("@B all of 2, 4", 5);
+    System.out.println("Rules read back (@A 2 of 1-5, @A 1 of 1-3, @B 2 of 2,4): " + twoOf + ", " + firstThree + ", " + both);
+    CriterionRule[] criterionA = {twoOf, firstThree};
+    System.out.println("Symptoms 1 and 2 meet criteria A (true): " + allMetBy(criterionA, 0x3));
+    System.out.println("Symptoms 4 and 5 meet criteria A (false): " + allMetBy(criterionA, 0x18));
+    System.out.println("Symptom 2 alone meets criteria A (false): " + allMetBy(criterionA, 0x2));
+    System.out.println("Symptoms 2 and 4 meet criteria B (true): " + both.isMetBy(0xA));
+    System.out.println("Rule for all 64 symptoms: " + parse("@C 64 of 1-64", 70));
+
+    String[] invalid = {"@A 2 of 1-6", "A 2 of 1-5", "@A two of 1-5", "@A 3 of 1,2", "@A 1 of 3-1"};
+    for (int i = 0; i < invalid.length; i++) {
+      try {
+        parse(invalid[i], 5);
+        System.out.println("Accepted " + invalid[i]);
+      } catch (IllegalArgumentException e) {
+        System.out.println("Refused: " + e.getMessage());
+      }
+    }
+
+    //a million symptom sets checked against criteria A
+    Random random = new Random(1);
+    long[] present = new long[1000000];
+    for (int i = 0; i < present.length; i++)
+      present[i] = random.nextLong() & random.nextLong() & 0x1F;
+    for (int run = 0; run < 3; run++) {
+      long start = System.nanoTime();
+      int met = 0;
+      for (int i = 0; i < present.length; i++) {
+        if (allMetBy(criterionA, present[i]))
+          met++;
+      }
+      System.out.println(present.length + " symptom sets checked in " + (System.nanoTime() - start) / 1000000 + " ms, "
+                           + met + " meet criteria A");
+    }
+  }
+}
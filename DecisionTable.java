@@ -0,0 +1,297 @@
+/* FILENAME: DecisionTable.java
+ * AUTHOR: Yuyu Li
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Compiles a decision tree into a table of ints, so that a diagnosis can be
+ * walked with array lookups instead of by making a new tree at every step.
+ *
+ * */
+
+import java.util.*;
+import java.lang.management.*;
+import javafoundations.*;
+
+/** *****************************************************************************
+  * A DecisionTable class holds a decision tree as a table of nodes numbered from 0,
+  * the root. Each node takes three ints: the node to go to when the answer is no,
+  * the node to go to when the answer is yes, and the number of the question asked.
+  * A leaf has -1 for both children and an outcome code instead of a question: FITS
+  * for the "yes" leaf, DOES_NOT_FIT for the "no" leaf and UNDECIDED for any other.
+  *
+  * The questions are numbered in preorder, which for the trees of the disorders is
+  * the order of their criteria, so answers[i] is the answer to criteria i. Walking
+  * the table makes no objects, so it can be done millions of times in a batch, and
+  * the table cannot be changed, so it can be walked by any number of threads.
+  *
+  * @author Yuyu Li
+  *************************************************************************** **/
+public class DecisionTable {
+
+  //outcome codes of the leaves
+  public static final int DOES_NOT_FIT = 0;
+  public static final int FITS = 1;
+  public static final int UNDECIDED = -1;
+
+  //node every walk starts from
+  public static final int ROOT = 0;
+
+  //ints of a node in the table
+  private static final int NO = 0;
+  private static final int YES = 1;
+  private static final int CODE = 2; //question of a node, outcome of a leaf
+  private static final int NODE_SIZE = 3;
+
+  //instance variables
+  private final int[] table; //NODE_SIZE ints per node
+  private final String[] elements; //element of each node, by node
+  private final String[] questions; //element of each question node, by question
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Compiles the given decision tree into a table. Every node of the tree must have
+    * either two children or none.
+    *
+    * @params tree, the decision tree to compile
+    **************************************************************************** **/
+  public DecisionTable(BinaryTree<String> tree) {
+    int nodeCount = tree.size();
+    table = new int[nodeCount * NODE_SIZE];
+    elements = new String[nodeCount];
+    int questionCount = (nodeCount - 1) / 2; //a full tree has one more leaf than questions
+    questions = new String[questionCount];
+
+    int[] counts = new int[2]; //nodes and questions numbered so far
+    if (nodeCount > 0)
+      addNode(tree, counts);
+  }
+
+  /** *****************************************************************************
+    * Adds a node and, after it, the nodes below it to the table; returns its number
+    * @params tree, counts
+    **************************************************************************** **/
+  private int addNode(BinaryTree<String> tree, int[] counts) {
+    int node = counts[0]++;
+    elements[node] = tree.getRootElement();
+    BinaryTree<String> left = tree.getLeft();
+    BinaryTree<String> right = tree.getRight();
+
+    if (left.isEmpty() && right.isEmpty()) {
+      table[node * NODE_SIZE + NO] = -1;
+      table[node * NODE_SIZE + YES] = -1;
+      table[node * NODE_SIZE + CODE] = outcomeOf(elements[node]);
+    } else if (left.isEmpty() || right.isEmpty()) {
+      throw new IllegalArgumentException("The question " + elements[node] + " has only one answer");
+    } else {
+      int question = counts[1]++;
+      questions[question] = elements[node];
+      table[node * NODE_SIZE + CODE] = question;
+      table[node * NODE_SIZE + NO] = addNode(left, counts);
+      table[node * NODE_SIZE + YES] = addNode(right, counts);
+    }
+    return node;
+  }
+
+  /** *****************************************************************************
+    * Returns the outcome code of a leaf
+    * @params leaf, the element of the leaf
+    **************************************************************************** **/
+  private static int outcomeOf(String leaf) {
+    if (DisorderExpert.YES.equals(leaf))
+      return FITS;
+    if (DisorderExpert.NO.equals(leaf))
+      return DOES_NOT_FIT;
+    return UNDECIDED;
+  }
+
+  /** *****************************************************************************
+    * Returns the outcome code of the leaf reached with the given answers
+    * @params answers, answers[i] is the answer to question i
+    **************************************************************************** **/
+  public int evaluate(boolean[] answers) {
+    return table[findLeaf(answers) * NODE_SIZE + CODE];
+  }
+
+  /** *****************************************************************************
+    * Returns the outcome code of the leaf reached with the given answers, given as
+    * bits: bit i is the answer to question i. Only for tables of up to 64 questions,
+    * a larger table throws an IllegalStateException rather than reuse the bits.
+    * @params answers
+    **************************************************************************** **/
+  public int evaluate(long answers) {
+    if (questions.length > 64)
+      throw new IllegalStateException("A table of " + questions.length + " questions cannot be answered with 64 bits");
+    int offset = ROOT;
+    while (table[offset + NO] >= 0) {
+      if ((answers & (1L << table[offset + CODE])) != 0)
+        offset = table[offset + YES] * NODE_SIZE;
+      else
+        offset = table[offset + NO] * NODE_SIZE;
+    }
+    return table[offset + CODE];
+  }
+
+  /** *****************************************************************************
+    * Returns the leaf reached with the given answers
+    * @params answers, answers[i] is the answer to question i
+    **************************************************************************** **/
+  public int findLeaf(boolean[] answers) {
+    int offset = ROOT;
+    while (table[offset + NO] >= 0) {
+      if (answers[table[offset + CODE]])
+        offset = table[offset + YES] * NODE_SIZE;
+      else
+        offset = table[offset + NO] * NODE_SIZE;
+    }
+    return offset / NODE_SIZE;
+  }
+
+  /** *****************************************************************************
+    * Returns true if the given node is a leaf
+    * @params node
+    **************************************************************************** **/
+  public boolean isLeaf(int node) {
+    return table[node * NODE_SIZE + NO] < 0;
+  }
+
+  /** *****************************************************************************
+    * Returns the node to go to from the given node when the answer is no
+    * @params node
+    **************************************************************************** **/
+  public int getNo(int node) {
+    return table[node * NODE_SIZE + NO];
+  }
+
+  /** *****************************************************************************
+    * Returns the node to go to from the given node when the answer is yes
+    * @params node
+    **************************************************************************** **/
+  public int getYes(int node) {
+    return table[node * NODE_SIZE + YES];
+  }
+
+  /** *****************************************************************************
+    * Returns the number of the question asked at the given node, -1 for a leaf
+    * @params node
+    **************************************************************************** **/
+  public int getQuestion(int node) {
+    return isLeaf(node) ? -1 : table[node * NODE_SIZE + CODE];
+  }
+
+  /** *****************************************************************************
+    * Returns the outcome code of the given leaf, UNDECIDED for a question node
+    * @params node
+    **************************************************************************** **/
+  public int getOutcome(int node) {
+    return isLeaf(node) ? table[node * NODE_SIZE + CODE] : UNDECIDED;
+  }
+
+  /** *****************************************************************************
+    * Returns the element of the given node, the question or the leaf of the tree
+    * @params node
+    **************************************************************************** **/
+  public String getElement(int node) {
+    return elements[node];
+  }
+
+  /** *****************************************************************************
+    * Returns the question with the given number
+    * @params question
+    **************************************************************************** **/
+  public String getQuestionText(int question) {
+    return questions[question];
+  }
+
+  /** *****************************************************************************
+    * Returns the number of nodes in the table
+    **************************************************************************** **/
+  public int getNodeCount() {
+    return elements.length;
+  }
+
+  /** *****************************************************************************
+    * Returns the number of questions in the table
+    **************************************************************************** **/
+  public int getQuestionCount() {
+    return questions.length;
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) {
+    Disorder schizophrenia = DisorderRegistry.getDefault().getDisorder(DisorderRegistry.SCHIZOPHRENIA_FILE);
+    DecisionTable table = schizophrenia.getDecisionTable();
+    System.out.println("Nodes and questions (13, 6): " + table.getNodeCount() + ", " + table.getQuestionCount());
+    System.out.println("First question is criteria A (true): "
+                         + table.getQuestionText(0).equals(schizophrenia.getCriteria().getFirst().toString()));
+
+    //a table of 65 questions is only answered with a boolean array, the 65th bit would wrap to the first
+    LinkedBinaryTree<String> chain = new LinkedBinaryTree<String>(DisorderExpert.YES);
+    for (int i = 65; i > 0; i--)
+      chain = new LinkedBinaryTree<String>("question " + i, new LinkedBinaryTree<String>(DisorderExpert.NO), chain);
+    DecisionTable long65 = new DecisionTable(chain);
+    try {
+      long65.evaluate(-1L);
+      System.out.println("Bits of 65 questions refused (true): false");
+    } catch (IllegalStateException e) {
+      System.out.println("Bits of 65 questions refused (true): true");
+    }
+
+    //a million answer vectors, walked through the linked tree and through the table
+    int count = 1000000;
+    Random random = new Random(1);
+    boolean[][] answers = new boolean[count][table.getQuestionCount()];
+    long[] answerBits = new long[count];
+    for (int i = 0; i < count; i++) {
+      for (int j = 0; j < answers[i].length; j++) {
+        answers[i][j] = random.nextInt(8) != 0; //most patients go deep into the tree
+        if (answers[i][j])
+          answerBits[i] |= 1L << j;
+      }
+    }
+
+    BinaryTree<String> tree = schizophrenia.getTree();
+    for (int run = 0; run < 3; run++) {
+      long start = System.nanoTime();
+      int linkedFits = 0;
+      for (int i = 0; i < count; i++) {
+        BinaryTree<String> current = tree;
+        int question = 0;
+        while (current.size() > 1)
+          current = answers[i][question++] ? current.getRight() : current.getLeft();
+        if (current.getRootElement().equals(DisorderExpert.YES))
+          linkedFits++;
+      }
+      long linked = System.nanoTime() - start;
+
+      long allocatedBefore = allocatedBytes();
+      start = System.nanoTime();
+      int tableFits = 0;
+      int bitsFits = 0;
+      for (int i = 0; i < count; i++) {
+        if (table.evaluate(answers[i]) == FITS)
+          tableFits++;
+        if (table.evaluate(answerBits[i]) == FITS)
+          bitsFits++;
+      }
+      long compiled = System.nanoTime() - start;
+      long allocated = allocatedBytes() - allocatedBefore;
+
+      System.out.println(count + " diagnoses: linked tree " + linked / 1000000 + " ms, table twice " + compiled / 1000000
+                           + " ms, bytes allocated by the table " + allocated + ", fits " + linkedFits + " = "
+                           + tableFits + " = " + bitsFits);
+    }
+  }
+
+  /** *****************************************************************************
+    * Returns the bytes allocated by this thread so far, -1 if the JVM does not tell
+    **************************************************************************** **/
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean)
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    return -1;
+  }
+}
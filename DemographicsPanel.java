@@ -31,7 +31,7 @@ public class DemographicsPanel extends JPanel {
   private PatientScrollPanel ScrollPanel;
   private String gender, name, age, diagnosis,symptoms;
  private Color lighterBlue, darkerBlue, darkestBlue;
-  private String[] patients = {};//will be used to create a JList
+  private PatientListModel patientsModel;//will be used to create a JList
   private JList patientList;
   
   /** *****************************************************************************
@@ -160,8 +160,8 @@ public class DemographicsPanel extends JPanel {
     //I got help from http://stackoverflow.com/questions/9812980/how-to-use-the-jscrollpane-in-java to figure
     //out how to use the scroll bar.
     
-    //calls on toStringArrayWithHtml() to achieve a wrapping format
-    patients = HR.toStringArrayWithHtml();
+    //the list model formats the patient files a page at a time as they are scrolled into view
+    patientsModel = new PatientListModel(HR, new PatientQuery());
     
     //creates jpanel with borderlayout
     JPanel panelForScroll = new JPanel(new BorderLayout());
@@ -176,7 +176,7 @@ public class DemographicsPanel extends JPanel {
     //adds titlepanel to the frame
     panelForScroll.add(titlePanel, BorderLayout.NORTH);
     
-    patientList = new JList(patients);//makes a JList using the information in the string array
+    patientList = new JList(patientsModel);//makes a JList using the information in the list model
     
     //sets the height and width for each patient's information
     patientList.setFixedCellHeight(170);
@@ -256,7 +256,7 @@ public class DemographicsPanel extends JPanel {
         }
         
         //updates the list of patients 
-        resetScrollList(HR.toStringArrayWithHtml());
+        patientsModel.refresh();
         
       } catch (NumberFormatException e){
         System.out.println("Please enter a valid number");
@@ -0,0 +1,591 @@
+/* FILENAME: DiskPatientStore.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: A way for HospitalRecords to keep its patients on disk, for hospitals
+ * with more patients than fit in memory.
+ *
+ * */
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** *****************************************************************************
+  * A DiskPatientStore keeps every patient in two BPlusTrees on disk, keyed by
+  * patient number, and only remembers the patient number of each row in memory.
+  * One tree holds the small demographic records (name, age, gender, diagnosis),
+  * the other the symptom lists. Searches by age, gender or diagnosis and the scans
+  * over their results only read the first tree, so its pages stay in the cache and
+  * the pages of symptom lists are only read when getSymptoms() is called. The lists
+  * read last are kept decoded in a small cache of their own.
+  *
+  * The pages of both trees are cached in a BufferPool of a chosen number of pages, so
+  * the memory used by the records is set by the cache size and not by the number of
+  * patients. Memory still grows with the number of patients through what stays on
+  * the heap: the rowNumbers array of this store (an int per row), and in
+  * HospitalRecords the name index (every name as a String), the number index (a
+  * slot per patient) and the RowSets by diagnosis, gender, age and symptom (a bit
+  * per patient each).
+  *
+  * The file is a working area for one run of the program and is emptied when the
+  * store is created; the journal and the snapshots keep the hospital across
+  * restarts, and a hospital kept on disk is reopened by loading them into a new
+  * DiskPatientStore (see HospitalCheckpointer.open). The Patient objects handed out
+  * by the store are lightweight views over a row, like those of a
+  * ColumnarPatientStore.
+  *
+  * Records and symptom lists read recently are kept decoded in two small caches,
+  * with a slot for each row modulo the size of the cache. A read answered by a cache
+  * takes no lock, so readers working over the same patients, like the workers of a
+  * BatchScreener, do not wait for each other. A read that misses locks the store,
+  * since loading a page into the BufferPool may push another one out and so changes
+  * the shared pages; such a reader waits for the page operation of another thread
+  * but never for the write lock of the hospital, which the store does not take.
+  * Changes lock the store and replace the cached copy once the tree is written. A
+  * changed record is encoded before the store is changed, so a change that cannot
+  * be kept leaves the record as it was.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class DiskPatientStore implements PatientStore, Closeable {
+
+  //pages cached by default, 32 MB
+  public static final int DEFAULT_CACHE_PAGES = 4096;
+
+  //decoded records and symptom lists kept in memory
+  private static final int RECORD_CACHE_SIZE = 256;
+  private static final int SYMPTOM_CACHE_SIZE = 1024;
+
+  //instance variables
+  private final Path file;
+  private final boolean temporary; //a temporary file is deleted when the store is closed
+  private final FileChannel channel;
+  private final BufferPool pool;
+  private final BPlusTree records; //demographics by patient number
+  private final BPlusTree symptomLists; //symptoms by patient number
+  private long symptomReads; //symptom lists read from the tree
+  private volatile int[] rowNumbers = new int[16]; //patient number of every row
+  private int rowCount;
+
+  //records read last, the getters of a patient are usually called together
+  private final AtomicReferenceArray<Cached<Record>> recordCache = new AtomicReferenceArray<Cached<Record>>(RECORD_CACHE_SIZE);
+
+  //symptom lists read last, never changed once cached
+  private final AtomicReferenceArray<Cached<LinkedList<String>>> symptomCache =
+    new AtomicReferenceArray<Cached<LinkedList<String>>>(SYMPTOM_CACHE_SIZE);
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Creates a store in a temporary file with the default cache size
+    **************************************************************************** **/
+  public DiskPatientStore() throws IOException {
+    this(Files.createTempFile("patients", ".btree"), true, DEFAULT_CACHE_PAGES);
+  }
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Creates a store in the given file, keeping the given number of pages in memory
+    * @params fileName
+    * @params cachePages
+    **************************************************************************** **/
+  public DiskPatientStore(String fileName, int cachePages) throws IOException {
+    this(Paths.get(fileName), false, cachePages);
+  }
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Takes in the file, whether it is temporary and the number of pages in memory
+    * @params storeFile
+    * @params temporaryFile
+    * @params cachePages
+    **************************************************************************** **/
+  private DiskPatientStore(Path storeFile, boolean temporaryFile, int cachePages) throws IOException {
+    file = storeFile;
+    temporary = temporaryFile;
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                               StandardOpenOption.TRUNCATE_EXISTING);
+    pool = new BufferPool(channel, cachePages);
+    records = new BPlusTree(pool);
+    symptomLists = new BPlusTree(pool);
+  }
+
+  /** *****************************************************************************
+    * Writes the information of the patient into a new record. The patient then
+    * becomes a view over the new row.
+    * @params hospital
+    * @params patient
+    **************************************************************************** **/
+  public int addPatient(HospitalRecords hospital, Patient patient) {
+    //a patient of another hospital is copied, so that it stays with that hospital
+    if (patient.isAttached())
+      patient = patient.copy();
+    Record record = new Record();
+    record.name = patient.getName();
+    record.number = patient.getPatientNumber();
+    record.age = patient.getAge();
+    record.gender = patient.getGender();
+    record.diagnosis = patient.getDiagnosis();
+    LinkedList<String> symptoms = patient.getSymptoms();
+
+    int row;
+    synchronized (this) {
+      try {
+        if (records.get(record.number) != null)
+          throw new IllegalArgumentException("Patient number " + record.number + " is already in the store");
+        records.put(record.number, record.encode());
+        symptomLists.put(record.number, encodeSymptoms(record.number, symptoms));
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not write to " + file, e);
+      }
+      ensureCapacity(rowCount + 1);
+      row = rowCount++;
+      rowNumbers[row] = record.number;
+      symptomCache.set(row % SYMPTOM_CACHE_SIZE, new Cached<LinkedList<String>>(row, symptoms));
+    }
+    patient.attach(hospital, this, row);
+    return row;
+  }
+
+  public synchronized void removePatient(int row) {
+    try {
+      records.remove(rowNumbers[row]);
+      symptomLists.remove(rowNumbers[row]);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not write to " + file, e);
+    }
+    recordCache.set(row % RECORD_CACHE_SIZE, new Cached<Record>(row, null));
+    symptomCache.set(row % SYMPTOM_CACHE_SIZE, null);
+  }
+
+  /** *****************************************************************************
+    * Returns a new view over the given row
+    * @params hospital
+    * @params row
+    **************************************************************************** **/
+  public Patient getPatient(HospitalRecords hospital, int row) {
+    return new Patient(hospital, this, row);
+  }
+
+  public synchronized void ensureCapacity(int capacity) {
+    if (capacity > rowNumbers.length)
+      rowNumbers = Arrays.copyOf(rowNumbers, Math.max(capacity, rowNumbers.length * 2));
+  }
+
+  public synchronized int getRowCount() {
+    return rowCount;
+  }
+
+  /** *****************************************************************************
+    * Returns the share of page requests that were answered from memory
+    **************************************************************************** **/
+  public synchronized double getCacheHitRate() {
+    return pool.getHitRate();
+  }
+
+  /** *****************************************************************************
+    * Returns the number of symptom lists that had to be read from the file
+    **************************************************************************** **/
+  public synchronized long getSymptomReads() {
+    return symptomReads;
+  }
+
+  /** *****************************************************************************
+    * Returns the size of the file in bytes
+    **************************************************************************** **/
+  public synchronized long getFileSize() {
+    return (long) pool.getPageCount() * BufferPool.PAGE_SIZE;
+  }
+
+  /** *****************************************************************************
+    * Closes the file, deleting it if it is temporary. The store cannot be used
+    * afterwards.
+    **************************************************************************** **/
+  public synchronized void close() throws IOException {
+    if (!temporary)
+      pool.flush();
+    channel.close();
+    if (temporary)
+      Files.deleteIfExists(file);
+  }
+
+
+  /*GETTERS, a removed row reads as a patient without information*/
+
+  public String getName(int row) {
+    Record record = read(row);
+    return (record == null) ? null : record.name;
+  }
+
+  public int getPatientNumber(int row) {
+    return rowNumbers[row];
+  }
+
+  public int getAge(int row) {
+    Record record = read(row);
+    return (record == null) ? 0 : record.age;
+  }
+
+  public String getGender(int row) {
+    Record record = read(row);
+    return (record == null) ? null : record.gender;
+  }
+
+  public String getDiagnosis(int row) {
+    Record record = read(row);
+    return (record == null) ? null : record.diagnosis;
+  }
+
+  /** *****************************************************************************
+    * Returns a new list with the symptoms of the given row, changes to the list are
+    * not reflected in the store. Only this method reads the symptom tree.
+    * @params row
+    **************************************************************************** **/
+  public LinkedList<String> getSymptoms(int row) {
+    Cached<LinkedList<String>> hit = symptomCache.get(row % SYMPTOM_CACHE_SIZE);
+    if (hit != null && hit.row == row)
+      return new LinkedList<String>(hit.value);
+    synchronized (this) {
+      hit = symptomCache.get(row % SYMPTOM_CACHE_SIZE);
+      if (hit != null && hit.row == row)
+        return new LinkedList<String>(hit.value);
+      LinkedList<String> symptoms;
+      try {
+        byte[] bytes = symptomLists.get(rowNumbers[row]);
+        if (bytes == null)
+          return new LinkedList<String>();
+        symptoms = decodeSymptoms(bytes);
+        symptomReads++;
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not read from " + file, e);
+      }
+      symptomCache.set(row % SYMPTOM_CACHE_SIZE, new Cached<LinkedList<String>>(row, symptoms));
+      return new LinkedList<String>(symptoms);
+    }
+  }
+
+
+  /*SETTERS, a removed row is left as it is*/
+
+  public synchronized void setName(int row, String newName) {
+    Record record = changing(row);
+    if (record != null) {
+      record.name = newName;
+      write(row, record);
+    }
+  }
+
+  public synchronized void setAge(int row, int newAge) {
+    Record record = changing(row);
+    if (record != null) {
+      record.age = newAge;
+      write(row, record);
+    }
+  }
+
+  public synchronized void setGender(int row, String newGender) {
+    Record record = changing(row);
+    if (record != null) {
+      record.gender = newGender;
+      write(row, record);
+    }
+  }
+
+  public synchronized void setDiagnosis(int row, String newDiagnosis) {
+    Record record = changing(row);
+    if (record != null) {
+      record.diagnosis = newDiagnosis;
+      write(row, record);
+    }
+  }
+
+  public synchronized void setSymptoms(int row, LinkedList<String> newSymptoms) {
+    //the symptoms of a removed row are gone from the tree and are not written back
+    if (read(row) == null)
+      return;
+    LinkedList<String> symptoms = new LinkedList<String>(newSymptoms);
+    try {
+      symptomLists.put(rowNumbers[row], encodeSymptoms(rowNumbers[row], symptoms));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not write to " + file, e);
+    }
+    symptomCache.set(row % SYMPTOM_CACHE_SIZE, new Cached<LinkedList<String>>(row, symptoms));
+  }
+
+
+  //helper methods
+
+  /** *****************************************************************************
+    * Returns the demographic record of the given row, or null if the patient was
+    * removed. Only a read that misses the cache locks the store.
+    * @params row
+    **************************************************************************** **/
+  private Record read(int row) {
+    Cached<Record> hit = recordCache.get(row % RECORD_CACHE_SIZE);
+    if (hit != null && hit.row == row)
+      return hit.value;
+    synchronized (this) {
+      hit = recordCache.get(row % RECORD_CACHE_SIZE);
+      if (hit != null && hit.row == row)
+        return hit.value;
+      Record record;
+      try {
+        byte[] bytes = records.get(rowNumbers[row]);
+        record = (bytes == null) ? null : Record.decode(rowNumbers[row], bytes);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not read from " + file, e);
+      }
+      recordCache.set(row % RECORD_CACHE_SIZE, new Cached<Record>(row, record));
+      return record;
+    }
+  }
+
+  /** *****************************************************************************
+    * Returns a copy of the record of the given row to be changed, or null if the
+    * patient was removed. The cached record is only replaced once the copy is
+    * written.
+    * @params row
+    **************************************************************************** **/
+  private Record changing(int row) {
+    Record record = read(row);
+    return (record == null) ? null : record.copy();
+  }
+
+  private void write(int row, Record record) {
+    try {
+      //encodes before anything is written, a record too large for the tree throws here
+      byte[] bytes = record.encode();
+      records.put(rowNumbers[row], bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not write to " + file, e);
+    }
+    recordCache.set(row % RECORD_CACHE_SIZE, new Cached<Record>(row, record));
+  }
+
+  /** *****************************************************************************
+    * Returns the symptoms as they are kept in the symptom tree: their number followed
+    * by their UTF forms
+    * @params number
+    * @params symptoms
+    **************************************************************************** **/
+  private static byte[] encodeSymptoms(int number, LinkedList<String> symptoms) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeShort(symptoms.size());
+    for (String symptom : symptoms)
+      out.writeUTF(symptom);
+    return checkSize(number, bytes);
+  }
+
+  private static LinkedList<String> decodeSymptoms(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    LinkedList<String> symptoms = new LinkedList<String>();
+    for (int i = in.readShort(); i > 0; i--)
+      symptoms.add(in.readUTF());
+    return symptoms;
+  }
+
+  private static byte[] checkSize(int number, ByteArrayOutputStream bytes) {
+    if (bytes.size() > BPlusTree.MAX_VALUE_SIZE)
+      throw new IllegalArgumentException("The information of patient " + number + " takes more than "
+                                           + BPlusTree.MAX_VALUE_SIZE + " bytes");
+    return bytes.toByteArray();
+  }
+
+  /** *****************************************************************************
+    * A decoded value of a row in one of the caches. A cached record or list is never
+    * changed, a change caches a new one.
+    *************************************************************************** **/
+  private static class Cached<T> {
+    final int row;
+    final T value;
+
+    Cached(int row, T value) {
+      this.row = row;
+      this.value = value;
+    }
+  }
+
+  /** *****************************************************************************
+    * The demographics of a patient as they are kept in the record tree: the age,
+    * then the name, gender and diagnosis. Strings are written as a flag telling
+    * whether they are null followed by their UTF form.
+    *************************************************************************** **/
+  private static class Record {
+    int number;
+    String name;
+    int age;
+    String gender;
+    String diagnosis;
+
+    Record copy() {
+      Record copy = new Record();
+      copy.number = number;
+      copy.name = name;
+      copy.age = age;
+      copy.gender = gender;
+      copy.diagnosis = diagnosis;
+      return copy;
+    }
+
+    byte[] encode() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(age);
+      writeString(out, name);
+      writeString(out, gender);
+      writeString(out, diagnosis);
+      return checkSize(number, bytes);
+    }
+
+    static Record decode(int number, byte[] bytes) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      Record record = new Record();
+      record.number = number;
+      record.age = in.readInt();
+      record.name = readString(in);
+      record.gender = readString(in);
+      record.diagnosis = readString(in);
+      return record;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+      out.writeBoolean(s != null);
+      if (s != null)
+        out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+      return in.readBoolean() ? in.readUTF() : null;
+    }
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) throws Exception {
+    DiskPatientStore store = new DiskPatientStore();
+    HospitalRecords BMC = new HospitalRecords("Boston Medical Center", store);
+    BMC.addPatient(new Patient("John Smith", 36, "male", "major depressive disorder", "diminished interest,weight loss"));
+    BMC.addPatient(new Patient("Carry Roy", 21, "female", "bipolar disorder", "manic episode,overtalkativeness"));
+    BMC.addPatient(new Patient("Mark Jones", 23, "male", "schizophrenia", "delusions,hallucinations"));
+    BMC.getPatient("John Smith").setAge(37);
+    BMC.getPatient("Mark Jones").addSymptoms("insomnia");
+    BMC.removePatient("Carry Roy");
+    System.out.println("Hospital kept on disk (John Smith aged 37, Mark Jones with insomnia):" + BMC);
+    System.out.println("Males (2): " + BMC.getPatientsOfGender("male").size());
+
+    //a view of a removed patient changes nothing, and a name too long for a record leaves the record as it was
+    Patient removed = store.getPatient(BMC, 1);
+    removed.setAge(50);
+    removed.addSymptoms("fatigue");
+    System.out.println("Removed patient left alone (0, []): " + store.getAge(1) + ", " + store.getSymptoms(1));
+    char[] longName = new char[BPlusTree.MAX_VALUE_SIZE];
+    Arrays.fill(longName, 'x');
+    try {
+      store.setName(0, new String(longName));
+      System.out.println("Kept a name longer than a record");
+    } catch (IllegalArgumentException e) {
+      System.out.println("Refused: " + e.getMessage());
+    }
+    System.out.println("Name still read back (John Smith): " + store.getName(0));
+
+    //a patient of a hospital in memory added to the disk store stays with its own hospital
+    HospitalRecords inHeap = new HospitalRecords("Tufts Medical Center");
+    inHeap.addPatient(new Patient("Ann Lee", 45, "female", "schizophrenia", "delusions"));
+    BMC.addPatient(inHeap.getPatient("Ann Lee"));
+    inHeap.getPatient("Ann Lee").setAge(46);
+    System.out.println("Age changed in the first hospital only (46, 45): " + inHeap.getPatient("Ann Lee").getAge() + ", "
+                         + BMC.getPatient("Ann Lee").getAge());
+    store.close();
+
+    //a large hospital with a cache of 256 pages, 2 MB, gives the same answers as one in memory
+    String[] disorders = {"schizophrenia", "bipolar disorder", "major depressive disorder"};
+    String[] symptoms = {"delusions", "hallucinations", "insomnia", "fatigue", "weight loss", "manic episode"};
+    LinkedList<Patient> patients = new LinkedList<Patient>();
+    Random random = new Random(6);
+    for (int i = 0; i < 200000; i++)
+      patients.add(new Patient("Patient " + i, random.nextInt(90), (i % 2 == 0) ? "female" : "male", disorders[random.nextInt(3)],
+                               symptoms[random.nextInt(6)] + "," + symptoms[random.nextInt(6)]));
+    HospitalRecords inMemory = new HospitalRecords("Massachusetts General Hospital", new ColumnarPatientStore());
+    inMemory.addPatients(patients);
+
+    File file = File.createTempFile("patients", ".btree");
+    DiskPatientStore small = new DiskPatientStore(file.getPath(), 256);
+    HospitalRecords onDisk = new HospitalRecords("Massachusetts General Hospital", small);
+    long start = System.nanoTime();
+    onDisk.addPatients(patients);
+    System.out.println("Added 200000 patients in " + (System.nanoTime() - start) / 1000000 + " ms, file of "
+                         + small.getFileSize() / (1 << 20) + " MB");
+    for (int i = 0; i < 200000; i += 7) {
+      onDisk.getPatient("Patient " + i).setAge(i % 90);
+      inMemory.getPatient("Patient " + i).setAge(i % 90);
+    }
+    for (int i = 0; i < 200000; i += 13) {
+      onDisk.removePatient("Patient " + i);
+      inMemory.removePatient("Patient " + i);
+    }
+
+    start = System.nanoTime();
+    PatientQuery query = new PatientQuery().withDisorder("schizophrenia").withAgeRange(20, 40).withSymptom("insomnia");
+    int sameFiles = 0;
+    int checked = 0;
+    Iterator<Patient> expected = inMemory.findPatients(query).iterator();
+    for (Patient p : onDisk.findPatients(query)) {
+      if (p.toString().equals(expected.next().toString()))
+        sameFiles++;
+      checked++;
+    }
+    System.out.println("Same search results as in memory (" + checked + "): " + sameFiles + ", read in "
+                         + (System.nanoTime() - start) / 1000000 + " ms");
+    System.out.println("Same patients (true): " + (onDisk.getNumPatients() == inMemory.getNumPatients()));
+
+    //a demographic scan over many patients never reads a symptom list
+    long symptomReads = small.getSymptomReads();
+    start = System.nanoTime();
+    long ages = 0;
+    int scanned = 0;
+    for (Patient p : onDisk.findPatients(new PatientQuery().withGender("female").withAgeRange(30, 60))) {
+      ages += p.getAge() + p.getDiagnosis().length();
+      scanned++;
+    }
+    System.out.println("Scanned " + scanned + " patients by age and gender in " + (System.nanoTime() - start) / 1000000
+                         + " ms, symptom lists read (0): " + (small.getSymptomReads() - symptomReads));
+    System.out.println("Cache hit rate: " + Math.round(small.getCacheHitRate() * 100) + "%");
+
+    //readers of the same patients on several threads, most of their reads are answered by the caches
+    final HospitalRecords shared = onDisk;
+    final HospitalRecords expectedHospital = inMemory;
+    final int[] different = new int[4];
+    Thread[] readers = new Thread[4];
+    start = System.nanoTime();
+    for (int t = 0; t < readers.length; t++) {
+      final int reader = t;
+      readers[t] = new Thread(new Runnable() {
+        public void run() {
+          for (int pass = 0; pass < 5; pass++)
+            for (int i = 1; i < 200000; i += 13 * 5 + reader) {
+              Patient p = shared.getPatient("Patient " + i);
+              if (p != null && !p.toString().equals(expectedHospital.getPatient("Patient " + i).toString()))
+                different[reader]++;
+            }
+        }
+      });
+      readers[t].start();
+    }
+    for (Thread reader : readers)
+      reader.join();
+    System.out.println("Patients read differently on four threads (0): "
+                         + (different[0] + different[1] + different[2] + different[3]) + ", in "
+                         + (System.nanoTime() - start) / 1000000 + " ms");
+    small.close();
+    file.delete();
+  }
+
+}
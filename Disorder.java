@@ -27,6 +27,10 @@ public class Disorder {
   //linked list of critera, each housing a linked list of questions which are strings
   protected LinkedList<LinkedList<String>> criteriaLL; 
   protected int criteriaCount; //counter
+  protected LinkedList<CriterionRule> rulesLL; //rules of the criteria that can be checked by the program
+  private volatile boolean readOnly; //set once the disorder is shared through the DisorderRegistry
+  private volatile LinkedBinaryTree<String> tree; //compiled from the criteria when first needed
+  private volatile DecisionTable decisionTable; //compiled from the tree when first needed
   
   
   /** *****************************************************************************
@@ -42,19 +46,26 @@ public class Disorder {
   public Disorder(String filename) throws FileNotFoundException {
     symptomsLL = new LinkedList<String>();
     criteriaLL = new LinkedList<LinkedList<String>>();
+    rulesLL = new LinkedList<CriterionRule>();
     
     try {
       Scanner s = new Scanner(new File(filename));
       disorderName = s.nextLine(); //name in first line of file
       
       while (!(s.hasNext("#"))) {
-        symptomsLL.add(s.nextLine()); //reads in symptoms until "#"
+        String symptom = s.nextLine(); //reads in symptoms until "#"
+        symptomsLL.add(symptom);
+        SymptomVocabulary.getDefault().getId(symptom); //seeds the shared symptom ids
       }
       s.nextLine();
       
-      //reads in criteria on each new line using helper method
+      //reads in criteria on each new line using helper method, lines starting with "@" are rules
       while (s.hasNextLine()) {
-        addCriteria(s.nextLine());
+        String line = s.nextLine();
+        if (line.startsWith("@"))
+          addRule(line);
+        else
+          addCriteria(line);
       }
       s.close();
     }
@@ -72,6 +83,7 @@ public class Disorder {
     * @param questions, the String of the entire criteria
     **************************************************************************** **/
   public void addCriteria(String questions) {
+    checkChangeable();
     LinkedList<String> questionsLL = new LinkedList<String>();
     String[] questionsArray = questions.split(";");
     
@@ -86,6 +98,8 @@ public class Disorder {
     } else {
       criteriaLL.add(questionsLL); //add questions to the criteria
       criteriaCount++; //increment counter
+      tree = null; //compiled again with the new criteria
+      decisionTable = null;
     }
   }
   
@@ -97,6 +111,7 @@ public class Disorder {
     * @param criteriaToRemove, the criteria to be removed
     **************************************************************************** **/
   public void removeCriteria(char criteriaToRemove) {
+    checkChangeable();
     //checks that the criteria has already been added using the counter
     //int counter added/subtracted to get the char of the criteria (i.e. Criteria A)
     if ((criteriaToRemove > (char)(criteriaCount + 65)) || (criteriaToRemove < 65)) {
@@ -104,9 +119,97 @@ public class Disorder {
     } else {
       criteriaLL.remove(criteriaToRemove-65); //remove the criteria from the list
       criteriaCount--; //decrement counter
+      
+      //drops the rules of the criteria and moves the rules of the later criteria up a letter
+      ListIterator<CriterionRule> it = rulesLL.listIterator();
+      while (it.hasNext()) {
+        CriterionRule rule = it.next();
+        if (rule.getCriterion() == criteriaToRemove - 65)
+          it.remove();
+        else if (rule.getCriterion() > criteriaToRemove - 65)
+          it.set(rule.forCriterion(rule.getCriterion() - 1));
+      }
+      tree = null; //compiled again without the criteria
+      decisionTable = null;
     }
   }
   
+  /** *****************************************************************************
+    * Adds a rule to a criteria of the disorder, given as a rule line of a disorder
+    * file such as "@A 2 of 1-5" (see CriterionRule). Invalid rules are not added.
+    * 
+    * @param rule, the rule line
+    **************************************************************************** **/
+  public void addRule(String rule) {
+    checkChangeable();
+    try {
+      rulesLL.add(CriterionRule.parse(rule, symptomsLL.size()));
+    } catch (IllegalArgumentException e) {
+      System.out.println("ERROR: " + e.getMessage());
+    }
+  }
+  
+  /** *****************************************************************************
+    * Gets the rules of all criteria, in the order they were added.
+    * 
+    * @return LinkedList<CriterionRule> of rules for the disorder
+    **************************************************************************** **/
+  public LinkedList<CriterionRule> getRules() {
+    return new LinkedList<CriterionRule>(rulesLL);
+  }
+  
+  /** *****************************************************************************
+    * Gets the rules of one criteria.
+    * 
+    * @param criterion, the letter of the criteria
+    * @return CriterionRule[] rules of the criteria, empty if it has none
+    **************************************************************************** **/
+  public CriterionRule[] getRules(char criterion) {
+    ArrayList<CriterionRule> rules = new ArrayList<CriterionRule>();
+    for (CriterionRule rule : rulesLL) {
+      if (rule.getCriterionLetter() == Character.toUpperCase(criterion))
+        rules.add(rule);
+    }
+    return rules.toArray(new CriterionRule[rules.size()]);
+  }
+  
+  /** *****************************************************************************
+    * Checks the present symptoms against the rules of a criteria. A criteria
+    * without rules is left to the user and always passes.
+    * 
+    * @param criterion, the letter of the criteria
+    * @param present, bit i set if symptom i + 1 of the disorder is present
+    * @return boolean determining if the symptoms meet every rule of the criteria
+    **************************************************************************** **/
+  public boolean meetsRules(char criterion, long present) {
+    return CriterionRule.allMetBy(getRules(criterion), present);
+  }
+  
+  /** *****************************************************************************
+    * Gets the symptoms of the disorder found in the given list as a mask, bit i
+    * set for symptom i + 1. Symptoms are compared ignoring case and surrounding
+    * spaces, symptoms after the first 64 are left out.
+    * 
+    * @param symptoms, the symptoms present
+    * @return long mask of the symptoms of the disorder present
+    **************************************************************************** **/
+  public long getSymptomMask(Collection<String> symptoms) {
+    long present = 0;
+    int i = 0;
+    for (String listed : symptomsLL) {
+      if (i == CriterionRule.MAX_SYMPTOMS)
+        break;
+      for (String symptom : symptoms) {
+        if (listed.trim().equalsIgnoreCase(symptom.trim())) {
+          present |= 1L << i;
+          break;
+        }
+      }
+      i++;
+    }
+    return present;
+  }
+  
   /** *****************************************************************************
     * Gets the name of the disorder.
     * 
@@ -118,20 +221,41 @@ public class Disorder {
   
   
   /** *****************************************************************************
-    * Gets the criteria for the disorder.
+    * Marks the disorder as shared, after which its criteria can no longer be added
+    * or removed
+    **************************************************************************** **/
+  void makeReadOnly() {
+    readOnly = true;
+  }
+  
+  /** *****************************************************************************
+    * Refuses a change to a shared disorder
+    **************************************************************************** **/
+  private void checkChangeable() {
+    if (readOnly)
+      throw new UnsupportedOperationException("The shared disorder " + disorderName + " cannot be changed");
+  }
+  
+  /** *****************************************************************************
+    * Gets the criteria for the disorder. The list is a copy that can be used up by
+    * the caller without changing the disorder.
     * 
     * @return LinkedList<LinkedList<String>> of criteria for the disorder
     **************************************************************************** **/
   public LinkedList<LinkedList<String>> getCriteria() {
-    return criteriaLL;
+    LinkedList<LinkedList<String>> criteriaCopy = new LinkedList<LinkedList<String>>();
+    for (LinkedList<String> questions : criteriaLL)
+      criteriaCopy.add(new LinkedList<String>(questions));
+    return criteriaCopy;
   }
   /** *****************************************************************************
-    * Gets the symptoms for the disorder.
+    * Gets the symptoms for the disorder. The list is a copy that can be used up by
+    * the caller without changing the disorder.
     * 
     * @return LinkedList<String> of symptoms for the disorder
     **************************************************************************** **/
   public LinkedList<String> getSymptoms() {
-    return symptomsLL;
+    return new LinkedList<String>(symptomsLL);
   }
   
   /** *****************************************************************************
@@ -144,22 +268,43 @@ public class Disorder {
   }
   
   /** *****************************************************************************
-    * Gets the BinaryTree for the disorder from a DisorderExpert.
+    * Gets the BinaryTree for the disorder, compiled from its criteria by the
+    * DisorderExpert the first time it is asked for.
     * 
     * @return BinaryTree<String> binary decision tree for the disorder
     **************************************************************************** **/
   public BinaryTree<String> getTree() {
-    //creates new disorder expert
-    DisorderExpert de = new DisorderExpert();
-    
-    if(disorderName.toLowerCase().equals("schizophrenia"))
-      return de.getSchiTree();
-    
-    if(disorderName.toLowerCase().equals("major depressive disorder"))
-      return de.getMajDepTree();
-    
-    //returns appropriate tree based on disorder name
-    else return null; // return null if no disorder with that name is found
+    return getCompiledTree();
+  }
+  
+  /** *****************************************************************************
+    * Gets the decision tree compiled from the criteria, compiling it if the
+    * criteria have changed since it was last compiled.
+    * 
+    * @return LinkedBinaryTree<String> binary decision tree for the disorder
+    **************************************************************************** **/
+  LinkedBinaryTree<String> getCompiledTree() {
+    LinkedBinaryTree<String> t = tree;
+    if (t == null) {
+      t = DisorderExpert.compileTree(this);
+      tree = t;
+    }
+    return t;
+  }
+  
+  /** *****************************************************************************
+    * Gets the decision tree of the disorder compiled into a DecisionTable, which
+    * walks a diagnosis without making any objects.
+    * 
+    * @return DecisionTable decision table for the disorder
+    **************************************************************************** **/
+  public DecisionTable getDecisionTable() {
+    DecisionTable t = decisionTable;
+    if (t == null) {
+      t = new DecisionTable(getCompiledTree());
+      decisionTable = t;
+    }
+    return t;
   }
   
   /** *****************************************************************************
@@ -177,12 +322,16 @@ public class Disorder {
     }
     s+= "\n";
     
-    //add all criteria
+    //add all criteria, with their rules
     for (int j = 0; j < criteriaLL.size(); j++) {
       s += "\nCriteria " + (char)(j + 65);
       for (int k = 0; k < criteriaLL.get(j).size(); k++) {
         s += "\n  " + criteriaLL.get(j).get(k);
       }
+      CriterionRule[] rules = getRules((char)(j + 65));
+      for (int k = 0; k < rules.length; k++) {
+        s += "\n  " + rules[k];
+      }
       s += "\n";
     }
     return s;
@@ -197,6 +346,19 @@ public class Disorder {
       Disorder e = new Disorder("majorDepressiveDisorder.txt");
       System.out.println(e);
       
+      //the rules of criteria A checked against the symptoms of a patient
+      LinkedList<String> patientSymptoms = new LinkedList<String>();
+      patientSymptoms.add("Hallucinations");
+      patientSymptoms.add("negative symptoms ");
+      long present = d.getSymptomMask(patientSymptoms);
+      System.out.println("Symptoms of the patient as a mask (10010): " + Long.toBinaryString(present));
+      System.out.println("Rules of criteria A: " + Arrays.toString(d.getRules('A')));
+      System.out.println("Criteria A met (true): " + d.meetsRules('A', present));
+      System.out.println("Criteria A met without hallucinations (false): " + d.meetsRules('A', present & ~0x2L));
+      System.out.println("Criteria B has no rules, always met (true): " + d.meetsRules('B', 0));
+      d.removeCriteria('A');
+      System.out.println("Rules left after removing criteria A (0): " + d.getRules().size());
+      
     } catch (Exception e) {
       System.out.println(e);
     }
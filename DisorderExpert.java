@@ -26,9 +26,11 @@ public class DisorderExpert {
   //trees for disorders
   private LinkedBinaryTree<String> schizophreniaChecker;
   private LinkedBinaryTree<String> majDepressiveChecker;
-  //strings to be used for end nodes (leaves)
-  String yes = "The patient fits the criteria for this disorder.";
-  String no = "The patient DOES NOT fit the criteria for this disorder."; 
+  //strings to be used for end nodes (leaves), the panels compare leaves against these very strings
+  public static final String YES = "The patient fits the criteria for this disorder.";
+  public static final String NO = "The patient DOES NOT fit the criteria for this disorder.";
+  String yes = YES;
+  String no = NO; 
   
   /** *****************************************************************************
     * Constructor
@@ -47,29 +49,40 @@ public class DisorderExpert {
     }
   }
   
+  /** *****************************************************************************
+    * Compiles the decision tree of any disorder from its criteria. Each criteria
+    * becomes a node asking its questions: the left child is the "no" leaf, the right
+    * child is the node of the next criteria, and the right child of the last criteria
+    * is the "yes" leaf. A disorder without criteria, such as one whose file could not
+    * be read, compiles to the "no" leaf alone, since nothing shows a patient has it.
+    *
+    * @params d, the Disorder whose criteria are compiled
+    * @return LinkedBinaryTree<String> decision tree of the disorder
+    **************************************************************************** **/
+  public static LinkedBinaryTree<String> compileTree(Disorder d) {
+    //copy of criteria, used up from the last criteria back to the first
+    LinkedList<LinkedList<String>> criteria = d.getCriteria();
+    if (criteria.isEmpty())
+      return new LinkedBinaryTree<String>(NO);
+    LinkedBinaryTree<String> tree = new LinkedBinaryTree<String>(YES);
+    while (!criteria.isEmpty())
+      tree = new LinkedBinaryTree<String>(criteria.removeLast().toString(), new LinkedBinaryTree<String>(NO), tree);
+    return tree;
+  }
+  
   /** *****************************************************************************
     * Makes a tree based on the criteria of schizophrenia.
     *
     * @throws FileNotFoundException
     * @return LinkedBinaryTree<String> schizophrenia tree
     **************************************************************************** **/
-  public LinkedBinaryTree<String> makeSchiTree() throws FileNotFoundException {
+  private LinkedBinaryTree<String> makeSchiTree() throws FileNotFoundException {
     try{
-      //makes a new disorder schizophrenia and add it to list of disorders
-      Disorder schizophrenia = new Disorder("schizophrenia.txt"); 
+      //takes the shared disorder schizophrenia and add it to list of disorders
+      Disorder schizophrenia = DisorderRegistry.getDefault().getDisorder(DisorderRegistry.SCHIZOPHRENIA_FILE); 
       addToList(schizophrenia);
-      //copy of criteria
-      LinkedList<LinkedList<String>> schiCopy = schizophrenia.getCriteria();
-      
-      LinkedBinaryTree<String> critA, critB, critC, critD, critE, critF;
-      critF = new LinkedBinaryTree<String>(schiCopy.removeLast().toString(), new LinkedBinaryTree(no), new LinkedBinaryTree(yes));
-      critE = new LinkedBinaryTree<String>(schiCopy.removeLast().toString(), new LinkedBinaryTree(no), critF);
-      critD = new LinkedBinaryTree<String>(schiCopy.removeLast().toString(), new LinkedBinaryTree(no), critE);
-      critC = new LinkedBinaryTree<String>(schiCopy.removeLast().toString(), new LinkedBinaryTree(no), critD);
-      critB = new LinkedBinaryTree<String>(schiCopy.removeLast().toString(), new LinkedBinaryTree(no), critC);
-      critA = new LinkedBinaryTree<String>(schiCopy.removeLast().toString(), new LinkedBinaryTree(no), critB);
       
-      return critA; //returns tree
+      return schizophrenia.getCompiledTree(); //returns tree, compiled once per disorder
       
     } catch (Exception e) {
       System.out.println(e);
@@ -83,22 +96,13 @@ public class DisorderExpert {
     * @throws FileNotFoundException
     * @return LinkedBinaryTree<String> major depressive disorder tree
     **************************************************************************** **/
-  public LinkedBinaryTree<String> makeMajDepTree() throws FileNotFoundException {
+  private LinkedBinaryTree<String> makeMajDepTree() throws FileNotFoundException {
     try{
-      //makes a new disorder schizophrenia and add it to list of disorders
-      Disorder majDepressive = new Disorder("majorDepressiveDisorder.txt");
+      //takes the shared disorder major depressive disorder and add it to list of disorders
+      Disorder majDepressive = DisorderRegistry.getDefault().getDisorder(DisorderRegistry.MAJOR_DEPRESSIVE_DISORDER_FILE);
       addToList(majDepressive);
-      //copy of criteria
-      LinkedList<LinkedList<String>> majDepCopy = majDepressive.getCriteria();
-      
-      LinkedBinaryTree<String> critA, critB, critC, critD, critE;
-      critE = new LinkedBinaryTree<String>(majDepCopy.removeLast().toString(), new LinkedBinaryTree(no), new LinkedBinaryTree(yes));
-      critD = new LinkedBinaryTree<String>(majDepCopy.removeLast().toString(), new LinkedBinaryTree(no), critE);
-      critC = new LinkedBinaryTree<String>(majDepCopy.removeLast().toString(), new LinkedBinaryTree(no), critD);
-      critB = new LinkedBinaryTree<String>(majDepCopy.removeLast().toString(), new LinkedBinaryTree(no), critC);
-      critA = new LinkedBinaryTree<String>(majDepCopy.removeLast().toString(), new LinkedBinaryTree(no), critB);
       
-      return critA; //returns tree
+      return majDepressive.getCompiledTree(); //returns tree, compiled once per disorder
       
     } catch (Exception e) {
       System.out.println(e);
@@ -125,12 +129,12 @@ public class DisorderExpert {
   }
   
   /** *****************************************************************************
-    * Returns the list of disorders that have been added to the expert.
+    * Returns a copy of the list of disorders that have been added to the expert.
     * 
     * @returns LinkedList<Disorder> list of disorders added
     **************************************************************************** **/
   public LinkedList<Disorder> getDisorderList() {
-    return disorderList;
+    return new LinkedList<Disorder>(disorderList);
   }
   
   /** *****************************************************************************
@@ -155,26 +159,27 @@ public class DisorderExpert {
   }
   
   /** *****************************************************************************
-    * Traverses a binary tree and uses its recursive properties to check whether 
-    * the diagnosis for a certain disorder is fulfilled or not based on the 
+    * Walks the decision table of the disorder, asking its questions, to check
+    * whether the diagnosis for the disorder is fulfilled or not based on the
     * disorder's criteria.
     * 
     *@params d, Disorder to check
     **************************************************************************** **/
   public void checkDiagnosis(Disorder d) {
     Scanner scan = new Scanner(System.in);
-    LinkedBinaryTree current = schizophreniaChecker;
+    DecisionTable table = d.getDecisionTable();
+    int current = DecisionTable.ROOT;
     System.out.println("I will check if the diagnosis is correct.");
     
-    //while the tree is not at a leaf
-    while(current.size() > 1) {
-      System.out.println(current.getRootElement());
+    //while the walk is not at a leaf
+    while(!table.isLeaf(current)) {
+      System.out.println(table.getElement(current));
       if(scan.nextLine().equalsIgnoreCase("N"))
-        current = current.getLeft(); //if N for no, go to left child of current node
+        current = table.getNo(current); //if N for no, go to left child of current node
       else
-        current = current.getRight(); //otherwise, go to right child of current node
+        current = table.getYes(current); //otherwise, go to right child of current node
     }
-    System.out.println(current.getRootElement());
+    System.out.println(table.getElement(current));
   }
   
   /** *****************************************************************************
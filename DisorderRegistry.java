@@ -0,0 +1,301 @@
+/* FILENAME: DisorderRegistry.java
+ * AUTHOR: Yuyu Li
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Reads every disorder file once and hands the same disorders and decision
+ * trees to every part of the program that needs them.
+ *
+ * */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import javafoundations.*;
+
+/** *****************************************************************************
+  * A DisorderRegistry class keeps the disorders read from their files, by file name,
+  * and the DisorderExpert holding their decision trees. A disorder file is read the
+  * first time it is asked for and the expert is made the first time it is needed;
+  * afterwards the same objects are handed out, from any thread.
+  *
+  * Any number of disorder files, or a whole directory of them, can be loaded at once.
+  * The files are read and their trees compiled by one thread per core, so that
+  * loading many disorders takes about as long as the slowest core's share of them.
+  * Two threads asking for the same file wait for the same reading of it, two threads
+  * asking for different files read them at the same time.
+  *
+  * The disorders and trees are shared, so they are read only: a disorder hands out
+  * copies of its symptoms and criteria, refuses new criteria once it is in the
+  * registry, and the trees are handed out as BinaryTrees, which cannot be changed.
+  *
+  * @author Yuyu Li
+  *************************************************************************** **/
+public class DisorderRegistry {
+
+  //files of the disorders that have decision trees
+  public static final String SCHIZOPHRENIA_FILE = "schizophrenia.txt";
+  public static final String MAJOR_DEPRESSIVE_DISORDER_FILE = "majorDepressiveDisorder.txt";
+
+  //registry used by the whole program
+  private static final DisorderRegistry DEFAULT = new DisorderRegistry();
+
+  //instance variables
+  //reading of each file by file name, done or still going on
+  private final ConcurrentHashMap<String, FutureTask<Disorder>> disorders = new ConcurrentHashMap<String, FutureTask<Disorder>>();
+  private volatile DisorderExpert expert; //null until first needed
+
+  /** *****************************************************************************
+    * Returns the registry shared by the whole program
+    **************************************************************************** **/
+  public static DisorderRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  /** *****************************************************************************
+    * Returns the disorder read from the given file, reading the file the first time,
+    * or null if no disorder could be read from it
+    * @params fileName
+    **************************************************************************** **/
+  public Disorder getDisorder(String fileName) {
+    return resultOf(readingOf(fileName, null));
+  }
+  
+  /** *****************************************************************************
+    * Returns the disorders read from the given files, in the order of the files. The
+    * files not read yet are read at the same time, one thread per core, and each
+    * disorder has its tree compiled before it is returned.
+    * @params fileNames
+    **************************************************************************** **/
+  public LinkedList<Disorder> loadFiles(Collection<String> fileNames) {
+    int threads = Math.max(1, Math.min(fileNames.size(), Runtime.getRuntime().availableProcessors()));
+    ExecutorService readers = Executors.newFixedThreadPool(threads);
+    try {
+      //hands every file to the readers first, then waits for them in order
+      LinkedList<FutureTask<Disorder>> readings = new LinkedList<FutureTask<Disorder>>();
+      for (String fileName : fileNames)
+        readings.add(readingOf(fileName, readers));
+      
+      LinkedList<Disorder> loaded = new LinkedList<Disorder>();
+      for (FutureTask<Disorder> reading : readings) {
+        Disorder d = resultOf(reading);
+        if (d != null)
+          loaded.add(d);
+      }
+      return loaded;
+    } finally {
+      readers.shutdown(); //the threads end once the files handed to them are read
+    }
+  }
+  
+  /** *****************************************************************************
+    * Returns the disorders read from every ".txt" file of the given directory, in
+    * the order of the file names. The directory should hold disorder files only, a
+    * file without a name or any criteria is not a disorder and is left out.
+    * @params directory
+    **************************************************************************** **/
+  public LinkedList<Disorder> loadDirectory(String directory) {
+    File[] files = new File(directory).listFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return file.isFile() && file.getName().endsWith(".txt");
+      }
+    });
+    if (files == null) {
+      System.out.println("There is no directory " + directory);
+      return new LinkedList<Disorder>();
+    }
+    Arrays.sort(files);
+    
+    LinkedList<String> fileNames = new LinkedList<String>();
+    for (int i = 0; i < files.length; i++)
+      fileNames.add(files[i].getPath());
+    return loadFiles(fileNames);
+  }
+  
+  /** *****************************************************************************
+    * Returns the reading of the given file, starting it if the file has not been
+    * asked for yet: on the given readers, or on this thread if there are none. A
+    * file that gives a disorder without a name or criteria, such as a missing file,
+    * fails to read, so that it is never diagnosed.
+    * @params fileName, readers
+    **************************************************************************** **/
+  private FutureTask<Disorder> readingOf(final String fileName, Executor readers) {
+    FutureTask<Disorder> reading = disorders.get(fileName);
+    if (reading != null)
+      return reading;
+    
+    FutureTask<Disorder> newReading = new FutureTask<Disorder>(new Callable<Disorder>() {
+      public Disorder call() throws Exception {
+        Disorder d = new Disorder(fileName);
+        if (d.getName() == null || d.getCriteriaCount() == 0)
+          throw new IllegalArgumentException("No disorder could be read from " + fileName);
+        d.makeReadOnly();
+        d.getDecisionTable(); //tree and table compiled by the reading thread, not by the first thread that needs them
+        return d;
+      }
+    });
+    //only one thread starts reading a file, the others take its reading and wait for it
+    reading = disorders.putIfAbsent(fileName, newReading);
+    if (reading != null)
+      return reading;
+    if (readers == null)
+      newReading.run();
+    else
+      readers.execute(newReading);
+    return newReading;
+  }
+  
+  /** *****************************************************************************
+    * Waits for a reading and returns its disorder, null if the file could not be read
+    * @params reading
+    **************************************************************************** **/
+  private static Disorder resultOf(FutureTask<Disorder> reading) {
+    try {
+      return reading.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      System.out.println(e.getCause());
+      return null;
+    }
+  }
+  
+  /** *****************************************************************************
+    * Returns the disorder expert holding the decision trees, making it the first time
+    **************************************************************************** **/
+  public DisorderExpert getExpert() {
+    DisorderExpert de = expert;
+    if (de != null)
+      return de;
+    synchronized (this) {
+      if (expert == null)
+        expert = new DisorderExpert();
+      return expert;
+    }
+  }
+
+  /** *****************************************************************************
+    * Returns the decision tree of the loaded disorder with the given name, null if no
+    * disorder with that name has been loaded
+    * @params disorderName
+    **************************************************************************** **/
+  public BinaryTree<String> getTree(String disorderName) {
+    for (FutureTask<Disorder> reading : disorders.values()) {
+      if (reading.isDone()) {
+        Disorder d;
+        try {
+          d = reading.get();
+        } catch (Exception e) {
+          continue; //a file that failed to read was reported when it was asked for
+        }
+        if (disorderName.equalsIgnoreCase(d.getName()))
+          return d.getTree();
+      }
+    }
+    return null;
+  }
+  
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) {
+    DisorderRegistry registry = getDefault();
+    Disorder schizophrenia = registry.getDisorder(SCHIZOPHRENIA_FILE);
+    System.out.println("Same disorder every time (true): " + (schizophrenia == registry.getDisorder(SCHIZOPHRENIA_FILE)));
+    System.out.println("Same tree every time (true): " + (schizophrenia.getTree() == schizophrenia.getTree()));
+
+    //what the panels do with their copies does not reach the shared disorder
+    schizophrenia.getCriteria().clear();
+    schizophrenia.getSymptoms().remove();
+    System.out.println("Criteria and symptoms left after changing copies (6, 5): " + schizophrenia.getCriteriaCount()
+                         + ", " + schizophrenia.getSymptoms().size());
+    try {
+      schizophrenia.addCriteria("Is the patient shared?");
+      System.out.println("A shared disorder was changed");
+    } catch (UnsupportedOperationException e) {
+      System.out.println("Changing a shared disorder is refused: " + e.getMessage());
+    }
+    System.out.println("Disorders of the expert (2, both with their criteria): " + registry.getExpert().getDisorderCount()
+                         + ", " + registry.getExpert().getDisorderList().getFirst().getCriteria().size());
+
+    //a missing file gives no disorder, and a disorder without criteria never fits
+    System.out.println("Disorder of a missing file (null): " + registry.getDisorder("no_such_disorder.txt"));
+    try {
+      Disorder empty = new Disorder("no_such_disorder.txt");
+      System.out.println("Disorder without criteria fits (false): "
+                           + (new DecisionTable(DisorderExpert.compileTree(empty)).evaluate(0L) == DecisionTable.FITS));
+    } catch (FileNotFoundException e) {
+      System.out.println(e);
+    }
+
+    //the trees asked for on every reset of the panels, which used to read both files and build both trees
+    long start = System.nanoTime();
+    try {
+      for (int i = 0; i < 200; i++) {
+        new Disorder(SCHIZOPHRENIA_FILE);
+        new Disorder(MAJOR_DEPRESSIVE_DISORDER_FILE);
+        new DisorderExpert().getSchiTree();
+      }
+    } catch (Exception e) {
+      System.out.println(e);
+    }
+    long rebuilt = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < 200; i++)
+      schizophrenia.getTree();
+    long shared = System.nanoTime() - start;
+    System.out.println("200 trees: rebuilt from the files in " + rebuilt / 1000000 + " ms, from the registry in "
+                         + shared / 1000 + " us");
+    System.out.println("Nodes of the compiled schizophrenia tree (6 criteria and 7 leaves, 13): " + schizophrenia.getTree().size());
+    
+    try {
+      loadingTest(200);
+    } catch (IOException e) {
+      System.out.println(e);
+    }
+  }
+  
+  /** *****************************************************************************
+    * Writes a directory of made up disorder files and loads it one file after the
+    * other and then with the readers of a new registry
+    * @params count, the number of disorder files
+    **************************************************************************** **/
+  private static void loadingTest(int count) throws IOException {
+    File directory = File.createTempFile("disorders", "");
+    directory.delete();
+    directory.mkdir();
+    LinkedList<String> fileNames = new LinkedList<String>();
+    for (int i = 0; i < count; i++) {
+      File file = new File(directory, "disorder" + (1000 + i) + ".txt");
+      PrintWriter out = new PrintWriter(new FileWriter(file));
+      out.println("Disorder " + i);
+      for (int j = 0; j < 20; j++)
+        out.println("symptom " + j + " of disorder " + i);
+      out.println("#");
+      for (int j = 0; j < 4 + i % 5; j++)
+        out.println("Has the patient had symptom " + j + "?;Has it lasted at least " + (i % 12 + 1) + " weeks?");
+      out.close();
+      fileNames.add(file.getPath());
+    }
+    
+    long start = System.nanoTime();
+    for (String fileName : fileNames)
+      DisorderExpert.compileTree(new Disorder(fileName));
+    long serial = System.nanoTime() - start;
+    
+    DisorderRegistry registry = new DisorderRegistry();
+    start = System.nanoTime();
+    LinkedList<Disorder> loaded = registry.loadDirectory(directory.getPath());
+    long parallel = System.nanoTime() - start;
+    System.out.println(count + " disorder files on " + Runtime.getRuntime().availableProcessors() + " cores: "
+                         + serial / 1000000 + " ms one after the other, " + parallel / 1000000 + " ms in parallel ("
+                         + loaded.size() + " loaded)");
+    System.out.println("First loaded and its tree (Disorder 0, 9 nodes): " + loaded.getFirst().getName() + ", "
+                         + registry.getTree("disorder 0").size());
+    
+    for (String fileName : fileNames)
+      new File(fileName).delete();
+    directory.delete();
+  }
+}
@@ -0,0 +1,142 @@
+/* FILENAME: HeapPatientStore.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: The default way HospitalRecords keeps its patients: every patient is kept
+ * as the Patient object that was added.
+ *
+ * */
+
+import java.util.*;
+
+/** *****************************************************************************
+  * A HeapPatientStore keeps one Patient object per row. The patients hold their own
+  * information, so the getters and setters of the store simply go through the
+  * stored Patient. A removed patient is detached from the hospital and dropped
+  * from its row, so that it can be garbage collected once nothing else holds it;
+  * searches still running over the row skip it, and views already handed out keep
+  * their information.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class HeapPatientStore implements PatientStore {
+
+  //instance variables, the array is replaced when it grows so that readers always see a filled copy
+  private volatile Patient[] rows = new Patient[16];
+  private int rowCount;
+
+  /** *****************************************************************************
+    * Stores the patient object itself. A patient that already belongs to a hospital
+    * is copied so that the two hospitals do not share it.
+    * @params hospital
+    * @params patient
+    **************************************************************************** **/
+  public int addPatient(HospitalRecords hospital, Patient patient) {
+    if (patient.isAttached())
+      patient = patient.copy();
+
+    if (rowCount == rows.length)
+      ensureCapacity(rowCount * 2);
+    
+    int row = rowCount++;
+    patient.attach(hospital, null, row);
+    rows[row] = patient;
+    return row;
+  }
+
+  /** *****************************************************************************
+    * Detaches the patient in the given row and lets go of it. The patient keeps its
+    * information but no longer reports changes to the hospital, and the row reads
+    * as a patient without information.
+    * @params row
+    **************************************************************************** **/
+  public void removePatient(int row) {
+    rows[row].detach();
+    rows[row] = null;
+  }
+
+  /** *****************************************************************************
+    * Returns the patient object in the given row, null if it was removed
+    * @params hospital
+    * @params row
+    **************************************************************************** **/
+  public Patient getPatient(HospitalRecords hospital, int row) {
+    return rows[row];
+  }
+
+  public void ensureCapacity(int capacity) {
+    if (capacity > rows.length)
+      rows = Arrays.copyOf(rows, capacity);
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+
+  /*GETTERS, a removed row reads as a patient without information*/
+
+  public String getName(int row) {
+    Patient p = rows[row];
+    return (p == null) ? null : p.getName();
+  }
+
+  public int getPatientNumber(int row) {
+    Patient p = rows[row];
+    return (p == null) ? -1 : p.getPatientNumber();
+  }
+
+  public int getAge(int row) {
+    Patient p = rows[row];
+    return (p == null) ? 0 : p.getAge();
+  }
+
+  public String getGender(int row) {
+    Patient p = rows[row];
+    return (p == null) ? null : p.getGender();
+  }
+
+  public String getDiagnosis(int row) {
+    Patient p = rows[row];
+    return (p == null) ? null : p.getDiagnosis();
+  }
+
+  public LinkedList<String> getSymptoms(int row) {
+    Patient p = rows[row];
+    return (p == null) ? new LinkedList<String>() : p.getSymptoms();
+  }
+
+
+  /*SETTERS, a removed row is left as it is*/
+
+  public void setName(int row, String newName) {
+    Patient p = rows[row];
+    if (p != null)
+      p.setName(newName);
+  }
+
+  public void setAge(int row, int newAge) {
+    Patient p = rows[row];
+    if (p != null)
+      p.setAge(newAge);
+  }
+
+  public void setGender(int row, String newGender) {
+    Patient p = rows[row];
+    if (p != null)
+      p.setGender(newGender);
+  }
+
+  public void setDiagnosis(int row, String newDiagnosis) {
+    Patient p = rows[row];
+    if (p != null)
+      p.setDiagnosis(newDiagnosis);
+  }
+
+  public void setSymptoms(int row, LinkedList<String> newSymptoms) {
+    Patient p = rows[row];
+    if (p != null)
+      p.setSymptoms(newSymptoms);
+  }
+
+}
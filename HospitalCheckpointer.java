@@ -0,0 +1,371 @@
+/* FILENAME: HospitalCheckpointer.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Keeps a hospital on disk as a snapshot plus the journal of the changes
+ * made since, taking a new snapshot in the background now and then so that the
+ * journal stays short and the program starts quickly however long it has been used.
+ *
+ * */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** *****************************************************************************
+  * A HospitalCheckpointer opens a hospital from its snapshot and journal and then
+  * takes checkpoints. The journal is written in numbered segments: the file with
+  * the journal's own name is segment 0, which is where journals were kept before
+  * there were segments, and segment n is the file with ".n" added to the name.
+  *
+  * A checkpoint moves the hospital on to a new segment, which only holds the write
+  * lock long enough to swap the journal and pin a HospitalVersion, and then writes a
+  * snapshot of that version while patients keep coming in. The snapshot therefore
+  * holds the hospital exactly as it was at the switch, and the new segment holds
+  * exactly the changes made after it, which are replayed on top of the snapshot
+  * after a restart. Once the snapshot is in place the segments it covers are
+  * deleted.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class HospitalCheckpointer {
+
+  //instance variables
+  private final HospitalRecords hospital;
+  private final Path snapshotFile;
+  private final Path journalFile;
+
+  private PatientJournal current; //segment the hospital records its changes in
+  private long currentSegment;
+  private long oldestSegment; //oldest segment still on disk
+
+  private final Object timer = new Object();
+  private volatile boolean running;
+  private Thread background;
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Takes in an opened hospital, its files, the oldest segment on disk and the
+    * segment the hospital records its changes in
+    * @params openedHospital
+    * @params snapshot
+    * @params journal
+    * @params oldest
+    * @params segment
+    * @params segmentJournal
+    **************************************************************************** **/
+  private HospitalCheckpointer(HospitalRecords openedHospital, Path snapshot, Path journal, long oldest,
+                               long segment, PatientJournal segmentJournal) {
+    hospital = openedHospital;
+    snapshotFile = snapshot;
+    journalFile = journal;
+    oldestSegment = oldest;
+    currentSegment = segment;
+    current = segmentJournal;
+  }
+
+  /** *****************************************************************************
+    * Opens the hospital kept in the given snapshot and journal files. The snapshot
+    * is loaded if there is one, the journal segments it does not cover are replayed
+    * and a new segment is started for the changes made from now on. A hospital
+    * without files starts empty with the given name. The patients are kept in a
+    * ColumnarPatientStore.
+    * @params hospitalName
+    * @params snapshotName
+    * @params journalName
+    **************************************************************************** **/
+  public static HospitalCheckpointer open(String hospitalName, String snapshotName, String journalName) throws IOException {
+    return open(hospitalName, snapshotName, journalName, new ColumnarPatientStore());
+  }
+
+  /** *****************************************************************************
+    * Opens the hospital kept in the given snapshot and journal files, see above,
+    * keeping its patients in the given empty store. A hospital larger than memory is
+    * reopened into a DiskPatientStore.
+    * @params hospitalName
+    * @params snapshotName
+    * @params journalName
+    * @params store
+    **************************************************************************** **/
+  public static HospitalCheckpointer open(String hospitalName, String snapshotName, String journalName,
+                                          PatientStore store) throws IOException {
+    Path snapshot = Paths.get(snapshotName);
+    Path journal = Paths.get(journalName);
+
+    HospitalRecords hospital;
+    long firstSegment = 0;
+    if (Files.exists(snapshot)) {
+      HospitalSnapshot saved = HospitalSnapshot.open(snapshotName);
+      hospital = saved.load(store);
+      firstSegment = saved.getJournalSegment();
+    } else {
+      hospital = new HospitalRecords(hospitalName, store);
+    }
+
+    //segments older than the snapshot are left over from a crash during a checkpoint
+    long oldest = -1;
+    long lastSegment = firstSegment - 1;
+    for (long segment : segmentsOf(journal)) {
+      Path file = segmentFile(journal, segment);
+      if (segment < firstSegment) {
+        Files.delete(file);
+      } else {
+        PatientJournal replayed = PatientJournal.open(file.toString());
+        replayed.replay(hospital);
+        replayed.close();
+        if (oldest < 0)
+          oldest = segment;
+        lastSegment = segment;
+      }
+    }
+
+    //segment 0 is only ever written by earlier versions, new segments start at 1
+    long segment = Math.max(lastSegment + 1, 1);
+    PatientJournal segmentJournal = PatientJournal.open(segmentFile(journal, segment).toString());
+    hospital.setJournal(segmentJournal);
+    return new HospitalCheckpointer(hospital, snapshot, journal, (oldest < 0) ? segment : oldest, segment, segmentJournal);
+  }
+
+  /** *****************************************************************************
+    * Returns the hospital that was opened
+    **************************************************************************** **/
+  public HospitalRecords getHospital() {
+    return hospital;
+  }
+
+  /** *****************************************************************************
+    * Returns the number of journal segments on disk, which are replayed on a restart
+    **************************************************************************** **/
+  public synchronized int getSegmentCount() {
+    return (int) (currentSegment - oldestSegment + 1);
+  }
+
+  /** *****************************************************************************
+    * Takes a checkpoint if anything changed since the last one: moves the hospital on
+    * to a new journal segment, writes a snapshot of the hospital without holding up
+    * changes and deletes the segments the snapshot covers.
+    **************************************************************************** **/
+  public synchronized void checkpoint() throws IOException {
+    if (current.getRecordCount() == 0 && oldestSegment == currentSegment)
+      return;
+
+    long segment = currentSegment + 1;
+    PatientJournal next = PatientJournal.open(segmentFile(journalFile, segment).toString());
+    PatientJournal previous = current;
+
+    //changes already recorded in the previous segment are synced before the new one
+    next.setPrevious(previous);
+    HospitalVersion version = hospital.switchJournal(next);
+    current = next;
+    currentSegment = segment;
+    try {
+      previous.close();
+      next.setPrevious(null);
+
+      //the pinned version keeps patients changed during the write as they were at the switch
+      HospitalSnapshot.write(version, version.hospitalRecord, segment, snapshotFile);
+    } finally {
+      version.close();
+    }
+
+    //the snapshot holds everything in the older segments
+    for (long old : segmentsOf(journalFile)) {
+      if (old < segment)
+        Files.deleteIfExists(segmentFile(journalFile, old));
+    }
+    oldestSegment = segment;
+  }
+
+  /** *****************************************************************************
+    * Starts a background thread that takes a checkpoint every given number of
+    * milliseconds
+    * @params intervalMillis
+    **************************************************************************** **/
+  public synchronized void start(final long intervalMillis) {
+    if (background != null)
+      return;
+
+    running = true;
+    background = new Thread("hospital checkpointer") {
+      public void run() {
+        while (running) {
+          synchronized (timer) {
+            try {
+              timer.wait(intervalMillis);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          if (!running)
+            return;
+
+          try {
+            checkpoint();
+          } catch (IOException e) {
+            //the journal still holds every change, the next checkpoint tries again
+            System.out.println("Could not take a checkpoint of " + hospital.getHospitalName() + ": " + e.getMessage());
+          }
+        }
+      }
+    };
+    background.setDaemon(true);
+    background.start();
+  }
+
+  /** *****************************************************************************
+    * Stops the background thread, waiting for a checkpoint in progress, and closes
+    * the journal. The hospital should not be changed afterwards.
+    **************************************************************************** **/
+  public void close() throws IOException {
+    Thread thread;
+    synchronized (this) {
+      thread = background;
+      background = null;
+    }
+    if (thread != null) {
+      running = false;
+      synchronized (timer) {
+        timer.notifyAll();
+      }
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this) {
+      current.close();
+    }
+  }
+
+
+  //helper methods
+
+  /** *****************************************************************************
+    * Returns the file of the given journal segment
+    * @params journal
+    * @params segment
+    **************************************************************************** **/
+  private static Path segmentFile(Path journal, long segment) {
+    return (segment == 0) ? journal : journal.resolveSibling(journal.getFileName() + "." + segment);
+  }
+
+  /** *****************************************************************************
+    * Returns the numbers of the journal segments on disk in increasing order
+    * @params journal
+    **************************************************************************** **/
+  private static LinkedList<Long> segmentsOf(Path journal) throws IOException {
+    TreeSet<Long> segments = new TreeSet<Long>();
+    if (Files.exists(journal))
+      segments.add(0L);
+
+    Path directory = journal.toAbsolutePath().getParent();
+    String prefix = journal.getFileName() + ".";
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+      for (Path file : files) {
+        String suffix = file.getFileName().toString().substring(prefix.length());
+        if (isSegmentNumber(suffix))
+          segments.add(Long.parseLong(suffix));
+      }
+    }
+    return new LinkedList<Long>(segments);
+  }
+
+  private static boolean isSegmentNumber(String suffix) {
+    if (suffix.isEmpty() || suffix.length() > 18)
+      return false;
+    for (int i = 0; i < suffix.length(); i++) {
+      if (!Character.isDigit(suffix.charAt(i)))
+        return false;
+    }
+    return true;
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) throws Exception {
+    Path directory = Files.createTempDirectory("hospital");
+    String snapshot = directory.resolve("hospitalSnapshot.dat").toString();
+    String journal = directory.resolve("hospitalJournal.dat").toString();
+
+    HospitalCheckpointer checkpointer = HospitalCheckpointer.open("Boston Medical Center", snapshot, journal);
+    final HospitalRecords BMC = checkpointer.getHospital();
+    BMC.addPatient(new Patient("John Smith", 36, "male", "major depressive disorder", "diminished interest,weight loss"));
+    BMC.addPatient(new Patient("Carry Roy", 21, "female", "bipolar disorder", "manic episode,overtalkativeness"));
+    checkpointer.checkpoint();
+    BMC.getPatient("John Smith").setAge(37);
+    BMC.removePatient("Carry Roy");
+    System.out.println("Segments after a checkpoint and two changes (1): " + checkpointer.getSegmentCount());
+    checkpointer.close();
+
+    HospitalCheckpointer reopened = HospitalCheckpointer.open("Boston Medical Center", snapshot, journal);
+    System.out.println("Reopened from the snapshot and one segment (John Smith aged 37):" + reopened.getHospital());
+    reopened.close();
+
+    //patients keep coming in and changing while checkpoints are taken in the background
+    checkpointer = HospitalCheckpointer.open("Boston Medical Center", snapshot, journal);
+    final HospitalRecords busy = checkpointer.getHospital();
+    checkpointer.start(50);
+    final long[] slowest = new long[1];
+    Thread intake = new Thread() {
+      public void run() {
+        Random random = new Random(5);
+        for (int i = 0; i < 3000; i++) {
+          long start = System.nanoTime();
+          busy.addPatient(new Patient("Patient " + i, random.nextInt(90), (i % 2 == 0) ? "female" : "male",
+                                      "schizophrenia", "delusions"));
+          Patient p = busy.getPatient("Patient " + random.nextInt(i + 1));
+          if (p != null) {
+            p.setAge(random.nextInt(90));
+            p.addSymptoms("insomnia");
+          }
+          if (i % 7 == 0)
+            busy.removePatient("Patient " + random.nextInt(i + 1));
+          if (i % 11 == 0 && busy.getPatient("Patient " + (i - 1)) != null)
+            busy.getPatient("Patient " + (i - 1)).setName("Renamed " + i);
+          slowest[0] = Math.max(slowest[0], System.nanoTime() - start);
+        }
+      }
+    };
+    intake.start();
+    intake.join();
+    String before = sortedPatients(busy);
+    int segments = checkpointer.getSegmentCount();
+    checkpointer.close();
+
+    HospitalCheckpointer restarted = HospitalCheckpointer.open("Boston Medical Center", snapshot, journal);
+    System.out.println("Same patients after a restart (true): " + sortedPatients(restarted.getHospital()).equals(before));
+    System.out.println("Segments left on disk (small): " + segments);
+    System.out.println("Slowest change during the checkpoints: " + slowest[0] / 1000000 + " ms");
+    restarted.close();
+
+    //the same hospital reopened with its patients kept on disk
+    DiskPatientStore disk = new DiskPatientStore(directory.resolve("hospitalPatients.btree").toString(), 256);
+    restarted = HospitalCheckpointer.open("Boston Medical Center", snapshot, journal, disk);
+    System.out.println("Same patients reopened on disk (true): " + sortedPatients(restarted.getHospital()).equals(before));
+    restarted.close();
+    disk.close();
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files)
+        Files.delete(file);
+    }
+    Files.delete(directory);
+  }
+
+  /** *****************************************************************************
+    * Returns the patient files of a hospital in a fixed order, used to compare two
+    * hospitals whose patients are kept in different rows
+    * @params hospital
+    **************************************************************************** **/
+  private static String sortedPatients(HospitalRecords hospital) {
+    TreeSet<String> files = new TreeSet<String>();
+    for (Patient p : hospital.findPatients(new PatientQuery()))
+      files.add(p.toString());
+    return files.toString();
+  }
+
+}
@@ -10,6 +10,8 @@
  * */
 
 import javax.swing.*;
+import java.io.*;
+import java.util.*;
 
 /** *****************************************************************************
   *  HospitalProgram is the file that executes the GUI frame
@@ -27,7 +29,32 @@ public class HospitalProgram {
     JFrame frame = new JFrame ("Psychiatric Hospital Record");
     frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
     
-    HospitalRecords Records = new HospitalRecords("Boston Medical Center");
+    //keeps the patient numbers given out in a file so that they are not given out again after a restart
+    try {
+      PatientNumberAllocator.setDefault(PatientNumberAllocator.open("patientNumbers.txt"));
+    } catch (IOException e) {
+      System.out.println("Could not open patientNumbers.txt, patient numbers will start over: " + e.getMessage());
+    }
+    
+    HospitalRecords Records;
+    
+    //rebuilds the hospital from the last snapshot and the changes made since, records every change
+    //from now on and takes a new snapshot every minute so that the journal stays short
+    try {
+      HospitalCheckpointer checkpointer = HospitalCheckpointer.open("Boston Medical Center", "hospitalSnapshot.dat",
+                                                                    "hospitalJournal.dat", openStore());
+      checkpointer.start(60000);
+      Records = checkpointer.getHospital();
+    } catch (IOException e) {
+      System.out.println("Could not open the saved hospital, changes will not be saved: " + e.getMessage());
+      Records = new HospitalRecords("Boston Medical Center");
+    }
+    
+    //reads the disorder files the criteria panels check and compiles their trees in parallel
+    LinkedList<String> disorderFiles = new LinkedList<String>();
+    disorderFiles.add(DisorderRegistry.SCHIZOPHRENIA_FILE);
+    disorderFiles.add(DisorderRegistry.MAJOR_DEPRESSIVE_DISORDER_FILE);
+    DisorderRegistry.getDefault().loadFiles(disorderFiles);
     
     JTabbedPane tp = new JTabbedPane();
     tp.addTab ("Patient Files", new DemographicsPanel(Records));
@@ -39,5 +66,24 @@ public class HospitalProgram {
     
   }
   
+  /** *****************************************************************************
+    * Returns the empty store the patients are loaded into, chosen with the
+    * hospital.store property: "columnar" (the default), "heap", "offheap" to keep
+    * them outside of the Java heap, or "disk" for a hospital larger than memory,
+    * kept in hospitalPatients.btree
+    **************************************************************************** **/
+  private static PatientStore openStore() throws IOException {
+    String kind = System.getProperty("hospital.store", "columnar");
+    if (kind.equals("heap"))
+      return new HeapPatientStore();
+    if (kind.equals("offheap"))
+      return new OffHeapPatientStore();
+    if (kind.equals("disk"))
+      return new DiskPatientStore("hospitalPatients.btree", DiskPatientStore.DEFAULT_CACHE_PAGES);
+    if (!kind.equals("columnar"))
+      System.out.println("Unknown store " + kind + ", the patients are kept in columns");
+    return new ColumnarPatientStore();
+  }
+  
 }
 
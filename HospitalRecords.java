@@ -7,18 +7,54 @@
  * */
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
 
 /** *****************************************************************************
   * A HospitalRecords class holds a collection of Patient objects and allows functionality
   * regarding these objects
   * 
+  * Patients can be added, removed and changed from several threads while others search
+  * the hospital. Changes are made one at a time under the write lock, while searches
+  * take no lock at all: the sets of rows kept in the indexes are never changed in place
+  * but replaced by updated copies, so a search always works on complete sets and
+  * iterating over its results never throws a ConcurrentModificationException.
+  * 
   * @author Meltem Ozcan
   *************************************************************************** **/
 public class HospitalRecords { 
   
   //instance variables
   private String hospitalName;
-  protected LinkedList<Patient> hospitalRecord = new LinkedList<Patient>();
+  protected PatientStore store; //holds the information of the patients, one row per patient
+  protected volatile RowSet hospitalRecord = new RowSet(); //rows of the patients currently in the hospital
+  
+  //held while patients are added, removed or changed, searches never take it
+  final Object writeLock = new Object();
+  
+  //records every change so the hospital can be rebuilt, null if changes are not kept
+  private volatile PatientJournal journal;
+  
+  //indexes used to find a patient without scanning the whole record
+  private ConcurrentHashMap<String, Integer> nameIndex = new ConcurrentHashMap<String, Integer>();
+  private IntIntMap numberIndex = new IntIntMap(); //patient number to row, without boxing either
+  
+  //inverted indexes from a diagnosis or gender to the rows of the patients who have it
+  private ConcurrentHashMap<String, RowSet> diagnosisIndex = new ConcurrentHashMap<String, RowSet>();
+  private ConcurrentHashMap<String, RowSet> genderIndex = new ConcurrentHashMap<String, RowSet>();
+  
+  //patients bucketed by age, sorted so that an age range only touches the matching buckets
+  private ConcurrentSkipListMap<Integer, RowSet> ageIndex = new ConcurrentSkipListMap<Integer, RowSet>();
+  
+  //rows of the patients presenting each symptom, keyed by the trimmed symptom
+  private ConcurrentHashMap<String, RowSet> symptomIndex = new ConcurrentHashMap<String, RowSet>();
+  
+  //the rows as they were before they changed, newest first, kept while a pinned HospitalVersion
+  //can still see them. The changes are counted, a version is the number of changes made before it.
+  private ConcurrentHashMap<Integer, RowVersion> rowVersions = new ConcurrentHashMap<Integer, RowVersion>();
+  private TreeMap<Long, Integer> pinnedVersions = new TreeMap<Long, Integer>(); //pins of each version, under the write lock
+  private long changeCount; //changed under the write lock
   
   /** *****************************************************************************
     * Constructor
@@ -29,7 +65,21 @@ public class HospitalRecords {
     * @params name
     **************************************************************************** **/
   public HospitalRecords (String name) {
+    this(name, new HeapPatientStore());
+  }
+  
+  /** *****************************************************************************
+    * Constructor
+    * 
+    * Takes in a name and the store the patients should be kept in, for example a 
+    * ColumnarPatientStore for large hospitals
+    * 
+    * @params name
+    * @params patientStore
+    **************************************************************************** **/
+  public HospitalRecords (String name, PatientStore patientStore) {
     hospitalName = name;
+    store = patientStore;
   }
   
   
@@ -40,10 +90,133 @@ public class HospitalRecords {
   public void addPatient(Patient patientToAdd) {
     
     //if the patient had not previously been added, enters the patient to the hospital records.
-    if (!isPatient(patientToAdd.getName())) {
-      hospitalRecord.add(patientToAdd);
+    synchronized (writeLock) {
+      if (!isPatient(patientToAdd.getName())) {
+        //the record is encoded first, so a patient the journal cannot keep is not added
+        byte[] record = (journal == null) ? null : journal.addedRecord(patientToAdd);
+        int row = store.addPatient(this, patientToAdd);
+        indexNewRow(row);
+        journalAppend(record);
+      }
+    }
+    syncJournal();
+    
+  }
+  
+    /** *****************************************************************************
+    * Adds a batch of patients to the database in one pass. Patients whose name is 
+    * already in the hospital, or appears earlier in the same batch, are not added and 
+    * are returned in the order they were rejected.
+    * @params patientsToAdd
+    **************************************************************************** **/
+  public LinkedList<Patient> addPatients(Iterable<Patient> patientsToAdd) {
+    LinkedList<Patient> rejected = new LinkedList<Patient>();
+    
+    synchronized (writeLock) {
+      LinkedList<Patient> accepted = new LinkedList<Patient>();
+      HashSet<String> batchNames = new HashSet<String>();
+      
+      //splits the batch into new patients and duplicates with one lookup per patient
+      for (Patient p : patientsToAdd) {
+        if (nameIndex.containsKey(p.getName()) || !batchNames.add(p.getName()))
+          rejected.add(p);
+        else
+          accepted.add(p);
+      }
+      
+      //the records are encoded first, so a batch the journal cannot keep is not added
+      ArrayList<byte[]> records = new ArrayList<byte[]>();
+      if (journal != null) {
+        for (Patient p : accepted)
+          records.add(journal.addedRecord(p));
+      }
+      
+      //grows the store once for the whole batch, and by at least half so that a series of
+      //batches does not copy the store every time
+      int rowCount = store.getRowCount();
+      store.ensureCapacity(Math.max(rowCount + accepted.size(), rowCount + rowCount / 2));
+      
+      //the store hands out consecutive rows while the write lock is held
+      int firstRow = store.getRowCount();
+      for (Patient p : accepted)
+        store.addPatient(this, p);
+      indexNewRows(firstRow, store.getRowCount());
+      for (byte[] record : records)
+        journalAppend(record);
     }
+    syncJournal();
     
+    return rejected;
+  }
+  
+  /** *****************************************************************************
+    * Enters the rows already filled in the store into the indexes, used once the
+    * store of a new hospital has been read back from a snapshot
+    **************************************************************************** **/
+  void indexStoredRows() {
+    synchronized (writeLock) {
+      //the hospital is still empty, so the name and number indexes can be sized for all the rows at once
+      nameIndex = new ConcurrentHashMap<String, Integer>(store.getRowCount());
+      numberIndex = new IntIntMap(store.getRowCount());
+      indexNewRows(0, store.getRowCount());
+    }
+  }
+  
+  /** *****************************************************************************
+    * Enters the rows from firstRow up to but not including lastRow into every index.
+    * The rows are gathered per index key first, so that every set of rows the batch
+    * touches is replaced once rather than once per patient.
+    * @params firstRow
+    * @params lastRow
+    **************************************************************************** **/
+  private void indexNewRows(int firstRow, int lastRow) {
+    RowSet newRows = new RowSet();
+    HashMap<String, RowSet> newDiagnoses = new HashMap<String, RowSet>();
+    HashMap<String, RowSet> newGenders = new HashMap<String, RowSet>();
+    HashMap<Integer, RowSet> newAges = new HashMap<Integer, RowSet>();
+    HashMap<String, RowSet> newSymptoms = new HashMap<String, RowSet>();
+    
+    for (int row = firstRow; row < lastRow; row++) {
+      newRows.add(row);
+      nameIndex.put(store.getName(row), row);
+      numberIndex.put(store.getPatientNumber(row), row);
+      addToBatch(newDiagnoses, store.getDiagnosis(row), row);
+      addToBatch(newGenders, store.getGender(row), row);
+      addToBatch(newAges, store.getAge(row), row);
+      //adding a row twice to a set changes nothing, so repeated symptoms need no check
+      for (String symptom : store.getSymptoms(row))
+        addToBatch(newSymptoms, symptom.trim(), row);
+    }
+    
+    mergeIntoIndex(diagnosisIndex, newDiagnoses);
+    mergeIntoIndex(genderIndex, newGenders);
+    mergeIntoIndex(ageIndex, newAges);
+    mergeIntoIndex(symptomIndex, newSymptoms);
+    hospitalRecord = hospitalRecord.or(newRows);
+  }
+  
+    /** *****************************************************************************
+    * Adds a stream of patients to the database, see addPatients(Iterable)
+    * @params patientsToAdd
+    **************************************************************************** **/
+  public LinkedList<Patient> addPatients(Stream<Patient> patientsToAdd) {
+    return addPatients((Iterable<Patient>) patientsToAdd::iterator);
+  }
+  
+  /** *****************************************************************************
+    * Enters a row that was just filled in the store into every index, the row is 
+    * added to the record last so that searches only return it once it is indexed
+    * @params row
+    **************************************************************************** **/
+  private void indexNewRow(int row) {
+    nameIndex.put(store.getName(row), row);
+    numberIndex.put(store.getPatientNumber(row), row);
+    addToIndex(diagnosisIndex, store.getDiagnosis(row), row);
+    addToIndex(genderIndex, store.getGender(row), row);
+    addToIndex(ageIndex, store.getAge(row), row);
+    for (String symptom : symptomKeys(store.getSymptoms(row)))
+      addToIndex(symptomIndex, symptom, row);
+    hospitalRecord = hospitalRecord.withAdded(row);
   }
 
     
@@ -54,13 +227,50 @@ public class HospitalRecords {
     **************************************************************************** **/
   public void removePatient(String patientToRemove) {
     
-    for(int i = 0; i < hospitalRecord.size(); i++) {
-      //checks for the patient with a matching name
-      if (hospitalRecord.get(i).getName().equals(patientToRemove)){
-        // System.out.println("removing " + hospitalRecord.get(i));
-        hospitalRecord.remove(hospitalRecord.get(i));
-      }
+    synchronized (writeLock) {
+      Integer row = nameIndex.get(patientToRemove);
+      
+      //nothing to do if there is no patient with a matching name
+      if (row != null)
+        removeRow(row);
+    }
+    syncJournal();
+  }
+  
+  /** *****************************************************************************
+    * Removes the patient with the given number, used when the journal is replayed
+    * @params patientNumber
+    **************************************************************************** **/
+  void removePatientNumber(int patientNumber) {
+    synchronized (writeLock) {
+      int row = numberIndex.get(patientNumber);
+      if (row >= 0)
+        removeRow(row);
     }
+    syncJournal();
+  }
+  
+  /** *****************************************************************************
+    * Takes the patient in the given row out of the indexes and the store. Called
+    * while the write lock is held.
+    * @params row
+    **************************************************************************** **/
+  private void removeRow(int row) {
+    byte[] record = (journal == null) ? null : journal.removedRecord(store.getPatientNumber(row));
+    rowChanging(row);
+    hospitalRecord = hospitalRecord.withRemoved(row);
+    
+    int number = store.getPatientNumber(row);
+    nameIndex.remove(store.getName(row), row);
+    numberIndex.remove(number, row);
+    
+    removeFromIndex(diagnosisIndex, store.getDiagnosis(row), row);
+    removeFromIndex(genderIndex, store.getGender(row), row);
+    removeFromIndex(ageIndex, store.getAge(row), row);
+    for (String symptom : symptomKeys(store.getSymptoms(row)))
+      removeFromIndex(symptomIndex, symptom, row);
+    store.removePatient(row);
+    journalAppend(record);
   }
  
       /** *****************************************************************************
@@ -68,13 +278,24 @@ public class HospitalRecords {
     * @params patientToGet
     **************************************************************************** **/
   public Patient getPatient(String patientToGet) {
-    
-    for(int i = 0; i < hospitalRecord.size(); i++) {
-      if (hospitalRecord.get(i).getName().equals(patientToGet)) {
-        return hospitalRecord.get(i);
-      }
-    }
-    return null;
+    Integer row = nameIndex.get(patientToGet);
+    return (row == null) ? null : store.getPatient(this, row);
+  }
+  
+      /** *****************************************************************************
+    *Returns the patient with the given patient number, returns null if no such patient exists
+    * @params patientNumber
+    **************************************************************************** **/
+  public Patient getPatientByNumber(int patientNumber) {
+    int row = numberIndex.get(patientNumber);
+    return (row < 0) ? null : store.getPatient(this, row);
+  }
+  
+   /** *****************************************************************************
+    *Returns the name of the hospital
+    **************************************************************************** **/
+  public String getHospitalName() {
+    return hospitalName;
   }
   
    /** *****************************************************************************
@@ -91,66 +312,188 @@ public class HospitalRecords {
     * @params disorderName
     **************************************************************************** **/
   public LinkedList<Patient> getPatientsWithDisorder(String disorderName) {
-    LinkedList<Patient> patientsWithDisorder = new LinkedList<Patient>();
-    for(int i = 0; i < hospitalRecord.size(); i++) {
-      if (hospitalRecord.get(i).getDiagnosis().equals(disorderName)) {
-        patientsWithDisorder.add(hospitalRecord.get(i));
-      }
-    }
-    return patientsWithDisorder;
+    return toPatientList(getIndexed(diagnosisIndex, disorderName));
   }
   
   /** *****************************************************************************
-    *Returns  linked list of patients in the given age range
+    *Returns  linked list of patients in the given age range, ordered by age
     * @params lowerBound
     * @params upperBound
     **************************************************************************** **/
   public LinkedList<Patient> getPatientsOfAge(int lowerBound, int upperBound) {
     LinkedList<Patient> patientsOfGivenAge = new LinkedList<Patient>();
-    for(int i = 0; i < hospitalRecord.size(); i++) {
-      int age = hospitalRecord.get(i).getAge();
-      if ((age >= lowerBound) && (age <= upperBound)) {
-        patientsOfGivenAge.add(hospitalRecord.get(i));
-      }
+    for (RowSet bucket : ageBuckets(lowerBound, upperBound)) {
+      addPatients(patientsOfGivenAge, bucket);
     }
     return patientsOfGivenAge;
   }
   
+  /** *****************************************************************************
+    *Returns the number of patients in the given age range without building a list
+    * @params lowerBound
+    * @params upperBound
+    **************************************************************************** **/
+  public int countPatientsOfAge(int lowerBound, int upperBound) {
+    int count = 0;
+    for (RowSet bucket : ageBuckets(lowerBound, upperBound)) {
+      count += bucket.size();
+    }
+    return count;
+  }
+  
+  /** *****************************************************************************
+    *Returns the age buckets that fall in the given range, empty if the bounds are reversed
+    * @params lowerBound
+    * @params upperBound
+    **************************************************************************** **/
+  private Collection<RowSet> ageBuckets(int lowerBound, int upperBound) {
+    if (lowerBound > upperBound)
+      return Collections.emptyList();
+    return ageIndex.subMap(lowerBound, true, upperBound, true).values();
+  }
+  
    /** *****************************************************************************
     *Returns  linked list of patients in the given gender
     * @params gender
     **************************************************************************** **/
   public LinkedList<Patient> getPatientsOfGender(String gender) {
-    LinkedList<Patient> patientsOfGender = new LinkedList<Patient>();
-    for(int i = 0; i < hospitalRecord.size(); i++) {
-      
-      if (hospitalRecord.get(i).getGender().equals(gender)) {
-        patientsOfGender.add(hospitalRecord.get(i));
+    return toPatientList(getIndexed(genderIndex, gender));
+  }
+  
+  /** *****************************************************************************
+    *Returns linked list of patients that match every condition of the query
+    * @params query
+    **************************************************************************** **/
+  public LinkedList<Patient> getPatients(PatientQuery query) {
+    return toPatientList(findRows(query));
+  }
+  
+  /** *****************************************************************************
+    *Returns the patients that match every condition of the query without building a
+    *list of them, the patients are looked up as they are read
+    * @params query
+    **************************************************************************** **/
+  public PatientResults findPatients(PatientQuery query) {
+    return new PatientResults(this, findRows(query));
+  }
+  
+  /** *****************************************************************************
+    *Returns a stream of the patients that match every condition of the query
+    * @params query
+    **************************************************************************** **/
+  public Stream<Patient> streamPatients(PatientQuery query) {
+    return findPatients(query).stream();
+  }
+  
+  /** *****************************************************************************
+    *Returns linked list of at most limit patients that match the query, starting at
+    *the given position of the results
+    * @params query
+    * @params offset
+    * @params limit
+    **************************************************************************** **/
+  public LinkedList<Patient> getPatients(PatientQuery query, int offset, int limit) {
+    return new PatientResults(this, findRows(query)).getPage(offset, limit);
+  }
+  
+  /** *****************************************************************************
+    *Returns the number of patients that match every condition of the query
+    * @params query
+    **************************************************************************** **/
+  public int countPatients(PatientQuery query) {
+    return findRows(query).size();
+  }
+  
+  /** *****************************************************************************
+    *Returns the rows that match the query by intersecting the index entries of its
+    *conditions, starting from the smallest one
+    * @params query
+    **************************************************************************** **/
+  private RowSet findRows(PatientQuery query) {
+    ArrayList<RowSet> postings = new ArrayList<RowSet>();
+    if (query.getDisorder() != null)
+      postings.add(getIndexed(diagnosisIndex, query.getDisorder()));
+    if (query.getGender() != null)
+      postings.add(getIndexed(genderIndex, query.getGender()));
+    for (String symptom : query.getSymptoms())
+      postings.add(getIndexed(symptomIndex, symptom.trim()));
+    if (!query.getAnySymptoms().isEmpty())
+      postings.add(symptomUnion(query.getAnySymptoms()));
+    
+    Collections.sort(postings, new Comparator<RowSet>() {
+      public int compare(RowSet a, RowSet b) {
+        return a.size() - b.size();
+      }
+    });
+    
+    //the age range is only turned into a set of rows when it is the smallest condition,
+    //otherwise the age of each remaining row is checked in the age column
+    boolean checkAge = false;
+    if (query.hasAgeRange()) {
+      int ageCount = countPatientsOfAge(query.getLowerAge(), query.getUpperAge());
+      if (postings.isEmpty() || ageCount < postings.get(0).size())
+        postings.add(0, RowSet.unionOf(ageBuckets(query.getLowerAge(), query.getUpperAge())));
+      else
+        checkAge = true;
+    }
+    
+    RowSet rows = postings.isEmpty() ? hospitalRecord : postings.get(0);
+    for (int i = 1; i < postings.size() && !rows.isEmpty(); i++)
+      rows = rows.and(postings.get(i));
+    
+    if (!query.getExcludedSymptoms().isEmpty())
+      rows = rows.andNot(symptomUnion(query.getExcludedSymptoms()));
+    
+    if (checkAge) {
+      RowSet ofAge = new RowSet();
+      PrimitiveIterator.OfInt it = rows.iterator();
+      while (it.hasNext()) {
+        int row = it.nextInt();
+        int age = store.getAge(row);
+        if (age >= query.getLowerAge() && age <= query.getUpperAge())
+          ofAge.add(row);
       }
+      rows = ofAge;
     }
-    return patientsOfGender;
+    return rows;
+  }
+  
+  /** *****************************************************************************
+    *Returns the rows of the patients presenting at least one of the given symptoms
+    * @params symptoms
+    **************************************************************************** **/
+  private RowSet symptomUnion(Collection<String> symptoms) {
+    ArrayList<RowSet> sets = new ArrayList<RowSet>();
+    for (String symptom : symptoms)
+      sets.add(getIndexed(symptomIndex, symptom.trim()));
+    return RowSet.unionOf(sets);
   }
   
   /** *****************************************************************************
     * Provides a string representation of the hospital
     **************************************************************************** **/
   public String toString () {
-    String s = "\n" + hospitalName.toUpperCase() + " RECORDS" + "\n\nTotal number of patients: " + getNumPatients() + /*and here can go other 
-     * statistics like # of females vs # of male etc. */"\n\n";
-    for (int i = 0; i < getNumPatients(); i++) 
-      s += hospitalRecord.get(i)+ "\n\n";
+    StringBuilder s = new StringBuilder();
+    s.append("\n").append(hospitalName.toUpperCase()).append(" RECORDS").append("\n\nTotal number of patients: ")
+      .append(getNumPatients()) /*and here can go other statistics like # of females vs # of male etc. */
+      .append("\n\n");
     
-    return s;
+    //appends each patient to one builder, for large hospitals see PatientExporter
+    for (Patient p : findPatients(new PatientQuery())) 
+      s.append(p).append("\n\n");
+    
+    return s.toString();
   }
   
    /** *****************************************************************************
     * This method returns a string array representation of a given List of Patients
     * @params patients
     **************************************************************************** **/
-  public String[] toStringArray (LinkedList<Patient> patientList) {
+  public String[] toStringArray (Collection<Patient> patientList) {
     String[] arrayPatients = new String[patientList.size()];
-    for (int i = 0; i < patientList.size(); i++) 
-      arrayPatients[i] = patientList.get(i).toString();
+    int i = 0;
+    for (Patient p : patientList) 
+      arrayPatients[i++] = p.toString();
     
     return arrayPatients;
   }
@@ -159,10 +502,11 @@ public class HospitalRecords {
     * adds HTML tags which will be used to wrap the text in the GUI
     * @params patientList
     **************************************************************************** **/
-  public String[] toStringArrayWithHtml (LinkedList<Patient> patientList) {
+  public String[] toStringArrayWithHtml (Collection<Patient> patientList) {
     String[] arrayPatients = new String[patientList.size()];
-    for (int i = 0; i <patientList.size(); i++) 
-      arrayPatients[i] = "<html><p>" + patientList.get(i).toStringWithHtml() + "</p></hmtl>";
+    int i = 0;
+    for (Patient p : patientList) 
+      arrayPatients[i++] = "<html><p>" + p.toStringWithHtml() + "</p></hmtl>";
     
     return arrayPatients;
   }
@@ -173,12 +517,7 @@ public class HospitalRecords {
     * tags which will be used to wrap the text in the GUI.
     **************************************************************************** **/
   public String[] toStringArrayWithHtml () {
-    String[] arrayPatients = new String[getNumPatients()];
-    for (int i = 0; i < getNumPatients(); i++) 
-      arrayPatients[i] = "<html><p>" + hospitalRecord.get(i).toStringWithHtml() + "</p></hmtl>";
-    
-    return arrayPatients;
-    
+    return toStringArrayWithHtml(toPatientList(hospitalRecord));
   }
   
   
@@ -187,19 +526,522 @@ public class HospitalRecords {
     * @ params patientName
     **************************************************************************** **/
   public Boolean isPatient(String patientName) {
+    return nameIndex.containsKey(patientName);
+  }
+  
+  /** *****************************************************************************
+    * Sets the journal every later change to the hospital is recorded in. Changes
+    * return once they are written to disk. The journal should be replayed into the
+    * hospital before it is set.
+    * @params patientJournal
+    **************************************************************************** **/
+  public void setJournal(PatientJournal patientJournal) {
+    synchronized (writeLock) {
+      journal = patientJournal;
+    }
+  }
+  
+  /** *****************************************************************************
+    * Moves the hospital on to the next journal segment and returns a version of the
+    * hospital pinned at that moment, to be closed by the caller. The version holds
+    * every change recorded in the earlier segments and none of those that go to the
+    * new segment, however long it is read.
+    * @params nextSegment
+    **************************************************************************** **/
+  HospitalVersion switchJournal(PatientJournal nextSegment) {
+    synchronized (writeLock) {
+      journal = nextSegment;
+      return pinVersion();
+    }
+  }
+  
+  /** *****************************************************************************
+    * Waits until the changes made so far are written to the journal. Called after
+    * the write lock is released, so that threads waiting for the disk do not hold up
+    * other changes and their records are written together.
+    **************************************************************************** **/
+  void syncJournal() {
+    PatientJournal j = journal;
+    if (j != null)
+      j.sync();
+  }
+  
+  /** *****************************************************************************
+    * Returns the journal changes to the patient in the given row are recorded in,
+    * null if they are not recorded. Called while the write lock is held.
+    * @params row
+    **************************************************************************** **/
+  PatientJournal journalOf(int row) {
+    return hospitalRecord.contains(row) ? journal : null;
+  }
+  
+  /** *****************************************************************************
+    * Appends the record of a change that has just been made, encoded before it was
+    * made, nothing if changes are not recorded
+    * @params record
+    **************************************************************************** **/
+  private void journalAppend(byte[] record) {
+    if (record != null)
+      journal.append(record);
+  }
+  
+  /** *****************************************************************************
+    * Returns a version of the hospital as it is now, which later changes do not
+    * reach. Searches of the version see the same patients with the same information
+    * however long they run, while patients keep being added, changed and removed.
+    * The version should be closed once it is no longer used.
+    **************************************************************************** **/
+  public HospitalVersion pinVersion() {
+    synchronized (writeLock) {
+      Integer pins = pinnedVersions.get(changeCount);
+      pinnedVersions.put(changeCount, (pins == null) ? 1 : pins + 1);
+      return new HospitalVersion(this, changeCount);
+    }
+  }
+  
+  /** *****************************************************************************
+    * Lets go of a pinned version, dropping the kept rows no other pinned version can
+    * see
+    * @params version
+    **************************************************************************** **/
+  void unpinVersion(long version) {
+    synchronized (writeLock) {
+      Integer pins = pinnedVersions.get(version);
+      if (pins == null)
+        return;
+      if (pins > 1)
+        pinnedVersions.put(version, pins - 1);
+      else
+        pinnedVersions.remove(version);
+      
+      if (pinnedVersions.isEmpty()) {
+        rowVersions.clear();
+        return;
+      }
+      
+      //a row replaced before the oldest pinned version is seen by none of them
+      long oldest = pinnedVersions.firstKey();
+      Iterator<RowVersion> it = rowVersions.values().iterator();
+      while (it.hasNext()) {
+        RowVersion kept = it.next();
+        if (kept.replacedAt <= oldest) {
+          it.remove();
+        } else {
+          while (kept.older != null && kept.older.replacedAt > oldest)
+            kept = kept.older;
+          kept.older = null;
+        }
+      }
+    }
+  }
+  
+  /** *****************************************************************************
+    * Copies the sets of rows of the searchable indexes of another hospital into this
+    * one, used by a HospitalVersion while the write lock of the other hospital is held.
+    * The sets are never changed in place, so only the maps holding them are copied.
+    * @params live
+    **************************************************************************** **/
+  void pinIndexesOf(HospitalRecords live) {
+    hospitalRecord = live.hospitalRecord;
+    diagnosisIndex = new ConcurrentHashMap<String, RowSet>(live.diagnosisIndex);
+    genderIndex = new ConcurrentHashMap<String, RowSet>(live.genderIndex);
+    ageIndex = new ConcurrentSkipListMap<Integer, RowSet>(live.ageIndex);
+    symptomIndex = new ConcurrentHashMap<String, RowSet>(live.symptomIndex);
+  }
+  
+  /** *****************************************************************************
+    * Called by a patient of this hospital, and when a patient is removed, just before
+    * its row changes. While some pinned version can see the row as it is, a copy of
+    * it is kept before the change is made.
+    * @params row
+    **************************************************************************** **/
+  void rowChanging(int row) {
+    changeCount++;
+    if (pinnedVersions.isEmpty() || !hospitalRecord.contains(row))
+      return;
+    
+    //when the row has changed since the newest pin, every pinned version sees an older copy
+    RowVersion newest = rowVersions.get(row);
+    if (newest != null && newest.replacedAt > pinnedVersions.lastKey())
+      return;
+    rowVersions.put(row, new RowVersion(store.getPatient(this, row).copy(), changeCount, newest));
+  }
+  
+  /** *****************************************************************************
+    * Returns a copy of the row as it was in the given version, or null if the row
+    * has not changed since then
+    * @params row
+    * @params version
+    **************************************************************************** **/
+  Patient rowAsOf(int row, long version) {
+    Patient seen = null;
+    for (RowVersion kept = rowVersions.get(row); kept != null && kept.replacedAt > version; kept = kept.older)
+      seen = kept.patient;
+    return seen;
+  }
+  
+  /** *****************************************************************************
+    * Returns the row that held the patient with the given name, or if the name is
+    * null the given patient number, in the given version among the rows changed
+    * since then, -1 if there is none
+    * @params version
+    * @params name
+    * @params patientNumber
+    **************************************************************************** **/
+  int changedRowOf(long version, String name, int patientNumber) {
+    for (Integer row : rowVersions.keySet()) {
+      Patient seen = rowAsOf(row, version);
+      if (seen != null && ((name == null) ? seen.getPatientNumber() == patientNumber : name.equals(seen.getName())))
+        return row;
+    }
+    return -1;
+  }
+  
+  /** *****************************************************************************
+    * Returns the row of the patient with the given name, -1 if there is none
+    * @params name
+    **************************************************************************** **/
+  int rowOf(String name) {
+    Integer row = nameIndex.get(name);
+    return (row == null) ? -1 : row;
+  }
+  
+  /** *****************************************************************************
+    * Returns the row of the patient with the given number, -1 if there is none
+    * @params patientNumber
+    **************************************************************************** **/
+  int rowOfNumber(int patientNumber) {
+    return numberIndex.get(patientNumber);
+  }
+  
+  /** *****************************************************************************
+    * Returns the number of rows kept for pinned versions
+    **************************************************************************** **/
+  int getKeptRowCount() {
+    return rowVersions.size();
+  }
+  
+  /** *****************************************************************************
+    * Called by a patient of this hospital, under the write lock, before its name
+    * changes. Names identify patients, so a name already given to another patient
+    * of the hospital is refused.
+    *
+    * @throws IllegalArgumentException if another patient has the name
+    * @params row
+    * @params newName
+    **************************************************************************** **/
+  void checkRename(int row, String newName) {
+    Integer holder = nameIndex.get(newName);
+    if (holder != null && holder != row && hospitalRecord.contains(row))
+      throw new IllegalArgumentException("There is already a patient named " + newName);
+  }
+  
+  /** *****************************************************************************
+    * Called by a patient of this hospital when its name changes so the name index
+    * stays in sync with the record
+    * @params row
+    * @params oldName
+    * @params record, the journal record of the change, null if it is not recorded
+    **************************************************************************** **/
+  void patientRenamed(int row, String oldName, byte[] record) {
+    if (hospitalRecord.contains(row)) {
+      nameIndex.remove(oldName, row);
+      nameIndex.put(store.getName(row), row);
+      journalAppend(record);
+    }
+  }
+  
+  /** *****************************************************************************
+    * Called by a patient of this hospital when its age changes so the age index 
+    * stays in sync with the record
+    * @params row
+    * @params oldAge
+    * @params record, the journal record of the change, null if it is not recorded
+    **************************************************************************** **/
+  void patientAgeChanged(int row, int oldAge, byte[] record) {
+    if (hospitalRecord.contains(row)) {
+      removeFromIndex(ageIndex, oldAge, row);
+      addToIndex(ageIndex, store.getAge(row), row);
+      journalAppend(record);
+    }
+  }
+  
+  /** *****************************************************************************
+    * Called by a patient of this hospital when its diagnosis changes so the 
+    * diagnosis index stays in sync with the record
+    * @params row
+    * @params oldDiagnosis
+    * @params record, the journal record of the change, null if it is not recorded
+    **************************************************************************** **/
+  void patientDiagnosisChanged(int row, String oldDiagnosis, byte[] record) {
+    if (hospitalRecord.contains(row)) {
+      removeFromIndex(diagnosisIndex, oldDiagnosis, row);
+      addToIndex(diagnosisIndex, store.getDiagnosis(row), row);
+      journalAppend(record);
+    }
+  }
+  
+  /** *****************************************************************************
+    * Called by a patient of this hospital when its gender changes so the gender
+    * index stays in sync with the record
+    * @params row
+    * @params oldGender
+    * @params record, the journal record of the change, null if it is not recorded
+    **************************************************************************** **/
+  void patientGenderChanged(int row, String oldGender, byte[] record) {
+    if (hospitalRecord.contains(row)) {
+      removeFromIndex(genderIndex, oldGender, row);
+      addToIndex(genderIndex, store.getGender(row), row);
+      journalAppend(record);
+    }
+  }
+  
+  /** *****************************************************************************
+    * Called by a patient of this hospital when its symptoms change so the symptom
+    * index stays in sync with the record
+    * @params row
+    * @params oldSymptoms
+    * @params record, the journal record of the change, null if it is not recorded
+    **************************************************************************** **/
+  void patientSymptomsChanged(int row, LinkedList<String> oldSymptoms, byte[] record) {
+    if (hospitalRecord.contains(row)) {
+      LinkedList<String> newSymptoms = store.getSymptoms(row);
+      HashSet<String> oldKeys = symptomKeys(oldSymptoms);
+      HashSet<String> newKeys = symptomKeys(newSymptoms);
+      
+      //only the symptoms that were dropped or gained touch the index
+      for (String symptom : oldKeys) {
+        if (!newKeys.contains(symptom))
+          removeFromIndex(symptomIndex, symptom, row);
+      }
+      for (String symptom : newKeys) {
+        if (!oldKeys.contains(symptom))
+          addToIndex(symptomIndex, symptom, row);
+      }
+      journalAppend(record);
+    }
+  }
+  
+  /** *****************************************************************************
+    * Returns the distinct trimmed symptoms of a list, which are the symptom index keys
+    * @params symptoms
+    **************************************************************************** **/
+  private static HashSet<String> symptomKeys(LinkedList<String> symptoms) {
+    HashSet<String> keys = new HashSet<String>();
+    for (String symptom : symptoms)
+      keys.add(symptom.trim());
+    return keys;
+  }
+  
+  /** *****************************************************************************
+    * Replaces the set of rows kept under the given key of an index with a copy that
+    * also holds the row. Patients without a value for the key are not indexed.
+    * @params index
+    * @params key
+    * @params row
+    **************************************************************************** **/
+  private static <K> void addToIndex(Map<K, RowSet> index, K key, int row) {
+    if (key != null)
+      index.put(key, getIndexed(index, key).withAdded(row));
+  }
+  
+  /** *****************************************************************************
+    * Replaces the set kept under the given key of an index with a copy without the 
+    * row, dropping the key once no rows are left under it
+    * @params index
+    * @params key
+    * @params row
+    **************************************************************************** **/
+  private static <K> void removeFromIndex(Map<K, RowSet> index, K key, int row) {
+    RowSet rows = (key == null) ? null : index.get(key);
+    if (rows != null) {
+      rows = rows.withRemoved(row);
+      if (rows.isEmpty())
+        index.remove(key);
+      else
+        index.put(key, rows);
+    }
+  }
+  
+  /** *****************************************************************************
+    * Adds a row to the rows gathered under the given key during a batch, these sets
+    * are private to the batch and can be changed in place
+    * @params batch
+    * @params key
+    * @params row
+    **************************************************************************** **/
+  private static <K> void addToBatch(HashMap<K, RowSet> batch, K key, int row) {
+    if (key == null)
+      return;
+    RowSet rows = batch.get(key);
+    if (rows == null) {
+      rows = new RowSet();
+      batch.put(key, rows);
+    }
+    rows.add(row);
+  }
+  
+  /** *****************************************************************************
+    * Replaces every set of an index that the batch added rows to with the union of
+    * the old set and the new rows
+    * @params index
+    * @params batch
+    **************************************************************************** **/
+  private static <K> void mergeIntoIndex(Map<K, RowSet> index, HashMap<K, RowSet> batch) {
+    for (Map.Entry<K, RowSet> entry : batch.entrySet())
+      index.put(entry.getKey(), getIndexed(index, entry.getKey()).or(entry.getValue()));
+  }
+  
+  /** *****************************************************************************
+    * Returns the rows kept under the given key of an index, an empty set if there are none
+    * @params index
+    * @params key
+    **************************************************************************** **/
+  private static <K> RowSet getIndexed(Map<K, RowSet> index, K key) {
+    RowSet rows = (key == null) ? null : index.get(key);
+    return (rows == null) ? new RowSet() : rows;
+  }
+  
+  /** *****************************************************************************
+    * Returns the patient in the given row, null if the patient has been removed
+    * @params row
+    **************************************************************************** **/
+  Patient patientAt(int row) {
+    return hospitalRecord.contains(row) ? store.getPatient(this, row) : null;
+  }
+  
+  /** *****************************************************************************
+    * Returns a linked list of the patients in the given rows, empty if rows is null
+    * @params rows
+    **************************************************************************** **/
+  private LinkedList<Patient> toPatientList(RowSet rows) {
+    LinkedList<Patient> patients = new LinkedList<Patient>();
+    if (rows != null)
+      addPatients(patients, rows);
+    return patients;
+  }
+  
+  /** *****************************************************************************
+    * Adds the patients in the given rows to the end of a linked list
+    * @params patients
+    * @params rows
+    **************************************************************************** **/
+  private void addPatients(LinkedList<Patient> patients, RowSet rows) {
+    PrimitiveIterator.OfInt it = rows.iterator();
+    while (it.hasNext()) {
+      //skips patients removed since the rows were read
+      Patient p = patientAt(it.nextInt());
+      if (p != null)
+        patients.add(p);
+    }
+  }
+  
+  
+  /** *****************************************************************************
+    * Stress test: runs intake workers that add, remove and change patients against
+    * analysts that search the same hospital, for the given number of milliseconds.
+    * Returns the number of searches per second the analysts got through, and throws
+    * if a search failed or returned a patient that does not match it.
+    * @params analysts
+    * @params workers
+    * @params millis
+    **************************************************************************** **/
+  static double stressTest(int analysts, int workers, long millis) {
+    final HospitalRecords hospital = new HospitalRecords("Stress Test Hospital", new ColumnarPatientStore());
+    final String[] disorders = {"schizophrenia", "bipolar disorder", "major depressive disorder"};
+    final String[] genders = {"female", "male"};
+    final String[] symptoms = {"delusions", "hallucinations", "insomnia", "fatigue", "weight loss", "manic episode"};
     
-    boolean isPatient = false;//boolean to check if patient had already been added
+    LinkedList<Patient> patients = new LinkedList<Patient>();
+    Random random = new Random(1);
+    for (int i = 0; i < 20000; i++)
+      patients.add(new Patient("Patient " + i, random.nextInt(90), genders[random.nextInt(2)], disorders[random.nextInt(3)],
+                               symptoms[random.nextInt(6)] + "," + symptoms[random.nextInt(6)]));
+    hospital.addPatients(patients);
     
-    for(int i = 0; i < getNumPatients(); i++) {
-      if (!isPatient) {
-        //checks for a patient with a matching name
-        if (hospitalRecord.get(i).getName().equals(patientName)){
-          isPatient = true;//if such patient is found, update boolean
-          break;//break out of for loop
+    final long deadline = System.currentTimeMillis() + millis;
+    final AtomicLong searches = new AtomicLong();
+    final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    
+    for (int w = 0; w < workers; w++) {
+      final int worker = w;
+      threads.add(new Thread() {
+        public void run() {
+          try {
+            Random random = new Random(worker);
+            for (int n = 0; System.currentTimeMillis() < deadline; n++) {
+              hospital.addPatient(new Patient("Worker " + worker + " patient " + n, random.nextInt(90), genders[random.nextInt(2)],
+                                              disorders[random.nextInt(3)], symptoms[random.nextInt(6)]));
+              if (n % 3 == 2)
+                hospital.removePatient("Worker " + worker + " patient " + (n - 2));
+              Patient p = hospital.getPatient("Patient " + random.nextInt(20000));
+              if (p != null) {
+                p.setAge(random.nextInt(90));
+                p.addSymptoms(symptoms[random.nextInt(6)]);
+              }
+            }
+          } catch (Throwable t) {
+            failures.add(t);
+          }
         }
-      }
+      });
+    }
+    
+    for (int a = 0; a < analysts; a++) {
+      final int analyst = a;
+      threads.add(new Thread() {
+        public void run() {
+          try {
+            Random random = new Random(100 + analyst);
+            while (System.currentTimeMillis() < deadline) {
+              String disorder = disorders[random.nextInt(3)];
+              String gender = genders[random.nextInt(2)];
+              int lower = random.nextInt(80);
+              PatientQuery query = new PatientQuery().withDisorder(disorder).withGender(gender).withAgeRange(lower, lower + 10);
+              for (Patient p : hospital.findPatients(query)) {
+                if (!disorder.equals(p.getDiagnosis()) || !gender.equals(p.getGender()))
+                  throw new IllegalStateException("Search for " + query + " returned" + p);
+              }
+              hospital.countPatients(new PatientQuery().withSymptom(symptoms[random.nextInt(6)]));
+              searches.addAndGet(2);
+            }
+          } catch (Throwable t) {
+            failures.add(t);
+          }
+        }
+      });
+    }
+    
+    for (Thread t : threads)
+      t.start();
+    try {
+      for (Thread t : threads)
+        t.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    
+    if (!failures.isEmpty())
+      throw new IllegalStateException("Stress test failed", failures.peek());
+    return searches.get() * 1000.0 / millis;
+  }
+  
+  
+  /** *****************************************************************************
+    * A copy of a row as it was until the change with the given number, followed by
+    * the copy before it
+    *************************************************************************** **/
+  private static class RowVersion {
+    final Patient patient;
+    final long replacedAt;
+    volatile RowVersion older; //cut off once no pinned version needs the older copies
+    
+    RowVersion(Patient patient, long replacedAt, RowVersion older) {
+      this.patient = patient;
+      this.replacedAt = replacedAt;
+      this.older = older;
     }
-    return isPatient;
   }
   
   
@@ -215,6 +1057,7 @@ public class HospitalRecords {
     System.out.println(BMC);
     System.out.println("Testing method isPatient('John Smith') (TRUE): " + BMC.isPatient("John Smith"));
     System.out.println("Testing getPatient('John Smith') \n" + BMC.getPatient("John Smith"));
+    System.out.println("Testing getPatientByNumber() for John Smith \n" + BMC.getPatientByNumber(BMC.getPatient("John Smith").getPatientNumber()));
     BMC.removePatient("John Smith");
     System.out.println("\nTesting removePatient('John Smith'):"+ BMC);
     BMC.removePatient("Johnny Smith");
@@ -238,9 +1081,94 @@ public class HospitalRecords {
     System.out.println("Testing getPatientsOfAge('21,21'):\n" + BMC.getPatientsOfAge(21,21) + "\n");
     System.out.println("Testing getPatientsOfAge('25,40'):\n" + BMC.getPatientsOfAge(25,40) + "\n");
     System.out.println("Testing getPatientsOfAge('10,18'):\n" + BMC.getPatientsOfAge(10,18) + "\n");
+    System.out.println("Testing countPatientsOfAge('21,36') (4): " + BMC.countPatientsOfAge(21,36) + "\n");
     
     System.out.println("Testing getPatientsOfGender('female'):\n" + BMC.getPatientsOfGender("female") + "\n");
     
+    BMC.getPatient("Harry Taylor").setName("Harold Taylor");
+    System.out.println("Testing setName('Harold Taylor') keeps the name index in sync (FALSE, TRUE): " 
+                         + BMC.isPatient("Harry Taylor") + ", " + BMC.isPatient("Harold Taylor"));
+    try {
+      BMC.getPatient("Harold Taylor").setName("Mary Miller");
+      System.out.println("Testing setName('Mary Miller') on Harold Taylor gave two patients the same name");
+    } catch (IllegalArgumentException e) {
+      System.out.println("Testing setName('Mary Miller') on Harold Taylor is refused, Mary Miller still aged 25 (TRUE, 25): "
+                           + BMC.isPatient("Harold Taylor") + ", " + BMC.getPatient("Mary Miller").getAge());
+    }
+    
+    BMC.getPatient("Mary Miller").setDiagnosis("bipolar disorder");
+    System.out.println("Testing setDiagnosis('bipolar disorder') on Mary Miller, getPatientsWithDisorder('bipolar disorder') (2 patients): " 
+                         + BMC.getPatientsWithDisorder("bipolar disorder").size());
+    BMC.getPatient("John Smith").setAge(41);
+    System.out.println("Testing setAge(41) on John Smith, countPatientsOfAge('40,50') (1): " + BMC.countPatientsOfAge(40,50));
+    BMC.getPatient("Carry Roy").setGender("male");
+    System.out.println("Testing setGender('male') on Carry Roy, getPatientsOfGender('female') (1 patient): " 
+                         + BMC.getPatientsOfGender("female").size());
+    
+    System.out.println("Testing addPatients() with a duplicate in the batch and one already in the hospital (2 rejected): "
+                         + BMC.addPatients(Arrays.asList(
+                             new Patient("Ann Lee", 30, "female", "schizophrenia", "delusions,hallucinations"),
+                             new Patient("Ann Lee", 31, "female", "schizophrenia", "delusions"),
+                             new Patient("John Smith", 36, "male", "major depressive disorder", "weight loss"))).size());
+    System.out.println("getNumPatients() after addPatients() (5): " + BMC.getNumPatients() + "\n");
+    
+    System.out.println("Testing getPatients() for female patients with bipolar disorder aged 20 to 30 (Mary Miller):\n" 
+                         + BMC.getPatients(new PatientQuery().withDisorder("bipolar disorder").withGender("female").withAgeRange(20,30)));
+    System.out.println("Testing countPatients() for schizophrenia and age (20,40) (2): " 
+                         + BMC.countPatients(new PatientQuery().withDisorder("schizophrenia").withAgeRange(20,40)) + "\n");
+    
+    BMC.getPatient("Ann Lee").addSymptoms("disorganized speech");
+    BMC.getPatient("Harold Taylor").removeSymptoms(" reduced affect");
+    System.out.println("Testing getPatients() for delusions AND hallucinations (2): " 
+                         + BMC.countPatients(new PatientQuery().withSymptom("delusions").withSymptom("hallucinations")));
+    System.out.println("Testing getPatients() for weight loss OR disorganized speech (Ann Lee, John Smith): " 
+                         + BMC.getPatients(new PatientQuery().withAnySymptom("weight loss", "disorganized speech")).size());
+    System.out.println("Testing getPatients() for delusions AND NOT disorganized speech (Harold Taylor): " 
+                         + BMC.getPatients(new PatientQuery().withSymptom("delusions").withoutSymptom("disorganized speech")).getFirst().getName());
+    System.out.println("Testing getPatients() for reduced affect after removeSymptoms() (0): " 
+                         + BMC.countPatients(new PatientQuery().withSymptom("reduced affect")) + "\n");
+    
+    //The same checks against a hospital that keeps its patients in columns
+    HospitalRecords MGH = new HospitalRecords("Massachusetts General Hospital", new ColumnarPatientStore());
+    MGH.addPatient(new Patient("John Smith", 36, "male", "major depressive disorder", "diminished interest,weight loss,sense of hopelessness,early wakening"));
+    MGH.addPatient(new Patient("Carry Roy", 21, "female", "bipolar disorder", "manic episode,overtalkativeness,reduced need for sleep"));
+    MGH.addPatient(new Patient("Mary Miller", 25, "female", "major depressive disorder", "diminished interest,weight gain,sense of hopelessness, suicidal thoughts"));
+    MGH.addPatient(new Patient("Harry Taylor", 21, "male", "schizophrenia", "delusions, hallucinations, reduced affect"));
+    MGH.removePatient("Carry Roy");
+    System.out.println(MGH);
+    
+    Patient mary = MGH.getPatient("Mary Miller");
+    mary.setAge(52);
+    mary.addSymptoms("early wakening");
+    mary.removeSymptoms("weight gain");
+    System.out.println("Testing a columnar view after setAge(52), addSymptoms and removeSymptoms:" + MGH.getPatient("Mary Miller"));
+    System.out.println("Testing columnar getPatientsOfAge('50,60') (Mary Miller): " + MGH.getPatientsOfAge(50,60));
+    System.out.println("Testing columnar getPatientsOfGender('male') (2 patients): " + MGH.getPatientsOfGender("male").size());
+    
+    //a patient of one hospital added to another is copied, later changes stay in its own hospital
+    HospitalRecords copied = new HospitalRecords("Copied Hospital", new ColumnarPatientStore());
+    copied.addPatient(BMC.getPatient("Mary Miller"));
+    BMC.getPatient("Mary Miller").setAge(50);
+    System.out.println("Testing setAge(50) through the first hospital after adding Mary Miller to a columnar one (1, 0): "
+                         + BMC.countPatientsOfAge(50,50) + ", " + copied.countPatientsOfAge(50,50) + "\n");
+    
+    //Paging through search results
+    PatientResults everyone = MGH.findPatients(new PatientQuery());
+    MGH.removePatient("John Smith");
+    System.out.println("Testing findPatients() size after a later removePatient() (3): " + everyone.size());
+    System.out.println("Testing that the removed patient is skipped (Mary Miller, Harry Taylor): " 
+                         + everyone.stream().map(Patient::getName).collect(Collectors.toList()));
+    System.out.println("Testing getPatients(query, 1, 5) (Harry Taylor): " 
+                         + MGH.getPatients(new PatientQuery(), 1, 5).getFirst().getName());
+    System.out.println("Testing streamPatients() for male patients (Harry Taylor): " 
+                         + MGH.streamPatients(new PatientQuery().withGender("male")).findFirst().get().getName() + "\n");
+    
+    //Searching while other threads add, remove and change patients, the number of
+    //searches per second should grow with the number of analysts up to the core count
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int analysts = 1; analysts <= Math.max(cores, 2); analysts *= 2)
+      System.out.println("Stress test with 1 intake worker and " + analysts + " analysts on " + cores + " cores: " 
+                           + (int) stressTest(analysts, 1, 1000) + " searches per second");
     
   }
   
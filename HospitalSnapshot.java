@@ -0,0 +1,537 @@
+/* FILENAME: HospitalSnapshot.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Saves all the patients of a hospital in one compact binary file and reads
+ * them back, which is much faster than replaying every change from the journal.
+ *
+ * */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** *****************************************************************************
+  * A HospitalSnapshot is a binary file holding the patients of a hospital at one
+  * moment. The file is laid out as
+  *
+  *   header:       magic number, format version, hospital name, first journal
+  *                 segment that is not part of the snapshot
+  *   records:      one per patient: its length, patient number, age, gender id,
+  *                 diagnosis id, name, number of symptoms and symptom ids
+  *   dictionary:   the gender, diagnosis and symptom strings, numbered from 0
+  *   offset table: the position of every record
+  *   footer:       positions of the dictionary and the offset table, the number of
+  *                 patients and the magic number again
+  *
+  * All numbers are big endian and strings are written as their length followed by
+  * their UTF-8 bytes, with the length -1 for null. A snapshot is opened by mapping the
+  * file into memory, so reading a single patient through the offset table only
+  * touches the pages that hold its record. A ByteBuffer cannot map more than 2 GB,
+  * so the file is mapped as a series of regions of up to 1 GB and a value that
+  * lies across two regions is read a byte at a time.
+  *
+  * Version 1 files, which have no journal segment in the header, are still read.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class HospitalSnapshot {
+
+  //identifies snapshot files, "HSNP"
+  private static final int MAGIC = 0x48534E50;
+
+  //version of the layout written by this class
+  public static final int VERSION = 2;
+
+  //two longs and two ints
+  private static final int FOOTER_SIZE = 24;
+
+  //bytes of the file mapped in each region, as a power of two
+  private static final int REGION_BITS = 30;
+
+  //instance variables
+  private final ByteBuffer[] regions; //the mapped file, read only through absolute gets
+  private final int regionBits;
+  private final long size;
+  private final String hospitalName;
+  private final long journalSegment;
+  private final String[] dictionary;
+  private final long recordsStart;
+  private final long offsetTable;
+  private final int patientCount;
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Reads the header, footer and dictionary of a mapped snapshot file
+    * @params mapped, the regions of the file in order
+    * @params mappedRegionBits, bytes of every region but the last, as a power of two
+    * @params fileSize
+    * @params fileName
+    **************************************************************************** **/
+  private HospitalSnapshot(ByteBuffer[] mapped, int mappedRegionBits, long fileSize, String fileName) throws IOException {
+    regions = mapped;
+    regionBits = mappedRegionBits;
+    size = fileSize;
+    if (size < 8 + FOOTER_SIZE || readerAt(0).getInt() != MAGIC || readerAt(size - 4).getInt() != MAGIC)
+      throw new IOException("Not a hospital snapshot: " + fileName);
+    int version = readerAt(4).getInt();
+    if (version < 1 || version > VERSION)
+      throw new IOException("Unsupported snapshot version " + version + " in " + fileName);
+
+    SnapshotReader in = readerAt(8);
+    hospitalName = in.getString();
+    journalSegment = (version >= 2) ? in.getLong() : 0;
+    recordsStart = in.position();
+
+    SnapshotReader footer = readerAt(size - FOOTER_SIZE);
+    long dictionaryStart = footer.getLong();
+    offsetTable = footer.getLong();
+    patientCount = footer.getInt();
+
+    in = readerAt(dictionaryStart);
+    dictionary = new String[in.getInt()];
+    for (int i = 0; i < dictionary.length; i++)
+      dictionary[i] = in.getString();
+  }
+
+  /** *****************************************************************************
+    * Opens the snapshot kept in the given file by mapping it into memory
+    * @params fileName
+    **************************************************************************** **/
+  public static HospitalSnapshot open(String fileName) throws IOException {
+    return open(fileName, REGION_BITS);
+  }
+
+  /** *****************************************************************************
+    * Opens the snapshot kept in the given file by mapping it in regions of the
+    * given size, small regions are used to test reading across them
+    * @params fileName
+    * @params regionBits, bytes of a region as a power of two
+    **************************************************************************** **/
+  static HospitalSnapshot open(String fileName, int regionBits) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+      long fileSize = channel.size();
+      long regionSize = 1L << regionBits;
+      ByteBuffer[] mapped = new ByteBuffer[(int) ((fileSize + regionSize - 1) >>> regionBits)];
+      for (int i = 0; i < mapped.length; i++) {
+        long start = (long) i << regionBits;
+        mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, fileSize - start));
+      }
+      return new HospitalSnapshot(mapped, regionBits, fileSize, fileName);
+    }
+  }
+
+  /** *****************************************************************************
+    * Writes the patients of the hospital to the given file. The snapshot is written
+    * to a temporary file first and moved over the old one once it is complete, so
+    * the file always holds a whole snapshot.
+    * @params hospital
+    * @params fileName
+    **************************************************************************** **/
+  public static void write(HospitalRecords hospital, String fileName) throws IOException {
+    synchronized (hospital.writeLock) {
+      write(hospital, hospital.hospitalRecord, 0, Paths.get(fileName));
+    }
+  }
+
+  /** *****************************************************************************
+    * Writes the patients in the given rows of the hospital's store, noting the first
+    * journal segment whose changes are not in the snapshot. Rows whose patient is
+    * removed while the snapshot is written are left out.
+    * @params hospital
+    * @params rows
+    * @params firstSegment
+    * @params file
+    **************************************************************************** **/
+  static void write(HospitalRecords hospital, RowSet rows, long firstSegment, Path file) throws IOException {
+    PatientStore store = hospital.store;
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    StringDictionary strings = new StringDictionary();
+    long[] offsets = new long[rows.size()];
+
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+      SnapshotWriter out = new SnapshotWriter(channel);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeString(hospital.getHospitalName());
+      out.writeLong(firstSegment);
+
+      //records, each one first built in memory to learn its length
+      ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+      DataOutputStream record = new DataOutputStream(recordBytes);
+      int count = 0;
+      PrimitiveIterator.OfInt it = rows.iterator();
+      while (it.hasNext()) {
+        int row = it.nextInt();
+        String name = store.getName(row);
+        int number = store.getPatientNumber(row);
+        int age = store.getAge(row);
+        String gender = store.getGender(row);
+        String diagnosis = store.getDiagnosis(row);
+        LinkedList<String> symptoms = store.getSymptoms(row);
+
+        //a removed patient is skipped, its removal is in a later journal segment. The row is
+        //checked after it is read, so a row read while it was being removed is skipped too.
+        if (name == null || !hospital.hospitalRecord.contains(row))
+          continue;
+
+        recordBytes.reset();
+        record.writeInt(number);
+        record.writeInt(age);
+        record.writeInt(strings.getId(gender));
+        record.writeInt(strings.getId(diagnosis));
+        writeString(record, name);
+        record.writeInt(symptoms.size());
+        for (String symptom : symptoms)
+          record.writeInt(strings.getId(symptom));
+
+        offsets[count++] = out.position();
+        out.writeInt(recordBytes.size());
+        out.write(recordBytes.toByteArray());
+      }
+
+      long dictionaryStart = out.position();
+      out.writeInt(strings.size());
+      for (int id = 0; id < strings.size(); id++)
+        out.writeString(strings.getString(id));
+
+      long offsetTableStart = out.position();
+      for (int i = 0; i < count; i++)
+        out.writeLong(offsets[i]);
+
+      out.writeLong(dictionaryStart);
+      out.writeLong(offsetTableStart);
+      out.writeInt(count);
+      out.writeInt(MAGIC);
+      out.flush();
+      channel.force(true);
+    }
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** *****************************************************************************
+    * Returns the name of the hospital the snapshot was taken of
+    **************************************************************************** **/
+  public String getHospitalName() {
+    return hospitalName;
+  }
+
+  /** *****************************************************************************
+    * Returns the first journal segment whose changes are not in the snapshot
+    **************************************************************************** **/
+  public long getJournalSegment() {
+    return journalSegment;
+  }
+
+  /** *****************************************************************************
+    * Returns the number of patients in the snapshot
+    **************************************************************************** **/
+  public int getPatientCount() {
+    return patientCount;
+  }
+
+  /** *****************************************************************************
+    * Returns the patient with the given position in the snapshot, reading only its
+    * record. The patient does not belong to any hospital.
+    * @params index
+    **************************************************************************** **/
+  public Patient readPatient(int index) {
+    if (index < 0 || index >= patientCount)
+      throw new IndexOutOfBoundsException("No patient " + index + " in a snapshot of " + patientCount);
+
+    SnapshotReader in = readerAt(readerAt(offsetTable + 8L * index).getLong() + 4);
+    int number = in.getInt();
+    int age = in.getInt();
+    String gender = lookUp(in.getInt());
+    String diagnosis = lookUp(in.getInt());
+    String name = in.getString();
+    return new Patient(name, number, age, gender, diagnosis, readSymptoms(in));
+  }
+
+  /** *****************************************************************************
+    * Returns a new hospital holding the patients of the snapshot in a
+    * ColumnarPatientStore, see load(PatientStore)
+    **************************************************************************** **/
+  public HospitalRecords load() {
+    return load(new ColumnarPatientStore());
+  }
+
+  /** *****************************************************************************
+    * Returns a new hospital holding the patients of the snapshot in the given store,
+    * which must be empty. The records are read in order straight from the mapped
+    * file into the store and the indexes are built once at the end. A
+    * ColumnarPatientStore is filled column by column, with the symptom ids of the
+    * snapshot turned into vocabulary ids through a table rather than into strings;
+    * any other store is handed one Patient per record, so a DiskPatientStore never
+    * holds more than its cache in memory.
+    *
+    * The indexes of the hospital are not kept in the snapshot, so loading always
+    * decodes every record and rebuilds every index, and takes time in proportion to
+    * the number of patients whatever the store. Only readPatient reads a single
+    * record without the others.
+    * @params store
+    **************************************************************************** **/
+  public HospitalRecords load(PatientStore store) {
+    if (store.getRowCount() != 0)
+      throw new IllegalArgumentException("A snapshot can only be loaded into an empty store");
+    HospitalRecords hospital = new HospitalRecords(hospitalName, store);
+    ColumnarPatientStore columns = (store instanceof ColumnarPatientStore) ? (ColumnarPatientStore) store : null;
+    store.ensureCapacity(patientCount);
+    int[] vocabularyIds = new int[dictionary.length]; //vocabulary id of each dictionary string, -1 until needed
+    Arrays.fill(vocabularyIds, -1);
+
+    SnapshotReader in = readerAt(recordsStart);
+    int highestNumber = -1;
+    for (int i = 0; i < patientCount; i++) {
+      in.getInt(); //the length is only needed to skip a record
+      int number = in.getInt();
+      int age = in.getInt();
+      String gender = lookUp(in.getInt());
+      String diagnosis = lookUp(in.getInt());
+      String name = in.getString();
+      if (columns != null)
+        columns.addRow(name, number, age, gender, diagnosis, readSymptomIds(in, vocabularyIds));
+      else
+        store.addPatient(hospital, new Patient(name, number, age, gender, diagnosis, readSymptoms(in)));
+      highestNumber = Math.max(highestNumber, number);
+    }
+
+    hospital.indexStoredRows();
+
+    //numbers of the loaded patients are not given out again
+    if (highestNumber >= 0)
+      PatientNumberAllocator.getDefault().skipPast(highestNumber);
+    return hospital;
+  }
+
+
+  //helper methods
+
+  private String lookUp(int id) {
+    return (id < 0) ? null : dictionary[id];
+  }
+
+  private SnapshotReader readerAt(long position) {
+    return new SnapshotReader(regions, regionBits, position);
+  }
+
+  private LinkedList<String> readSymptoms(SnapshotReader in) {
+    LinkedList<String> symptoms = new LinkedList<String>();
+    for (int i = in.getInt(); i > 0; i--)
+      symptoms.add(dictionary[in.getInt()]);
+    return symptoms;
+  }
+
+  /** *****************************************************************************
+    * Reads the symptoms of a record as SymptomVocabulary ids, looking each string of
+    * the dictionary up in the vocabulary only the first time it is met
+    * @params in
+    * @params vocabularyIds, vocabulary id of each string of the dictionary, -1 if not looked up yet
+    **************************************************************************** **/
+  private int[] readSymptomIds(SnapshotReader in, int[] vocabularyIds) {
+    int[] ids = new int[in.getInt()];
+    for (int i = 0; i < ids.length; i++) {
+      int id = in.getInt();
+      if (vocabularyIds[id] < 0)
+        vocabularyIds[id] = SymptomVocabulary.getDefault().getId(dictionary[id]);
+      ids[i] = vocabularyIds[id];
+    }
+    return ids;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  /** *****************************************************************************
+    * Reads big endian values from the mapped regions of a snapshot, starting at a
+    * position in the file. Values are read with absolute gets, so any number of
+    * readers can share the regions.
+    *************************************************************************** **/
+  private static class SnapshotReader {
+    private final ByteBuffer[] regions;
+    private final int regionBits;
+    private final long regionMask;
+    private long position;
+
+    SnapshotReader(ByteBuffer[] regions, int regionBits, long position) {
+      this.regions = regions;
+      this.regionBits = regionBits;
+      this.regionMask = (1L << regionBits) - 1;
+      this.position = position;
+    }
+
+    long position() {
+      return position;
+    }
+
+    int getInt() {
+      ByteBuffer region = regions[(int) (position >>> regionBits)];
+      int at = (int) (position & regionMask);
+      if (at + 4 > region.limit())
+        return (int) getAcross(4);
+      position += 4;
+      return region.getInt(at);
+    }
+
+    long getLong() {
+      ByteBuffer region = regions[(int) (position >>> regionBits)];
+      int at = (int) (position & regionMask);
+      if (at + 8 > region.limit())
+        return getAcross(8);
+      position += 8;
+      return region.getLong(at);
+    }
+
+    void get(byte[] data) {
+      for (int done = 0; done < data.length; ) {
+        ByteBuffer region = regions[(int) (position >>> regionBits)];
+        int at = (int) (position & regionMask);
+        int chunk = Math.min(region.limit() - at, data.length - done);
+        region.get(at, data, done, chunk);
+        done += chunk;
+        position += chunk;
+      }
+    }
+
+    String getString() {
+      int length = getInt();
+      if (length < 0)
+        return null;
+      byte[] data = new byte[length];
+      get(data);
+      return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /** Reads a value that starts at the end of one region and ends in the next */
+    private long getAcross(int bytes) {
+      long value = 0;
+      for (int i = 0; i < bytes; i++) {
+        value = (value << 8) | (regions[(int) (position >>> regionBits)].get((int) (position & regionMask)) & 0xFF);
+        position++;
+      }
+      return value;
+    }
+  }
+
+  /** *****************************************************************************
+    * Writes big endian values to a channel through a buffer and keeps track of the
+    * position in the file, which goes past what DataOutputStream can count
+    *************************************************************************** **/
+  private static class SnapshotWriter {
+    private final FileChannel channel;
+    private final ByteBuffer bytes = ByteBuffer.allocate(1 << 16);
+    private long written;
+
+    SnapshotWriter(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    long position() {
+      return written + bytes.position();
+    }
+
+    void writeInt(int value) throws IOException {
+      room(4);
+      bytes.putInt(value);
+    }
+
+    void writeLong(long value) throws IOException {
+      room(8);
+      bytes.putLong(value);
+    }
+
+    void write(byte[] data) throws IOException {
+      for (int done = 0; done < data.length; ) {
+        room(1);
+        int chunk = Math.min(bytes.remaining(), data.length - done);
+        bytes.put(data, done, chunk);
+        done += chunk;
+      }
+    }
+
+    void writeString(String s) throws IOException {
+      if (s == null) {
+        writeInt(-1);
+      } else {
+        byte[] data = s.getBytes(StandardCharsets.UTF_8);
+        writeInt(data.length);
+        write(data);
+      }
+    }
+
+    void flush() throws IOException {
+      bytes.flip();
+      while (bytes.hasRemaining())
+        written += channel.write(bytes);
+      bytes.clear();
+    }
+
+    private void room(int needed) throws IOException {
+      if (bytes.remaining() < needed)
+        flush();
+    }
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) throws Exception {
+    Path testFile = Files.createTempFile("hospitalSnapshot", ".dat");
+
+    HospitalRecords BMC = new HospitalRecords("Boston Medical Center");
+    BMC.addPatient(new Patient("John Smith", 36, "male", "major depressive disorder", "diminished interest,weight loss"));
+    BMC.addPatient(new Patient("Carry Roy", 21, "female", "bipolar disorder", "manic episode,overtalkativeness"));
+    BMC.addPatient(new Patient("Mark Jones", 23, "male", "schizophrenia", "delusions,hallucinations"));
+    BMC.removePatient("Carry Roy");
+    HospitalSnapshot.write(BMC, testFile.toString());
+
+    HospitalSnapshot snapshot = HospitalSnapshot.open(testFile.toString());
+    System.out.println("Patients in the snapshot (2): " + snapshot.getPatientCount());
+    System.out.println("Reading the second patient only (Mark Jones):" + snapshot.readPatient(1));
+    HospitalRecords loaded = snapshot.load();
+    System.out.println("Loaded hospital equals the saved one (true): " + loaded.toString().equals(BMC.toString()));
+    System.out.println("Search on the loaded hospital, schizophrenia (1): " + loaded.getPatientsWithDisorder("schizophrenia").size());
+
+    //a larger hospital, the time to open and load it is what a restart costs
+    String[] disorders = {"schizophrenia", "bipolar disorder", "major depressive disorder"};
+    String[] symptoms = {"delusions", "hallucinations", "insomnia", "fatigue", "weight loss", "manic episode"};
+    LinkedList<Patient> patients = new LinkedList<Patient>();
+    Random random = new Random(1);
+    for (int i = 0; i < 200000; i++)
+      patients.add(new Patient("Patient " + i, random.nextInt(90), (i % 2 == 0) ? "female" : "male", disorders[random.nextInt(3)],
+                               symptoms[random.nextInt(6)] + "," + symptoms[random.nextInt(6)]));
+    HospitalRecords large = new HospitalRecords("Massachusetts General Hospital", new ColumnarPatientStore());
+    large.addPatients(patients);
+    HospitalSnapshot.write(large, testFile.toString());
+
+    long start = System.nanoTime();
+    HospitalRecords reloaded = HospitalSnapshot.open(testFile.toString()).load();
+    System.out.println("Loaded " + reloaded.getNumPatients() + " patients from " + Files.size(testFile) / 1024 + " KB in "
+                         + (System.nanoTime() - start) / 1000000 + " ms");
+    System.out.println("Same female patients as before (true): "
+                         + (reloaded.getPatientsOfGender("female").size() == large.getPatientsOfGender("female").size()));
+
+    //mapped in regions of 4 KB, so that many values and records lie across two regions, as they do in
+    //regions of 1 GB for snapshots larger than 2 GB
+    HospitalSnapshot inRegions = HospitalSnapshot.open(testFile.toString(), 12);
+    HospitalRecords regionLoaded = inRegions.load();
+    System.out.println("Same patients read from 4 KB regions (true, Patient 123456): "
+                         + (regionLoaded.getPatientsOfGender("female").size() == large.getPatientsOfGender("female").size())
+                         + ", " + inRegions.readPatient(123456).getName());
+    Files.delete(testFile);
+  }
+
+}
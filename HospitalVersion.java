@@ -0,0 +1,337 @@
+/* FILENAME: HospitalVersion.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: A view of a hospital as it was at one moment, for analyses and exports
+ * that run while patients keep being added, changed and removed.
+ *
+ * */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** *****************************************************************************
+  * A HospitalVersion is made by HospitalRecords.pinVersion() and can be searched like
+  * the hospital itself, but always gives the answers the hospital gave when it was
+  * pinned. Patients added later are not in it, patients removed later still are, and
+  * its patients keep the information they had.
+  *
+  * Nothing is copied up front but the small maps of the diagnosis, gender, age and
+  * symptom indexes, whose sets of rows are never changed in place. Rows are still
+  * read from the store of the hospital; only when a row is about to change, and a
+  * pinned version can see it, does the hospital keep a copy of it as it was. Closing
+  * the version lets the hospital drop the copies no other version needs. Searches
+  * take no lock, so a long analysis never holds up changes to the hospital.
+  *
+  * A version is read only: adding, removing or changing its patients throws an
+  * UnsupportedOperationException.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class HospitalVersion extends HospitalRecords implements AutoCloseable {
+
+  //instance variables
+  private final HospitalRecords live; //the hospital this is a version of
+  private final long version;
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Takes in the hospital and the version to show, called while the write lock of
+    * the hospital is held
+    * @params liveHospital
+    * @params pinnedVersion
+    **************************************************************************** **/
+  HospitalVersion(HospitalRecords liveHospital, long pinnedVersion) {
+    super(liveHospital.getHospitalName(), new VersionStore(liveHospital, pinnedVersion));
+    live = liveHospital;
+    version = pinnedVersion;
+    pinIndexesOf(live);
+  }
+
+  /** *****************************************************************************
+    * Returns the number of changes made to the hospital before this version
+    **************************************************************************** **/
+  public long getVersion() {
+    return version;
+  }
+
+  /** *****************************************************************************
+    * Lets the hospital drop the rows it kept for this version. The version must not
+    * be searched afterwards.
+    **************************************************************************** **/
+  public void close() {
+    if (closed.compareAndSet(false, true))
+      live.unpinVersion(version);
+  }
+
+  /** *****************************************************************************
+    *Returns the patient with the given name in this version, null if there was none
+    * @params patientToGet
+    **************************************************************************** **/
+  public Patient getPatient(String patientToGet) {
+    int row = live.rowOf(patientToGet);
+    if (row < 0 || !hospitalRecord.contains(row) || !patientToGet.equals(store.getName(row)))
+      row = live.changedRowOf(version, patientToGet, 0);
+    return (row >= 0 && hospitalRecord.contains(row)) ? store.getPatient(this, row) : null;
+  }
+
+  /** *****************************************************************************
+    *Returns the patient with the given number in this version, null if there was none
+    * @params patientNumber
+    **************************************************************************** **/
+  public Patient getPatientByNumber(int patientNumber) {
+    int row = live.rowOfNumber(patientNumber);
+    if (row < 0)
+      row = live.changedRowOf(version, null, patientNumber);
+    return (row >= 0 && hospitalRecord.contains(row)) ? store.getPatient(this, row) : null;
+  }
+
+  /** *****************************************************************************
+    * returns boolean determining if the patient with the given name was a patient
+    * @ params patientName
+    **************************************************************************** **/
+  public Boolean isPatient(String patientName) {
+    return getPatient(patientName) != null;
+  }
+
+
+  /*CHANGES ARE NOT ALLOWED*/
+
+  public void addPatient(Patient patientToAdd) {
+    throw new UnsupportedOperationException("A pinned version of " + getHospitalName() + " cannot be changed");
+  }
+
+  public LinkedList<Patient> addPatients(Iterable<Patient> patientsToAdd) {
+    throw new UnsupportedOperationException("A pinned version of " + getHospitalName() + " cannot be changed");
+  }
+
+  public void removePatient(String patientToRemove) {
+    throw new UnsupportedOperationException("A pinned version of " + getHospitalName() + " cannot be changed");
+  }
+
+  public void setJournal(PatientJournal patientJournal) {
+    throw new UnsupportedOperationException("A pinned version of " + getHospitalName() + " cannot be changed");
+  }
+
+
+  /** *****************************************************************************
+    * Reads the rows of the hospital as they were in the pinned version: from the copy
+    * the hospital kept if the row has changed since, from the store otherwise. The
+    * copy is kept before the row changes, so a value read from the store is checked
+    * against the copies once more in case the row changed while it was read.
+    *************************************************************************** **/
+  private static class VersionStore implements PatientStore {
+    private final HospitalRecords live;
+    private final long version;
+
+    VersionStore(HospitalRecords liveHospital, long pinnedVersion) {
+      live = liveHospital;
+      version = pinnedVersion;
+    }
+
+    public int addPatient(HospitalRecords hospital, Patient patient) {
+      throw new UnsupportedOperationException("A pinned version cannot be changed");
+    }
+
+    public void removePatient(int row) {
+      throw new UnsupportedOperationException("A pinned version cannot be changed");
+    }
+
+    public Patient getPatient(HospitalRecords hospital, int row) {
+      return new Patient(hospital, this, row);
+    }
+
+    public void ensureCapacity(int rows) {
+    }
+
+    public int getRowCount() {
+      return live.store.getRowCount();
+    }
+
+
+    /*GETTERS*/
+
+    public String getName(int row) {
+      Patient kept = live.rowAsOf(row, version);
+      if (kept != null)
+        return kept.getName();
+      String name = live.store.getName(row);
+      kept = live.rowAsOf(row, version);
+      return (kept == null) ? name : kept.getName();
+    }
+
+    public int getPatientNumber(int row) {
+      //patient numbers never change, but a store may forget the number of a removed row
+      Patient kept = live.rowAsOf(row, version);
+      return (kept != null) ? kept.getPatientNumber() : live.store.getPatientNumber(row);
+    }
+
+    public int getAge(int row) {
+      Patient kept = live.rowAsOf(row, version);
+      if (kept != null)
+        return kept.getAge();
+      int age = live.store.getAge(row);
+      kept = live.rowAsOf(row, version);
+      return (kept == null) ? age : kept.getAge();
+    }
+
+    public String getGender(int row) {
+      Patient kept = live.rowAsOf(row, version);
+      if (kept != null)
+        return kept.getGender();
+      String gender = live.store.getGender(row);
+      kept = live.rowAsOf(row, version);
+      return (kept == null) ? gender : kept.getGender();
+    }
+
+    public String getDiagnosis(int row) {
+      Patient kept = live.rowAsOf(row, version);
+      if (kept != null)
+        return kept.getDiagnosis();
+      String diagnosis = live.store.getDiagnosis(row);
+      kept = live.rowAsOf(row, version);
+      return (kept == null) ? diagnosis : kept.getDiagnosis();
+    }
+
+    public LinkedList<String> getSymptoms(int row) {
+      Patient kept = live.rowAsOf(row, version);
+      if (kept != null)
+        return kept.getSymptoms();
+      LinkedList<String> symptoms = live.store.getSymptoms(row);
+      kept = live.rowAsOf(row, version);
+      return (kept == null) ? symptoms : kept.getSymptoms();
+    }
+
+
+    /*SETTERS*/
+
+    public void setName(int row, String newName) {
+      throw new UnsupportedOperationException("A pinned version cannot be changed");
+    }
+
+    public void setAge(int row, int newAge) {
+      throw new UnsupportedOperationException("A pinned version cannot be changed");
+    }
+
+    public void setGender(int row, String newGender) {
+      throw new UnsupportedOperationException("A pinned version cannot be changed");
+    }
+
+    public void setDiagnosis(int row, String newDiagnosis) {
+      throw new UnsupportedOperationException("A pinned version cannot be changed");
+    }
+
+    public void setSymptoms(int row, LinkedList<String> newSymptoms) {
+      throw new UnsupportedOperationException("A pinned version cannot be changed");
+    }
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) {
+    HospitalRecords BMC = new HospitalRecords("Boston Medical Center");
+    BMC.addPatient(new Patient("John Smith", 36, "male", "major depressive disorder", "diminished interest,weight loss"));
+    BMC.addPatient(new Patient("Carry Roy", 21, "female", "bipolar disorder", "manic episode,overtalkativeness"));
+    BMC.addPatient(new Patient("Mark Jones", 23, "male", "schizophrenia", "delusions"));
+
+    HospitalVersion pinned = BMC.pinVersion();
+    BMC.getPatient("John Smith").setAge(37);
+    BMC.getPatient("John Smith").setAge(38);
+    BMC.getPatient("Mark Jones").setName("Marcus Jones");
+    BMC.getPatient("Marcus Jones").addSymptoms("insomnia");
+    BMC.removePatient("Carry Roy");
+    BMC.addPatient(new Patient("Anna Smith", 30, "female", "schizophrenia", "hallucinations"));
+
+    System.out.println("Hospital now (3, John Smith aged 38, Marcus Jones, Anna Smith): " + BMC.getNumPatients()
+                         + ", " + BMC.getPatient("John Smith").getAge() + ", " + BMC.isPatient("Marcus Jones")
+                         + ", " + BMC.isPatient("Anna Smith"));
+    System.out.println("Pinned version (3, John Smith aged 36, Mark Jones, no Anna Smith): " + pinned.getNumPatients()
+                         + ", " + pinned.getPatient("John Smith").getAge() + ", " + pinned.isPatient("Mark Jones")
+                         + ", " + pinned.isPatient("Anna Smith"));
+    System.out.println("Pinned version searched by age 30-40 (John Smith): "
+                         + pinned.getPatients(new PatientQuery().withAgeRange(30, 40)).getFirst().getName());
+    System.out.println("Pinned symptoms of Mark Jones ([delusions]): " + pinned.getPatient("Mark Jones").getSymptoms());
+    System.out.println("Pinned females (Carry Roy): " + pinned.getPatientsOfGender("female").getFirst().getName());
+    try {
+      pinned.getPatient("John Smith").setAge(40);
+      System.out.println("A pinned patient was changed");
+    } catch (UnsupportedOperationException e) {
+      System.out.println("Changing a pinned patient is refused: " + e.getMessage());
+    }
+    System.out.println("Rows kept for the pinned version (3): " + BMC.getKeptRowCount());
+    pinned.close();
+    System.out.println("Rows kept once it is closed (0): " + BMC.getKeptRowCount());
+
+    //an export of a pinned version of a large hospital, while another thread keeps changing it
+    String[] disorders = {"schizophrenia", "bipolar disorder", "major depressive disorder"};
+    String[] symptoms = {"delusions", "hallucinations", "insomnia", "fatigue", "weight loss", "manic episode"};
+    LinkedList<Patient> patients = new LinkedList<Patient>();
+    Random random = new Random(8);
+    for (int i = 0; i < 200000; i++)
+      patients.add(new Patient("Patient " + i, random.nextInt(90), (i % 2 == 0) ? "female" : "male", disorders[random.nextInt(3)],
+                               symptoms[random.nextInt(6)] + "," + symptoms[random.nextInt(6)]));
+    final HospitalRecords large = new HospitalRecords("Massachusetts General Hospital", new ColumnarPatientStore());
+    large.addPatients(patients);
+    patients = null;
+
+    try {
+      exportWhileChanging(large);
+    } catch (Exception e) {
+      System.out.println(e);
+    }
+  }
+
+  /** *****************************************************************************
+    * Exports pinned versions of the hospital while another thread changes it, checking
+    * that every export gives the same file as before the changes started
+    * @params large
+    **************************************************************************** **/
+  private static void exportWhileChanging(final HospitalRecords large) throws IOException, InterruptedException {
+    final AtomicBoolean exporting = new AtomicBoolean();
+    final AtomicInteger changes = new AtomicInteger();
+    Runnable intake = new Runnable() {
+      public void run() {
+        Random r = new Random(9);
+        while (exporting.get()) {
+          int i = r.nextInt(200000);
+          Patient p = large.getPatient("Patient " + i);
+          if (p != null) {
+            if (i % 10 == 0)
+              large.removePatient("Patient " + i);
+            else
+              p.setAge(r.nextInt(90));
+          }
+          large.addPatient(new Patient("New patient " + changes.incrementAndGet(), 50, "female", "schizophrenia", "insomnia"));
+        }
+      }
+    };
+
+    for (int run = 0; run < 3; run++) {
+      try (HospitalVersion version = large.pinVersion()) {
+        ByteArrayOutputStream before = new ByteArrayOutputStream();
+        PatientExporter.writeCsv(version.findPatients(new PatientQuery()), before);
+
+        ByteArrayOutputStream during = new ByteArrayOutputStream();
+        exporting.set(true);
+        changes.set(0);
+        Thread changer = new Thread(intake);
+        changer.start();
+        long start = System.nanoTime();
+        int exported = PatientExporter.writeCsv(version.findPatients(new PatientQuery()), during);
+        long millis = (System.nanoTime() - start) / 1000000;
+        exporting.set(false);
+        changer.join();
+        System.out.println("Exported " + exported + " patients of a pinned version in " + millis + " ms while "
+                             + changes.get() + " changes were made, export unchanged (true): "
+                             + Arrays.equals(before.toByteArray(), during.toByteArray()) + ", rows kept: " + large.getKeptRowCount());
+      }
+      System.out.println("Rows kept once the export is done (0): " + large.getKeptRowCount());
+    }
+  }
+
+}
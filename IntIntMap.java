@@ -0,0 +1,211 @@
+/* FILENAME: IntIntMap.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Maps int keys to int values without boxing, used by HospitalRecords to
+ * find the row of a patient from the patient number.
+ *
+ * */
+
+import java.util.concurrent.atomic.*;
+
+/** *****************************************************************************
+  * An IntIntMap class is a hash map from int keys to non-negative int values that
+  * keeps every entry as one long in an open addressing table, probing linearly. One
+  * thread at a time may change the map while others look keys up: an entry is written
+  * with a single atomic store and the table is replaced by a larger copy when it
+  * fills up, so a lookup always sees whole entries.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class IntIntMap {
+
+  //an entry holds the key in the upper 32 bits and the value + 1 in the lower 32 bits
+  private static final long EMPTY = 0L;
+  private static final long REMOVED = -1L;
+
+  //instance variables
+  private volatile AtomicLongArray table;
+  private int size;
+  private int used; //entries plus removed slots, which both lengthen the probes
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Creates an empty map
+    **************************************************************************** **/
+  public IntIntMap() {
+    this(12);
+  }
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Creates an empty map that holds the given number of keys before it grows
+    * @params expectedSize
+    **************************************************************************** **/
+  public IntIntMap(int expectedSize) {
+    int capacity = 16;
+    while (capacity * 3 < expectedSize * 4)
+      capacity *= 2;
+    table = new AtomicLongArray(capacity);
+  }
+
+  /** *****************************************************************************
+    * Returns the value kept under the key, or -1 if the key is not in the map
+    * @params key
+    **************************************************************************** **/
+  public int get(int key) {
+    AtomicLongArray slots = table;
+    int mask = slots.length() - 1;
+    for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+      long entry = slots.get(i);
+      if (entry == EMPTY)
+        return -1;
+      if (entry != REMOVED && keyOf(entry) == key)
+        return valueOf(entry);
+    }
+  }
+
+  /** *****************************************************************************
+    * Keeps the value under the key, replacing any value kept there before
+    * @params key
+    * @params value
+    **************************************************************************** **/
+  public void put(int key, int value) {
+    if (value < 0)
+      throw new IllegalArgumentException("Values must not be negative: " + value);
+    if ((used + 1) * 4 > table.length() * 3)
+      rehash();
+
+    AtomicLongArray slots = table;
+    int mask = slots.length() - 1;
+    int free = -1;
+    for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+      long entry = slots.get(i);
+      if (entry == EMPTY) {
+        if (free < 0) {
+          free = i;
+          used++;
+        }
+        break;
+      }
+      if (entry == REMOVED) {
+        if (free < 0)
+          free = i;
+      } else if (keyOf(entry) == key) {
+        slots.set(i, entryOf(key, value));
+        return;
+      }
+    }
+    slots.set(free, entryOf(key, value));
+    size++;
+  }
+
+  /** *****************************************************************************
+    * Removes the key from the map if it is kept with the given value
+    * @params key
+    * @params value
+    **************************************************************************** **/
+  public void remove(int key, int value) {
+    AtomicLongArray slots = table;
+    int mask = slots.length() - 1;
+    for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+      long entry = slots.get(i);
+      if (entry == EMPTY)
+        return;
+      if (entry != REMOVED && keyOf(entry) == key) {
+        if (valueOf(entry) == value) {
+          slots.set(i, REMOVED);
+          size--;
+        }
+        return;
+      }
+    }
+  }
+
+  /** *****************************************************************************
+    * Returns the number of keys in the map
+    **************************************************************************** **/
+  public int size() {
+    return size;
+  }
+
+
+  //helper methods
+
+  /** *****************************************************************************
+    * Copies the entries into a new table, twice as large unless most of the used slots
+    * are removed entries
+    **************************************************************************** **/
+  private void rehash() {
+    AtomicLongArray old = table;
+    int capacity = (size * 2 >= old.length() / 2) ? old.length() * 2 : old.length();
+    AtomicLongArray grown = new AtomicLongArray(capacity);
+    int mask = capacity - 1;
+    for (int j = 0; j < old.length(); j++) {
+      long entry = old.get(j);
+      if (entry != EMPTY && entry != REMOVED) {
+        int i = slot(keyOf(entry), mask);
+        while (grown.get(i) != EMPTY)
+          i = (i + 1) & mask;
+        grown.set(i, entry);
+      }
+    }
+    used = size;
+    table = grown;
+  }
+
+  private static int slot(int key, int mask) {
+    //spreads consecutive patient numbers over the table
+    int h = key * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  private static long entryOf(int key, int value) {
+    return ((long) key << 32) | (value + 1L);
+  }
+
+  private static int keyOf(long entry) {
+    return (int) (entry >>> 32);
+  }
+
+  private static int valueOf(long entry) {
+    return (int) entry - 1;
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) {
+    IntIntMap map = new IntIntMap();
+    java.util.HashMap<Integer, Integer> expected = new java.util.HashMap<Integer, Integer>();
+    java.util.Random random = new java.util.Random(3);
+
+    //compares the map against a HashMap over a mix of puts and removes
+    for (int i = 0; i < 200000; i++) {
+      int key = random.nextInt(5000) - 1000;
+      int value = random.nextInt(1000);
+      if (random.nextInt(3) == 0) {
+        map.remove(key, value);
+        if (expected.containsKey(key) && expected.get(key) == value)
+          expected.remove(key);
+      } else {
+        map.put(key, value);
+        expected.put(key, value);
+      }
+    }
+
+    int mismatches = 0;
+    for (int key = -1000; key < 4000; key++) {
+      Integer value = expected.get(key);
+      if (map.get(key) != ((value == null) ? -1 : value))
+        mismatches++;
+    }
+    System.out.println("Size (" + expected.size() + "): " + map.size());
+    System.out.println("Mismatches against a HashMap (0): " + mismatches);
+    System.out.println("Missing key (-1): " + map.get(Integer.MIN_VALUE));
+  }
+
+}
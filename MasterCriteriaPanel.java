@@ -54,8 +54,8 @@ public class MasterCriteriaPanel extends JPanel {
     **************************************************************************** **/
   public MasterCriteriaPanel() throws FileNotFoundException {
     try {
-      //makes a new disorder expert and intializes variables for it
-      DisorderExpert de = new DisorderExpert();
+      //takes the shared disorder expert and intializes variables for it
+      DisorderExpert de = DisorderRegistry.getDefault().getExpert();
       masterDisorderList = new LinkedList<String>();
       
       //converting from LinkedList<Disorder> to LinkedList<String>
@@ -0,0 +1,529 @@
+/* FILENAME: OffHeapPatientStore.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: A way for HospitalRecords to keep the information of its patients in
+ * memory outside of the Java heap, so that the garbage collector does not have to
+ * look at it.
+ *
+ * */
+
+import java.lang.invoke.*;
+import java.nio.*;
+import java.util.*;
+
+/** *****************************************************************************
+  * An OffHeapPatientStore keeps the fields of every patient in direct ByteBuffers,
+  * which the garbage collector sees as a handful of objects however many patients
+  * they hold.
+  * Each row is a fixed record of RECORD_SIZE bytes:
+  *
+  *   0  patient number     4  age     8  diagnosis id     12  gender code
+  *   16 position of the name         24 position of the symptoms
+  *
+  * The name (its length and characters) and the symptoms (their count and their
+  * SymptomVocabulary ids) have variable lengths and are kept in segments appended
+  * to a second area. A removed row has no symptom segment; its name is kept, for
+  * views of the patient still held somewhere, until the store is next compacted.
+  * Both areas grow in chunks of CHUNK_SIZE bytes, so nothing is copied when they
+  * grow. Genders and diagnoses, of which there are only a few, are kept in
+  * dictionaries on the heap.
+  *
+  * Only the patient fields are moved off the heap. The indexes of the hospital stay
+  * on it, with an entry per patient: the name index holds every name as a String,
+  * the number index a slot per patient and the RowSets a bit per patient in each
+  * index. The time of a full collection therefore still grows with the number of
+  * patients, only more slowly than with the other stores.
+  *
+  * Rows are written by one thread at a time and can be read while they are written.
+  * A changed name or list of symptoms is written to a new segment before the
+  * position in the record is moved to it, so a reader never sees a half written
+  * segment. Once more than half of the segment area is no longer used, the store
+  * is copied into a new, compacted arena and the old one is left for the readers
+  * still using it; its memory is given back when the garbage collector finds it
+  * unused. The Patient objects handed out by the store are lightweight views over
+  * a row.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class OffHeapPatientStore implements PatientStore {
+
+  //bytes in every chunk of memory
+  public static final int CHUNK_SIZE = 1 << 20;
+
+  //layout of the fixed record of a row
+  public static final int RECORD_SIZE = 32;
+  private static final int NUMBER = 0;
+  private static final int AGE = 4;
+  private static final int DIAGNOSIS = 8;
+  private static final int GENDER = 12;
+  private static final int NAME = 16;
+  private static final int SYMPTOMS = 24;
+  private static final int RECORDS_PER_CHUNK = CHUNK_SIZE / RECORD_SIZE;
+
+  //ints and longs of the records are read and written through these, which also
+  //lets the position of a segment be published to readers
+  private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+  private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+  //instance variables
+  private volatile Arena arena = new Arena();
+  private int rowCount;
+  private long segmentGarbage; //bytes of the segment area no longer used by any row
+
+  //dictionaries turning the repeated strings into ids
+  private StringDictionary genderDictionary = new StringDictionary();
+  private StringDictionary diagnosisDictionary = new StringDictionary();
+  private SymptomVocabulary symptomVocabulary = SymptomVocabulary.getDefault();
+
+  /** *****************************************************************************
+    * Copies the information of the patient into a new row. The patient then becomes
+    * a view over that row.
+    * @params hospital
+    * @params patient
+    **************************************************************************** **/
+  public int addPatient(HospitalRecords hospital, Patient patient) {
+    //a patient of another hospital is copied, so that it stays with that hospital
+    if (patient.isAttached())
+      patient = patient.copy();
+    ensureCapacity(rowCount + 1);
+    Arena a = arena;
+    int row = rowCount;
+    ByteBuffer records = a.recordChunk(row);
+    int at = recordOffset(row);
+    INT.set(records, at + NUMBER, patient.getPatientNumber());
+    INT.set(records, at + AGE, patient.getAge());
+    INT.set(records, at + DIAGNOSIS, diagnosisDictionary.getId(patient.getDiagnosis()));
+    INT.set(records, at + GENDER, genderDictionary.getId(patient.getGender()));
+    LONG.setRelease(records, at + NAME, a.writeName(patient.getName()));
+    LONG.setRelease(records, at + SYMPTOMS, a.writeSymptoms(patient.getSymptomIds()));
+    rowCount++;
+
+    patient.attach(hospital, this, row);
+    return row;
+  }
+
+  /** *****************************************************************************
+    * Releases the symptoms of a removed patient and counts its name as unused, the
+    * name is dropped when the store is next compacted. Views over the row that are
+    * still held somewhere keep reading the fixed record and, until then, the name.
+    * @params row
+    **************************************************************************** **/
+  public void removePatient(int row) {
+    Arena a = arena;
+    ByteBuffer records = a.recordChunk(row);
+    int at = recordOffset(row);
+    segmentGarbage += a.segmentSize((long) LONG.getAcquire(records, at + NAME), 2)
+                        + a.segmentSize((long) LONG.getAcquire(records, at + SYMPTOMS), 4);
+    LONG.setRelease(records, at + SYMPTOMS, -1L);
+    compactIfWasteful();
+  }
+
+  /** *****************************************************************************
+    * Returns a new view over the given row
+    * @params hospital
+    * @params row
+    **************************************************************************** **/
+  public Patient getPatient(HospitalRecords hospital, int row) {
+    return new Patient(hospital, this, row);
+  }
+
+  public void ensureCapacity(int capacity) {
+    arena.ensureRecords(capacity);
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  /** *****************************************************************************
+    * Returns the number of bytes of memory outside of the heap held by the store
+    **************************************************************************** **/
+  public long getOffHeapSize() {
+    Arena a = arena;
+    return ((long) a.recordChunks.length + a.segmentChunks.length) * CHUNK_SIZE;
+  }
+
+
+  /*GETTERS*/
+
+  public String getName(int row) {
+    Arena a = arena;
+    return a.readName((long) LONG.getAcquire(a.recordChunk(row), recordOffset(row) + NAME));
+  }
+
+  public int getPatientNumber(int row) {
+    return (int) INT.get(arena.recordChunk(row), recordOffset(row) + NUMBER);
+  }
+
+  public int getAge(int row) {
+    return (int) INT.get(arena.recordChunk(row), recordOffset(row) + AGE);
+  }
+
+  public String getGender(int row) {
+    return genderDictionary.getString((int) INT.get(arena.recordChunk(row), recordOffset(row) + GENDER));
+  }
+
+  public String getDiagnosis(int row) {
+    return diagnosisDictionary.getString((int) INT.get(arena.recordChunk(row), recordOffset(row) + DIAGNOSIS));
+  }
+
+  /** *****************************************************************************
+    * Returns a new list with the symptoms of the given row, changes to the list are
+    * not reflected in the store
+    * @params row
+    **************************************************************************** **/
+  public LinkedList<String> getSymptoms(int row) {
+    Arena a = arena;
+    long position = (long) LONG.getAcquire(a.recordChunk(row), recordOffset(row) + SYMPTOMS);
+    LinkedList<String> symptomList = new LinkedList<String>();
+    if (position >= 0) {
+      ByteBuffer segment = a.segmentChunk(position);
+      int at = segmentOffset(position);
+      int count = segment.getInt(at);
+      for (int i = 1; i <= count; i++)
+        symptomList.add(symptomVocabulary.getString(segment.getInt(at + 4 * i)));
+    }
+    return symptomList;
+  }
+
+
+  /*SETTERS, the segments of a removed row are left as they are*/
+
+  public void setName(int row, String newName) {
+    Arena a = arena;
+    ByteBuffer records = a.recordChunk(row);
+    int at = recordOffset(row);
+    if (isRemoved(records, at))
+      return;
+    long old = (long) LONG.getAcquire(records, at + NAME);
+    LONG.setRelease(records, at + NAME, a.writeName(newName));
+    segmentGarbage += a.segmentSize(old, 2);
+    compactIfWasteful();
+  }
+
+  public void setAge(int row, int newAge) {
+    INT.set(arena.recordChunk(row), recordOffset(row) + AGE, newAge);
+  }
+
+  public void setGender(int row, String newGender) {
+    INT.set(arena.recordChunk(row), recordOffset(row) + GENDER, genderDictionary.getId(newGender));
+  }
+
+  public void setDiagnosis(int row, String newDiagnosis) {
+    INT.set(arena.recordChunk(row), recordOffset(row) + DIAGNOSIS, diagnosisDictionary.getId(newDiagnosis));
+  }
+
+  public void setSymptoms(int row, LinkedList<String> newSymptoms) {
+    Arena a = arena;
+    ByteBuffer records = a.recordChunk(row);
+    int at = recordOffset(row);
+    if (isRemoved(records, at))
+      return;
+    long old = (long) LONG.getAcquire(records, at + SYMPTOMS);
+    LONG.setRelease(records, at + SYMPTOMS, a.writeSymptoms(symptomVocabulary.getIds(newSymptoms)));
+    segmentGarbage += a.segmentSize(old, 4);
+    compactIfWasteful();
+  }
+
+
+  //helper methods
+
+  /** *****************************************************************************
+    * Returns the offset of the record of a row in its chunk
+    * @params row
+    **************************************************************************** **/
+  private static int recordOffset(int row) {
+    return (row % RECORDS_PER_CHUNK) * RECORD_SIZE;
+  }
+
+  /** *****************************************************************************
+    * Returns boolean determining if the record at the given offset is of a removed
+    * row, the only rows without a symptom segment
+    * @params records
+    * @params at
+    **************************************************************************** **/
+  private static boolean isRemoved(ByteBuffer records, int at) {
+    return (long) LONG.getAcquire(records, at + SYMPTOMS) < 0;
+  }
+
+  /** *****************************************************************************
+    * Returns the offset of a segment in its chunk
+    * @params position
+    **************************************************************************** **/
+  private static int segmentOffset(long position) {
+    return (int) (position % CHUNK_SIZE);
+  }
+
+  /** *****************************************************************************
+    * Copies every row into a new arena once more than half of the segment area is
+    * no longer used, leaving out the names of removed rows. Readers that still hold
+    * the old arena keep reading it.
+    **************************************************************************** **/
+  private void compactIfWasteful() {
+    Arena old = arena;
+    if (segmentGarbage <= CHUNK_SIZE || segmentGarbage <= old.segmentEnd / 2)
+      return;
+
+    Arena compacted = new Arena();
+    compacted.ensureRecords(rowCount);
+    for (int c = 0; c * RECORDS_PER_CHUNK < rowCount; c++)
+      compacted.recordChunks[c].put(0, old.recordChunks[c], 0, CHUNK_SIZE);
+    for (int row = 0; row < rowCount; row++) {
+      ByteBuffer records = compacted.recordChunk(row);
+      int at = recordOffset(row);
+      long name = isRemoved(records, at) ? -1 : (long) LONG.get(records, at + NAME);
+      LONG.set(records, at + NAME, compacted.copySegment(old, name, 2));
+      LONG.set(records, at + SYMPTOMS, compacted.copySegment(old, (long) LONG.get(records, at + SYMPTOMS), 4));
+    }
+    arena = compacted;
+    segmentGarbage = 0;
+  }
+
+
+  /** *****************************************************************************
+    * The chunks of records and of segments of the store. Chunks are only ever added,
+    * by one thread at a time; a reader takes the chunk of a row or segment from the
+    * same arena it read the row's positions from.
+    *************************************************************************** **/
+  private static class Arena {
+    volatile ByteBuffer[] recordChunks = new ByteBuffer[0];
+    volatile ByteBuffer[] segmentChunks = new ByteBuffer[0];
+    long segmentEnd; //position after the last segment written
+
+    ByteBuffer recordChunk(int row) {
+      return recordChunks[row / RECORDS_PER_CHUNK];
+    }
+
+    ByteBuffer segmentChunk(long position) {
+      return segmentChunks[(int) (position / CHUNK_SIZE)];
+    }
+
+    /** *****************************************************************************
+      * Adds record chunks until there is room for the given number of rows
+      * @params rows
+      **************************************************************************** **/
+    void ensureRecords(int rows) {
+      ByteBuffer[] chunks = recordChunks;
+      if ((long) chunks.length * RECORDS_PER_CHUNK >= rows)
+        return;
+      int needed = (rows + RECORDS_PER_CHUNK - 1) / RECORDS_PER_CHUNK;
+      ByteBuffer[] grown = Arrays.copyOf(chunks, needed);
+      for (int c = chunks.length; c < needed; c++)
+        grown[c] = newChunk();
+      recordChunks = grown;
+    }
+
+    /** *****************************************************************************
+      * Returns the position of a new segment of the given size. A segment never
+      * crosses the end of a chunk, so one that does not fit starts a new chunk.
+      * @params size
+      **************************************************************************** **/
+    long allocateSegment(int size) {
+      if (size > CHUNK_SIZE)
+        throw new IllegalArgumentException("A segment of " + size + " bytes does not fit in a chunk of " + CHUNK_SIZE);
+      size = (size + 3) & ~3; //keeps the ints of every segment aligned
+      if (segmentOffset(segmentEnd) + size > CHUNK_SIZE)
+        segmentEnd = (segmentEnd / CHUNK_SIZE + 1) * CHUNK_SIZE;
+
+      int chunk = (int) (segmentEnd / CHUNK_SIZE);
+      ByteBuffer[] chunks = segmentChunks;
+      if (chunk == chunks.length) {
+        chunks = Arrays.copyOf(chunks, chunk + 1);
+        chunks[chunk] = newChunk();
+        segmentChunks = chunks;
+      }
+      long position = segmentEnd;
+      segmentEnd += size;
+      return position;
+    }
+
+    /** *****************************************************************************
+      * Writes the name into a new segment and returns its position, -1 for no name
+      * @params name
+      **************************************************************************** **/
+    long writeName(String name) {
+      if (name == null)
+        return -1;
+      long position = allocateSegment(4 + 2 * name.length());
+      ByteBuffer segment = segmentChunk(position);
+      int at = segmentOffset(position);
+      segment.putInt(at, name.length());
+      for (int i = 0; i < name.length(); i++)
+        segment.putChar(at + 4 + 2 * i, name.charAt(i));
+      return position;
+    }
+
+    /** *****************************************************************************
+      * Returns the name in the segment at the given position
+      * @params position
+      **************************************************************************** **/
+    String readName(long position) {
+      if (position < 0)
+        return null;
+      ByteBuffer segment = segmentChunk(position);
+      int at = segmentOffset(position);
+      char[] name = new char[segment.getInt(at)];
+      for (int i = 0; i < name.length; i++)
+        name[i] = segment.getChar(at + 4 + 2 * i);
+      return new String(name);
+    }
+
+    /** *****************************************************************************
+      * Writes the symptom ids into a new segment and returns its position
+      * @params symptomIds
+      **************************************************************************** **/
+    long writeSymptoms(int[] symptomIds) {
+      long position = allocateSegment(4 + 4 * symptomIds.length);
+      ByteBuffer segment = segmentChunk(position);
+      int at = segmentOffset(position);
+      segment.putInt(at, symptomIds.length);
+      for (int i = 0; i < symptomIds.length; i++)
+        segment.putInt(at + 4 + 4 * i, symptomIds[i]);
+      return position;
+    }
+
+    /** *****************************************************************************
+      * Returns the number of bytes used by the segment at the given position, which
+      * starts with the number of its items: the two byte characters of a name or the
+      * four byte ids of symptoms
+      * @params position
+      * @params itemSize
+      **************************************************************************** **/
+    int segmentSize(long position, int itemSize) {
+      return (position < 0) ? 0 : 4 + itemSize * segmentChunk(position).getInt(segmentOffset(position));
+    }
+
+    /** *****************************************************************************
+      * Copies the segment at the given position of another arena to the end of this
+      * one and returns its new position
+      * @params from
+      * @params position
+      * @params itemSize
+      **************************************************************************** **/
+    long copySegment(Arena from, long position, int itemSize) {
+      if (position < 0)
+        return -1;
+      int size = from.segmentSize(position, itemSize);
+      long copied = allocateSegment(size);
+      segmentChunk(copied).put(segmentOffset(copied), from.segmentChunk(position), segmentOffset(position), size);
+      return copied;
+    }
+
+    private static ByteBuffer newChunk() {
+      return ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.nativeOrder());
+    }
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) throws Exception {
+    HospitalRecords BMC = new HospitalRecords("Boston Medical Center", new OffHeapPatientStore());
+    BMC.addPatient(new Patient("John Smith", 36, "male", "major depressive disorder", "diminished interest,weight loss"));
+    BMC.addPatient(new Patient("Carry Roy", 21, "female", "bipolar disorder", "manic episode,overtalkativeness"));
+    BMC.addPatient(new Patient("Mark Jones", 23, "male", "schizophrenia", "delusions,hallucinations"));
+    BMC.getPatient("John Smith").setAge(37);
+    BMC.getPatient("Mark Jones").addSymptoms("insomnia");
+    BMC.getPatient("Carry Roy").setName("Carry Royce");
+    BMC.removePatient("John Smith");
+    System.out.println("Hospital kept off the heap (Carry Royce, Mark Jones with insomnia):" + BMC);
+    System.out.println("Males (1): " + BMC.getPatientsOfGender("male").size());
+    Patient removed = BMC.getPatient("Mark Jones");
+    BMC.removePatient("Mark Jones");
+    removed.addSymptoms("fatigue");
+    System.out.println("View of a removed patient keeps its name, with no symptoms (Mark Jones, []): " + removed.getName()
+                         + ", " + removed.getSymptoms());
+
+    //a large hospital, changed enough to be compacted, gives the same answers as a columnar one
+    String[] disorders = {"schizophrenia", "bipolar disorder", "major depressive disorder"};
+    String[] symptoms = {"delusions", "hallucinations", "insomnia", "fatigue", "weight loss", "manic episode"};
+    LinkedList<Patient> patients = new LinkedList<Patient>();
+    LinkedList<Patient> samePatients = new LinkedList<Patient>(); //each hospital is given patients of its own
+    Random random = new Random(7);
+    for (int i = 0; i < 200000; i++) {
+      patients.add(new Patient("Patient " + i, random.nextInt(90), (i % 2 == 0) ? "female" : "male", disorders[random.nextInt(3)],
+                               symptoms[random.nextInt(6)] + "," + symptoms[random.nextInt(6)]));
+      samePatients.add(patients.getLast().copy());
+    }
+    HospitalRecords columnar = new HospitalRecords("Massachusetts General Hospital", new ColumnarPatientStore());
+    columnar.addPatients(patients);
+    OffHeapPatientStore store = new OffHeapPatientStore();
+    HospitalRecords offHeap = new HospitalRecords("Massachusetts General Hospital", store);
+    offHeap.addPatients(samePatients);
+    patients = null;
+    samePatients = null;
+    long sizeBefore = store.getOffHeapSize();
+    for (int i = 0; i < 200000; i += 2) {
+      String symptom = symptoms[i % 6];
+      offHeap.getPatient("Patient " + i).addSymptoms(symptom);
+      columnar.getPatient("Patient " + i).addSymptoms(symptom);
+    }
+    for (int i = 0; i < 200000; i += 3) {
+      offHeap.getPatient("Patient " + i).setName("Renamed patient " + i);
+      columnar.getPatient("Patient " + i).setName("Renamed patient " + i);
+    }
+    for (int i = 1; i < 200000; i += 3) {
+      offHeap.removePatient("Patient " + i);
+      columnar.removePatient("Patient " + i);
+    }
+    System.out.println("Off-heap memory before and after the changes (close): " + sizeBefore / (1 << 20) + " MB, "
+                         + store.getOffHeapSize() / (1 << 20) + " MB");
+
+    PatientQuery query = new PatientQuery().withDisorder("schizophrenia").withAgeRange(20, 40).withSymptom("insomnia");
+    int same = 0;
+    int checked = 0;
+    Iterator<Patient> expected = columnar.findPatients(query).iterator();
+    for (Patient p : offHeap.findPatients(query)) {
+      if (p.toString().equals(expected.next().toString()))
+        same++;
+      checked++;
+    }
+    System.out.println("Same search results as the columnar store (" + checked + "): " + same);
+    System.out.println("Same number of patients (true): " + (offHeap.getNumPatients() == columnar.getNumPatients()));
+
+    //the hospital saved and loaded back into a new store off the heap
+    java.io.File snapshotFile = java.io.File.createTempFile("hospitalSnapshot", ".dat");
+    HospitalSnapshot.write(offHeap, snapshotFile.getPath());
+    HospitalRecords reloaded = HospitalSnapshot.open(snapshotFile.getPath()).load(new OffHeapPatientStore());
+    StringBuilder before = new StringBuilder();
+    for (Patient p : offHeap.findPatients(query))
+      before.append(p);
+    StringBuilder after = new StringBuilder();
+    for (Patient p : reloaded.findPatients(query))
+      after.append(p);
+    System.out.println("Same search results after a reload (true): " + before.toString().equals(after.toString()));
+    snapshotFile.delete();
+    reloaded = null;
+    columnar = null;
+    offHeap = null;
+    store = null;
+
+    //the heap left after a full collection, and the time it takes, for the same patients in each store
+    Runtime runtime = Runtime.getRuntime();
+    for (int size = 250000; size <= 1000000; size *= 2) {
+      for (int kind = 0; kind < 3; kind++) {
+        PatientStore patientStore = (kind == 0) ? new HeapPatientStore()
+                                   : (kind == 1) ? new ColumnarPatientStore() : new OffHeapPatientStore();
+        HospitalRecords hospital = new HospitalRecords("Brigham and Women's Hospital", patientStore);
+        patients = new LinkedList<Patient>();
+        for (int i = 0; i < size; i++)
+          patients.add(new Patient("Patient " + i, random.nextInt(90), (i % 2 == 0) ? "female" : "male",
+                                   disorders[random.nextInt(3)], symptoms[random.nextInt(6)] + "," + symptoms[random.nextInt(6)]));
+        hospital.addPatients(patients);
+        patients = null;
+        System.gc();
+        long start = System.nanoTime();
+        System.gc();
+        long gcTime = System.nanoTime() - start;
+        System.out.println(size + " patients in a " + patientStore.getClass().getName() + ": heap "
+                             + (runtime.totalMemory() - runtime.freeMemory()) / (1 << 20) + " MB, full collection "
+                             + gcTime / 1000000 + " ms" + ((kind == 2) ? ", off the heap "
+                             + ((OffHeapPatientStore) patientStore).getOffHeapSize() / (1 << 20) + " MB" : "")
+                             + " (" + hospital.getNumPatients() + ")");
+      }
+    }
+  }
+
+}
@@ -18,15 +18,18 @@ import java.util.*;
 public class Patient {
   
   //instance variables 
+  //when the patient is a view over a row of a PatientStore, the information is read
+  //from the store and these fields are left empty
   private String name;
   private int patientNumber;
   private int age;
   private String gender;
   private String diagnosis;
-  private LinkedList<String> symptomsLL = new LinkedList<String>();
+  private volatile int[] symptomIds = new int[0]; //ids in the SymptomVocabulary, replaced, never changed in place
   
-  final int MIN = 1000; //minimum value for patient number (arbitrary)
-  final int MAX = 3000; //maximum value for patient number (arbitrary)
+  private volatile HospitalRecords hospital; //the hospital holding this patient, null if not yet added
+  private PatientStore store; //the store this patient is a view over, null if it holds its own information
+  private int row; //the row of this patient in the hospital
   
   /** *****************************************************************************
     * Constructor
@@ -43,25 +46,56 @@ public class Patient {
   public Patient (String namePatient, int agePatient, String genderPatient, String diagnosisPatient, String symptomsPatient) {
     name = namePatient;
     
-    //Generates a random number that will be assigned to the patient as their unique patient number to 
-    //achieve a more realistic representation than using the patient counter. The possibility of the 
-    //same number being assigned exists, but is very low.
-    Random generator = new Random();
-    patientNumber = generator.nextInt(MAX-MIN)+MIN; 
+    //takes the next unused patient number, see PatientNumberAllocator
+    patientNumber = PatientNumberAllocator.getDefault().nextNumber();
     
     age = agePatient;
     gender = genderPatient;
     diagnosis = diagnosisPatient;
     
-    String[] symptomsArray = symptomsPatient.split(",");
-    
-    
-    //adds the symptoms inputted into the linked list
-    for (int i = 0; i < symptomsArray.length; i++) 
-      symptomsLL.add(symptomsArray[i]);
+    //keeps the ids of the symptoms inputted rather than the strings
+    symptomIds = SymptomVocabulary.getDefault().getIds(symptomsPatient);
     
   }
   
+  /** *****************************************************************************
+    * Constructor
+    * 
+    * Makes a patient with an already assigned patient number and an already split
+    * list of symptoms, used when a stored patient is copied or read back.
+    * 
+    * @params namePatient
+    * @params numberPatient
+    * @params agePatient
+    * @params genderPatient
+    * @params diagnosisPatient
+    * @params symptomsPatient
+    **************************************************************************** **/
+  Patient (String namePatient, int numberPatient, int agePatient, String genderPatient, String diagnosisPatient, 
+           LinkedList<String> symptomsPatient) {
+    name = namePatient;
+    patientNumber = numberPatient;
+    age = agePatient;
+    gender = genderPatient;
+    diagnosis = diagnosisPatient;
+    symptomIds = SymptomVocabulary.getDefault().getIds(symptomsPatient);
+  }
+  
+  /** *****************************************************************************
+    * Constructor
+    * 
+    * Makes a lightweight patient that reads and writes its information through the
+    * given row of a store.
+    * 
+    * @params hospitalPatient
+    * @params storePatient
+    * @params rowPatient
+    **************************************************************************** **/
+  Patient (HospitalRecords hospitalPatient, PatientStore storePatient, int rowPatient) {
+    symptomIds = null;
+    attach(hospitalPatient, storePatient, rowPatient);
+  }
+  
   /*SETTERS*/
   
   /** *****************************************************************************
@@ -69,7 +103,28 @@ public class Patient {
     * @params newName
     **************************************************************************** **/
   public void setName(String newName) {
-    name = newName;
+    synchronized (updateLock()) {
+      String oldName = getName();
+      //two patients of a hospital cannot share a name, the rename is refused before anything changes
+      if (hospital != null)
+        hospital.checkRename(row, newName);
+      //the change is encoded for the journal before anything changes, so that a change
+      //the journal cannot keep is refused
+      PatientJournal journal = journal();
+      byte[] record = (journal == null) ? null : journal.nameRecord(getPatientNumber(), newName);
+      //keeps the row as it was for the pinned versions of the hospital
+      if (hospital != null)
+        hospital.rowChanging(row);
+      if (store == null)
+        name = newName;
+      else
+        store.setName(row, newName);
+    
+      //keeps the hospital's name index up to date
+      if (hospital != null)
+        hospital.patientRenamed(row, oldName, record);
+    }
+    syncJournal();
   }
   
   /** *****************************************************************************
@@ -77,7 +132,24 @@ public class Patient {
     * @params newAge
     **************************************************************************** **/
   public void setAge(int newAge) {
-    age = newAge;
+    synchronized (updateLock()) {
+      int oldAge = getAge();
+      //encoded for the journal before anything changes, see setName
+      PatientJournal journal = journal();
+      byte[] record = (journal == null) ? null : journal.ageRecord(getPatientNumber(), newAge);
+      //keeps the row as it was for the pinned versions of the hospital
+      if (hospital != null)
+        hospital.rowChanging(row);
+      if (store == null)
+        age = newAge;
+      else
+        store.setAge(row, newAge);
+    
+      //keeps the hospital's age index up to date
+      if (hospital != null)
+        hospital.patientAgeChanged(row, oldAge, record);
+    }
+    syncJournal();
   }
   
   /** *****************************************************************************
@@ -85,7 +157,24 @@ public class Patient {
     * @params newGender
     **************************************************************************** **/
   public void setGender(String newGender) {
-    gender = newGender;
+    synchronized (updateLock()) {
+      String oldGender = getGender();
+      //encoded for the journal before anything changes, see setName
+      PatientJournal journal = journal();
+      byte[] record = (journal == null) ? null : journal.genderRecord(getPatientNumber(), newGender);
+      //keeps the row as it was for the pinned versions of the hospital
+      if (hospital != null)
+        hospital.rowChanging(row);
+      if (store == null)
+        gender = newGender;
+      else
+        store.setGender(row, newGender);
+    
+      //keeps the hospital's gender index up to date
+      if (hospital != null)
+        hospital.patientGenderChanged(row, oldGender, record);
+    }
+    syncJournal();
   }
   
   /** *****************************************************************************
@@ -93,12 +182,40 @@ public class Patient {
     * @params newSymptoms
     **************************************************************************** **/
   public void setSymptoms(String newSymptoms) {
-    LinkedList<String> tempSymptomsLL = new LinkedList<String>();
-    String[] symptomsArray = newSymptoms.split(",");
-    for (int i = 0; i < symptomsArray.length; i++) {
-      tempSymptomsLL.add(symptomsArray[i]);
+    setSymptomIds(SymptomVocabulary.getDefault().getIds(newSymptoms));
+  }
+  
+  /** *****************************************************************************
+    * sets the symptoms presented by the patient to an already split list
+    * @params newSymptoms
+    **************************************************************************** **/
+  public void setSymptoms(LinkedList<String> newSymptoms) {
+    setSymptomIds(SymptomVocabulary.getDefault().getIds(newSymptoms));
+  }
+  
+  /** *****************************************************************************
+    * sets the symptoms presented by the patient to the symptoms with the given ids
+    * @params newSymptoms
+    **************************************************************************** **/
+  private void setSymptomIds(int[] newSymptoms) {
+    synchronized (updateLock()) {
+      LinkedList<String> oldSymptoms = getSymptoms();
+      //encoded for the journal before anything changes, see setName
+      PatientJournal journal = journal();
+      byte[] record = (journal == null) ? null : journal.symptomsRecord(getPatientNumber(), SymptomVocabulary.getDefault().getStrings(newSymptoms));
+      //keeps the row as it was for the pinned versions of the hospital
+      if (hospital != null)
+        hospital.rowChanging(row);
+      if (store == null)
+        symptomIds = newSymptoms;
+      else
+        store.setSymptoms(row, SymptomVocabulary.getDefault().getStrings(newSymptoms));
+    
+      //keeps the hospital's symptom index up to date
+      if (hospital != null)
+        hospital.patientSymptomsChanged(row, oldSymptoms, record);
     }
-    symptomsLL = tempSymptomsLL;
+    syncJournal();
   }
   
   /** *****************************************************************************
@@ -106,7 +223,82 @@ public class Patient {
     * @params newDiagnosis
     **************************************************************************** **/
   public void setDiagnosis(String newDiagnosis) {
-    diagnosis = newDiagnosis;
+    synchronized (updateLock()) {
+      String oldDiagnosis = getDiagnosis();
+      //encoded for the journal before anything changes, see setName
+      PatientJournal journal = journal();
+      byte[] record = (journal == null) ? null : journal.diagnosisRecord(getPatientNumber(), newDiagnosis);
+      //keeps the row as it was for the pinned versions of the hospital
+      if (hospital != null)
+        hospital.rowChanging(row);
+      if (store == null)
+        diagnosis = newDiagnosis;
+      else
+        store.setDiagnosis(row, newDiagnosis);
+    
+      //keeps the hospital's diagnosis index up to date
+      if (hospital != null)
+        hospital.patientDiagnosisChanged(row, oldDiagnosis, record);
+    }
+    syncJournal();
+  }
+  
+  /** *****************************************************************************
+    * attaches the patient to the row of a hospital. If a store is given the patient
+    * becomes a view over that row and lets go of its own information.
+    * @params newHospital
+    * @params newStore
+    * @params newRow
+    **************************************************************************** **/
+  void attach(HospitalRecords newHospital, PatientStore newStore, int newRow) {
+    hospital = newHospital;
+    store = newStore;
+    row = newRow;
+    
+    if (store != null) {
+      name = null;
+      gender = null;
+      diagnosis = null;
+      symptomIds = null;
+    }
+  }
+  
+  /** *****************************************************************************
+    * Returns the lock changes to the patient are made under. Once the patient is in a
+    * hospital this is the write lock of the hospital, so that a change and the update
+    * of the hospital's indexes happen together and never interleave with patients
+    * being added or removed.
+    **************************************************************************** **/
+  private Object updateLock() {
+    HospitalRecords h = hospital;
+    return (h == null) ? this : h.writeLock;
+  }
+  
+  /** *****************************************************************************
+    * Returns the journal changes to the patient are recorded in, null if they are
+    * not recorded. Called while the update lock is held.
+    **************************************************************************** **/
+  private PatientJournal journal() {
+    HospitalRecords h = hospital;
+    return (h == null) ? null : h.journalOf(row);
+  }
+  
+  /** *****************************************************************************
+    * Waits until a change to the patient is written to the journal of its hospital.
+    * A change made inside another one, such as setSymptoms() called by addSymptoms(),
+    * is left for the outer change to wait for once the lock is released.
+    **************************************************************************** **/
+  private void syncJournal() {
+    HospitalRecords h = hospital;
+    if (h != null && !Thread.holdsLock(h.writeLock))
+      h.syncJournal();
+  }
+  
+  /** *****************************************************************************
+    * detaches the patient from its hospital once it has been removed
+    **************************************************************************** **/
+  void detach() {
+    hospital = null;
   }
   
   
@@ -116,42 +308,66 @@ public class Patient {
     * Returns the name of the patient 
     **************************************************************************** **/
   public String getName() {
-    return name;
+    return (store == null) ? name : store.getName(row);
   }
   
   /** *****************************************************************************
     * Returns the number of the patient (no setter method for patient number is required)
     **************************************************************************** **/
   public int getPatientNumber() {
-    return patientNumber;
+    return (store == null) ? patientNumber : store.getPatientNumber(row);
   }
   
   /** *****************************************************************************
     * Returns the age of the patient 
     **************************************************************************** **/
   public int getAge() {
-    return age;
+    return (store == null) ? age : store.getAge(row);
   }
   
   /** *****************************************************************************
     * Returns the gender of the patient 
     **************************************************************************** **/
   public String getGender() {
-    return gender;
+    return (store == null) ? gender : store.getGender(row);
   }
   
   /** *****************************************************************************
     * Returns the diagnosis of the patient 
     **************************************************************************** **/
   public String getDiagnosis() {
-    return diagnosis;
+    return (store == null) ? diagnosis : store.getDiagnosis(row);
+  }
+  
+  /** *****************************************************************************
+    * Returns the symptoms presented by the patient. For a view over a store this is
+    * a copy, use the setters to change the symptoms.
+    **************************************************************************** **/
+  public LinkedList<String> getSymptoms() {
+    return (store == null) ? SymptomVocabulary.getDefault().getStrings(symptomIds) : store.getSymptoms(row);
+  }
+  
+  /** *****************************************************************************
+    * Returns the ids of the symptoms presented by the patient in the SymptomVocabulary.
+    * The array must not be changed.
+    **************************************************************************** **/
+  int[] getSymptomIds() {
+    return (store == null) ? symptomIds : SymptomVocabulary.getDefault().getIds(store.getSymptoms(row));
   }
   
   /** *****************************************************************************
-    * Returns the symptoms presented by the patient 
+    * Returns boolean determining if the patient has been added to a hospital
     **************************************************************************** **/
-  public LinkedList getSymptoms() {
-    return symptomsLL;
+  boolean isAttached() {
+    return hospital != null || store != null;
+  }
+  
+  /** *****************************************************************************
+    * Returns a copy of the patient that holds its own information and does not
+    * belong to any hospital
+    **************************************************************************** **/
+  Patient copy() {
+    return new Patient(getName(), getPatientNumber(), getAge(), getGender(), getDiagnosis(), getSymptoms());
   }
   
   //other methods
@@ -162,13 +378,21 @@ public class Patient {
     **************************************************************************** **/
   public void addSymptoms(String symptomsToAdd) {
     
-    //splits the string of symptoms by commas
-    String[] symptomsAddArray = symptomsToAdd.split(",");
+    //the symptoms are read and replaced under one lock so that no change is lost
+    synchronized (updateLock()) {
+      //splits the string of symptoms by commas, comparing ids rather than strings
+      int[] symptomsAdd = SymptomVocabulary.getDefault().getIds(symptomsToAdd);
+      int[] oldSymptoms = getSymptomIds();
+      int[] symptoms = Arrays.copyOf(oldSymptoms, oldSymptoms.length + symptomsAdd.length);
+      int count = oldSymptoms.length;
     
-    for (int i = 0; i < symptomsAddArray.length; i++) {
-      if(!(symptomsLL.contains(symptomsAddArray[i])))
-        symptomsLL.add(symptomsAddArray[i]);
+      for (int i = 0; i < symptomsAdd.length; i++) {
+        if (indexOf(symptoms, count, symptomsAdd[i]) < 0)
+          symptoms[count++] = symptomsAdd[i];
+      }
+      setSymptomIds(Arrays.copyOf(symptoms, count));
     }
+    syncJournal();
   }
   /** *****************************************************************************
     * Method to remove syptoms from a patient's file.
@@ -176,12 +400,24 @@ public class Patient {
     **************************************************************************** **/
   public void removeSymptoms(String symptomsToRemove) {
     
-    String[] symptomsRemoveArray = symptomsToRemove.split(",");
+    //the symptoms are read and replaced under one lock so that no change is lost
+    synchronized (updateLock()) {
+      //a symptom that was never seen has no id and is not presented by anyone
+      String[] symptomsRemoveArray = symptomsToRemove.split(",");
+      int[] symptoms = getSymptomIds().clone();
+      int count = symptoms.length;
     
-    for (int i = 0; i < symptomsRemoveArray.length; i++) {
-      if((symptomsLL.contains(symptomsRemoveArray[i])))
-        symptomsLL.remove(symptomsRemoveArray[i]);
+      for (int i = 0; i < symptomsRemoveArray.length; i++) {
+        int id = SymptomVocabulary.getDefault().findId(symptomsRemoveArray[i]);
+        int index = (id < 0) ? -1 : indexOf(symptoms, count, id);
+        if (index >= 0) {
+          System.arraycopy(symptoms, index + 1, symptoms, index, count - index - 1);
+          count--;
+        }
+      }
+      setSymptomIds(Arrays.copyOf(symptoms, count));
     }
+    syncJournal();
   }
   
   /** *****************************************************************************
@@ -191,17 +427,35 @@ public class Patient {
   public void addDiagnosis(String diagnosisToAdd) {
     
     //assuming clinician is not adding the same diagnosis
-    diagnosis += ", " + diagnosisToAdd;
+    synchronized (updateLock()) {
+      setDiagnosis(getDiagnosis() + ", " + diagnosisToAdd);
+    }
+    syncJournal();
     
   }
   
+  /** *****************************************************************************
+    * Returns the position of the first of the first count ids that is the given id,
+    * or -1 if there is none
+    * @params ids
+    * @params count
+    * @params id
+    **************************************************************************** **/
+  private static int indexOf(int[] ids, int count, int id) {
+    for (int i = 0; i < count; i++) {
+      if (ids[i] == id)
+        return i;
+    }
+    return -1;
+  }
+  
   /** *****************************************************************************
     * Returns a string representation of the patient's information
     * @params symptomsToAdd
     **************************************************************************** **/
   public String toString() {
-    String s = "\nName: " + name + "\nPatient number: " + patientNumber + "\nAge: " + age + 
-      "\nGender: " + gender +"\nDiagnosis: " + diagnosis +"\nSymptoms: " + symptomsLL;
+    String s = "\nName: " + getName() + "\nPatient number: " + getPatientNumber() + "\nAge: " + getAge() + 
+      "\nGender: " + getGender() +"\nDiagnosis: " + getDiagnosis() +"\nSymptoms: " + getSymptoms();
     return s;
   }
   
@@ -210,8 +464,8 @@ public class Patient {
     * @params symptomsToAdd
     **************************************************************************** **/
   public String toStringWithHtml() {
-    String s = "<html><p>\nName: " + name + "</p><p>\nPatient number: " + patientNumber + "</p><p>\nAge: " + age + 
-      "</p><p>\nGender: " + gender +"</p><p>\nDiagnosis: " + diagnosis +"</p><p>\nSymptoms: " + symptomsLL+ "</p></html>";
+    String s = "<html><p>\nName: " + getName() + "</p><p>\nPatient number: " + getPatientNumber() + "</p><p>\nAge: " + getAge() + 
+      "</p><p>\nGender: " + getGender() +"</p><p>\nDiagnosis: " + getDiagnosis() +"</p><p>\nSymptoms: " + getSymptoms() + "</p></html>";
     return s;
   }
   
@@ -231,6 +485,8 @@ public class Patient {
     
     System.out.println("getName(): "+ p1.getName());
     System.out.println("getPatientNumber(): "+ p1.getPatientNumber());
+    System.out.println("getPatientNumber() of the next patient (one more): " 
+                         + new Patient("Anna Smith", 30, "female", "schizophrenia", "delusions").getPatientNumber());
     System.out.println("getAge(): "+ p1.getAge());
     System.out.println("getGender(): "+ p1.getGender());
     System.out.println("getDiagnosis(): "+ p1.getDiagnosis());
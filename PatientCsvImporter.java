@@ -0,0 +1,456 @@
+/* FILENAME: PatientCsvImporter.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Reads patients migrated from other systems out of CSV files and adds them
+ * to a hospital, parsing large files on all processors at once.
+ *
+ * */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** *****************************************************************************
+  * A PatientCsvImporter reads CSV files with one patient per line, in the order of
+  * the Patient constructor:
+  *
+  *   name,age,gender,diagnosis,symptom,symptom,...
+  *
+  * Everything after the diagnosis is taken as the symptoms, one per field, and an
+  * empty symptoms field as a patient without symptoms. A field may be put in
+  * double quotes to hold commas, with "" for a quote inside it, but not line breaks,
+  * so a quoted symptom with a comma stays a single symptom.
+  * Blank lines are skipped, and so is a first line starting with "name,age".
+  *
+  * The file is cut into chunks that are mapped into memory one at a time and parsed
+  * by a pool of threads, so only the chunks being parsed are in memory. The parsed
+  * chunks are added to the hospital in the order of the file, one batch per chunk,
+  * so when two lines have the same name the first one is the patient that is kept.
+  * Patient numbers are given out as the batches are added, so they follow the order
+  * of the file and a line that is not added does not use up a number. Malformed lines and lines whose name was already taken are skipped and reported
+  * with their line number.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class PatientCsvImporter {
+
+  //bytes of the file parsed by one task
+  private static final int CHUNK_SIZE = 4 << 20;
+
+  //longest line accepted, a chunk is mapped this far past its end to finish its last line
+  private static final int MAX_LINE_LENGTH = 64 << 10;
+
+  //errors and duplicates kept in full, later ones are only counted
+  private static final int MAX_ERRORS_KEPT = 1000;
+
+  //instance variables
+  private final int threads;
+  private LinkedList<String> errors = new LinkedList<String>();
+  private int errorCount;
+  private LinkedList<String> duplicates = new LinkedList<String>();
+  private int duplicateCount;
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Creates an importer that parses on every processor
+    **************************************************************************** **/
+  public PatientCsvImporter() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Creates an importer that parses with the given number of threads
+    * @params parserThreads
+    **************************************************************************** **/
+  public PatientCsvImporter(int parserThreads) {
+    if (parserThreads < 1)
+      throw new IllegalArgumentException("At least one parser thread is needed: " + parserThreads);
+    threads = parserThreads;
+  }
+
+  /** *****************************************************************************
+    * Adds the patients in the given CSV file to the hospital and returns how many were
+    * added. The malformed lines and the lines whose name was already taken can be
+    * looked at afterwards with getErrors() and getDuplicates().
+    * @params hospital
+    * @params fileName
+    **************************************************************************** **/
+  public int importFile(HospitalRecords hospital, String fileName) throws IOException {
+    errors = new LinkedList<String>();
+    errorCount = 0;
+    duplicates = new LinkedList<String>();
+    duplicateCount = 0;
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try (final FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+      final long size = channel.size();
+      long chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+      //a few chunks per thread are parsed ahead of the one being added
+      LinkedList<Future<ParsedChunk>> parsing = new LinkedList<Future<ParsedChunk>>();
+      long submitted = 0;
+      long linesBefore = 0;
+      int added = 0;
+      for (long next = 0; next < chunks; next++) {
+        while (submitted < chunks && submitted < next + 2 * threads) {
+          final long start = submitted * CHUNK_SIZE;
+          parsing.add(pool.submit(new Callable<ParsedChunk>() {
+            public ParsedChunk call() throws IOException {
+              return parseChunk(channel, start, Math.min(start + CHUNK_SIZE, size), size);
+            }
+          }));
+          submitted++;
+        }
+
+        ParsedChunk chunk = waitFor(parsing.removeFirst(), fileName);
+        for (int i = 0; i < chunk.errorLines.size(); i++)
+          addError(linesBefore + chunk.errorLines.get(i), chunk.errorMessages.get(i));
+        //numbers are only given to the patients whose name is free
+        LinkedList<Patient> batch = new LinkedList<Patient>();
+        ArrayList<Integer> batchLines = new ArrayList<Integer>();
+        HashSet<String> batchNames = new HashSet<String>();
+        for (ParsedPatient p : chunk.patients) {
+          if (hospital.isPatient(p.name) || !batchNames.add(p.name)) {
+            addDuplicate(linesBefore + p.line, p.name);
+          } else {
+            batch.add(new Patient(p.name, PatientNumberAllocator.getDefault().nextNumber(), p.age, p.gender, p.diagnosis,
+                                  p.symptoms));
+            batchLines.add(p.line);
+          }
+        }
+        LinkedList<Patient> rejected = hospital.addPatients(batch);
+        added += batch.size() - rejected.size();
+
+        //a name taken by another thread since it was checked is still rejected, in the order of the batch
+        Iterator<Integer> lines = batchLines.iterator();
+        for (Patient p : batch) {
+          int line = lines.next();
+          if (!rejected.isEmpty() && rejected.getFirst() == p)
+            addDuplicate(linesBefore + line, rejected.removeFirst().getName());
+        }
+        linesBefore += chunk.newlines;
+      }
+      return added;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /** *****************************************************************************
+    * Returns the malformed lines of the last import as "Line n: problem", at most the
+    * first MAX_ERRORS_KEPT of them
+    **************************************************************************** **/
+  public LinkedList<String> getErrors() {
+    return errors;
+  }
+
+  /** *****************************************************************************
+    * Returns the number of malformed lines in the last import
+    **************************************************************************** **/
+  public int getErrorCount() {
+    return errorCount;
+  }
+
+  /** *****************************************************************************
+    * Returns the lines of the last import that were not added because the hospital
+    * already had a patient with their name, as "Line n: name", at most the first
+    * MAX_ERRORS_KEPT of them
+    **************************************************************************** **/
+  public LinkedList<String> getDuplicates() {
+    return duplicates;
+  }
+
+  /** *****************************************************************************
+    * Returns the number of lines in the last import whose name was already taken
+    **************************************************************************** **/
+  public int getDuplicateCount() {
+    return duplicateCount;
+  }
+
+
+  //helper methods
+
+  private void addError(long line, String message) {
+    errorCount++;
+    if (errors.size() < MAX_ERRORS_KEPT)
+      errors.add("Line " + line + ": " + message);
+  }
+
+  private void addDuplicate(long line, String name) {
+    duplicateCount++;
+    if (duplicates.size() < MAX_ERRORS_KEPT)
+      duplicates.add("Line " + line + ": " + name);
+  }
+
+  private static ParsedChunk waitFor(Future<ParsedChunk> future, String fileName) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while importing " + fileName);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IllegalStateException("Could not parse " + fileName, e.getCause());
+    }
+  }
+
+  /** *****************************************************************************
+    * Parses the lines that start between the given positions of the file. The chunk
+    * is mapped together with the byte before it, to tell whether its first line
+    * starts at its first byte, and up to MAX_LINE_LENGTH bytes after it, to finish
+    * its last line.
+    * @params channel
+    * @params start
+    * @params end
+    * @params size
+    **************************************************************************** **/
+  private static ParsedChunk parseChunk(FileChannel channel, long start, long end, long size) throws IOException {
+    long mapStart = Math.max(start - 1, 0);
+    long mapEnd = Math.min(end + MAX_LINE_LENGTH, size);
+    MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+    int chunkStart = (int) (start - mapStart);
+    int chunkEnd = (int) (end - mapStart);
+    int limit = bytes.limit();
+
+    ParsedChunk chunk = new ParsedChunk();
+    chunk.newlines = countNewlines(bytes, chunkStart, chunkEnd);
+
+    //a line cut by the start of the chunk belongs to the chunk before
+    int lineStart = chunkStart;
+    if (start > 0) {
+      lineStart = chunkStart - 1;
+      while (lineStart < limit && bytes.get(lineStart) != '\n')
+        lineStart++;
+      lineStart++;
+    }
+
+    int line = 1 + countNewlines(bytes, chunkStart, Math.min(lineStart, chunkEnd)); //line number within the chunk
+    byte[] lineBytes = new byte[256];
+    while (lineStart < chunkEnd) {
+      int lineEnd = lineStart;
+      while (lineEnd < limit && bytes.get(lineEnd) != '\n')
+        lineEnd++;
+
+      int length = lineEnd - lineStart;
+      if (lineEnd == limit && mapEnd < size) {
+        chunk.error(line, "line is longer than " + MAX_LINE_LENGTH + " bytes");
+      } else {
+        if (length > 0 && bytes.get(lineEnd - 1) == '\r')
+          length--;
+        if (length > lineBytes.length)
+          lineBytes = new byte[Math.max(length, 2 * lineBytes.length)];
+        bytes.get(lineStart, lineBytes, 0, length);
+        parseLine(new String(lineBytes, 0, length, StandardCharsets.UTF_8), line, start == 0 && line == 1, chunk);
+      }
+      lineStart = lineEnd + 1;
+      line++;
+    }
+    return chunk;
+  }
+
+  private static int countNewlines(ByteBuffer bytes, int from, int to) {
+    int count = 0;
+    for (int i = from; i < to; i++) {
+      if (bytes.get(i) == '\n')
+        count++;
+    }
+    return count;
+  }
+
+  /** *****************************************************************************
+    * Parses one line into the information of a patient, or records why it cannot be
+    * parsed
+    * @params text
+    * @params line
+    * @params firstLine
+    * @params chunk
+    **************************************************************************** **/
+  private static void parseLine(String text, int line, boolean firstLine, ParsedChunk chunk) {
+    if (text.trim().isEmpty())
+      return;
+
+    ArrayList<String> fields = splitFields(text);
+    if (fields == null) {
+      chunk.error(line, "a quoted field is not closed");
+      return;
+    }
+    if (firstLine && fields.size() >= 2 && fields.get(0).trim().equalsIgnoreCase("name")
+          && fields.get(1).trim().equalsIgnoreCase("age"))
+      return;
+    if (fields.size() < 5) {
+      chunk.error(line, "expected name, age, gender, diagnosis and symptoms but found " + fields.size() + " fields");
+      return;
+    }
+
+    String name = fields.get(0).trim();
+    if (name.isEmpty()) {
+      chunk.error(line, "the name is empty");
+      return;
+    }
+    int age;
+    try {
+      age = Integer.parseInt(fields.get(1).trim());
+    } catch (NumberFormatException e) {
+      chunk.error(line, "the age is not a whole number: \"" + fields.get(1) + "\"");
+      return;
+    }
+    if (age < 0) {
+      chunk.error(line, "the age is negative: " + age);
+      return;
+    }
+
+    //an empty symptoms field is a patient without symptoms, not one with an empty symptom
+    if (fields.size() == 5 && fields.get(4).trim().isEmpty()) {
+      chunk.add(line, name, age, fields.get(2).trim(), fields.get(3).trim(), new LinkedList<String>());
+      return;
+    }
+    chunk.add(line, name, age, fields.get(2).trim(), fields.get(3).trim(),
+              new LinkedList<String>(fields.subList(4, fields.size())));
+  }
+
+  /** *****************************************************************************
+    * Splits a line at the commas outside double quotes and removes the quotes.
+    * Returns null if a quoted field is not closed.
+    * @params text
+    **************************************************************************** **/
+  private static ArrayList<String> splitFields(String text) {
+    ArrayList<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (quoted) {
+        if (c != '"')
+          field.append(c);
+        else if (i + 1 < text.length() && text.charAt(i + 1) == '"')
+          field.append(text.charAt(++i));
+        else
+          quoted = false;
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    if (quoted)
+      return null;
+    fields.add(field.toString());
+    return fields;
+  }
+
+  /** *****************************************************************************
+    * Holds the patients and errors of one chunk, with line numbers counted from the
+    * start of the chunk, and the number of line breaks in the chunk
+    *************************************************************************** **/
+  private static class ParsedChunk {
+    final LinkedList<ParsedPatient> patients = new LinkedList<ParsedPatient>();
+    final ArrayList<Integer> errorLines = new ArrayList<Integer>();
+    final ArrayList<String> errorMessages = new ArrayList<String>();
+    int newlines;
+
+    void add(int line, String name, int age, String gender, String diagnosis, LinkedList<String> symptoms) {
+      ParsedPatient p = new ParsedPatient();
+      p.line = line;
+      p.name = name;
+      p.age = age;
+      p.gender = gender;
+      p.diagnosis = diagnosis;
+      p.symptoms = symptoms;
+      patients.add(p);
+    }
+
+    void error(int line, String message) {
+      errorLines.add(line);
+      errorMessages.add(message);
+    }
+  }
+
+  /** *****************************************************************************
+    * The information of a patient read from a line, which is given a patient number
+    * only once it is added
+    *************************************************************************** **/
+  private static class ParsedPatient {
+    int line;
+    String name;
+    int age;
+    String gender;
+    String diagnosis;
+    LinkedList<String> symptoms;
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) throws Exception {
+    Path testFile = Files.createTempFile("patients", ".csv");
+    Files.write(testFile, ("name,age,gender,diagnosis,symptoms\n"
+                             + "John Smith,36,male,major depressive disorder,diminished interest,weight loss\n"
+                             + "\"Roy, Carry\",21,female,bipolar disorder,manic episode,\"overtalkativeness, racing thoughts\"\r\n"
+                             + "\n"
+                             + "Mark Jones,twenty,male,schizophrenia,delusions\n"
+                             + "Anna Lee,30,female\n"
+                             + "\"Bob Brown,44,male,schizophrenia,delusions\n"
+                             + "John Smith,50,male,schizophrenia,hallucinations\n"
+                             + "Mary Major,27,female,schizophrenia,delusions\n"
+                             + "Tom Trace,40,male,undiagnosed,").getBytes(StandardCharsets.UTF_8));
+
+    HospitalRecords BMC = new HospitalRecords("Boston Medical Center");
+    PatientCsvImporter importer = new PatientCsvImporter();
+    System.out.println("Patients added (4): " + importer.importFile(BMC, testFile.toString()));
+    System.out.println("Malformed lines (5, 6, 7): " + importer.getErrors());
+    System.out.println("Duplicates (Line 8: John Smith): " + importer.getDuplicates());
+    System.out.println("Quoted name and symptom (Roy, Carry with 2 symptoms): " + BMC.getPatient("Roy, Carry").getSymptoms().size()
+                         + ", " + BMC.getPatient("Roy, Carry").getSymptoms());
+    System.out.println("Empty symptoms field (Tom Trace with none): " + BMC.getPatient("Tom Trace").getSymptoms());
+    System.out.println("Numbers in the order of the file, the duplicate took none (true): "
+                         + (BMC.getPatient("Roy, Carry").getPatientNumber() == BMC.getPatient("John Smith").getPatientNumber() + 1
+                              && BMC.getPatient("Mary Major").getPatientNumber() == BMC.getPatient("Roy, Carry").getPatientNumber() + 1
+                              && BMC.getPatient("Tom Trace").getPatientNumber() == BMC.getPatient("Mary Major").getPatientNumber() + 1));
+
+    //a file of several chunks, with a malformed line every 100000 lines
+    String[] disorders = {"schizophrenia", "bipolar disorder", "major depressive disorder"};
+    Random random = new Random(2);
+    int lines = 1000000;
+    try (BufferedWriter out = Files.newBufferedWriter(testFile, StandardCharsets.UTF_8)) {
+      for (int i = 1; i <= lines; i++) {
+        if (i % 100000 == 0)
+          out.write("Broken " + i + ",?,male,schizophrenia,delusions\n");
+        else
+          out.write("Patient " + i + "," + random.nextInt(90) + "," + ((i % 2 == 0) ? "female" : "male") + ","
+                      + disorders[random.nextInt(3)] + ",delusions,insomnia\n");
+      }
+    }
+    for (int parserThreads = 1; parserThreads <= Math.max(2, Runtime.getRuntime().availableProcessors()); parserThreads *= 2) {
+      HospitalRecords large = new HospitalRecords("Massachusetts General Hospital", new ColumnarPatientStore());
+      PatientCsvImporter parallel = new PatientCsvImporter(parserThreads);
+      long start = System.nanoTime();
+      int added = parallel.importFile(large, testFile.toString());
+      System.out.println(parserThreads + " thread(s): " + added + " patients from " + Files.size(testFile) / (1 << 20)
+                           + " MB in " + (System.nanoTime() - start) / 1000000 + " ms");
+      System.out.println("  errors (10, first at line 100000): " + parallel.getErrorCount() + ", " + parallel.getErrors().getFirst());
+      System.out.println("  last error (line 1000000): " + parallel.getErrors().getLast());
+    }
+
+    //a second import of the same file only finds duplicates, of which the first 1000 are kept
+    HospitalRecords twice = new HospitalRecords("Massachusetts General Hospital", new ColumnarPatientStore());
+    importer.importFile(twice, testFile.toString());
+    importer.importFile(twice, testFile.toString());
+    System.out.println("Duplicates of a second import (999990, 1000 kept, the last Line 1000): " + importer.getDuplicateCount()
+                         + ", " + importer.getDuplicates().size() + ", " + importer.getDuplicates().getLast());
+    Files.delete(testFile);
+  }
+
+}
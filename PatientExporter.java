@@ -0,0 +1,241 @@
+/* FILENAME: PatientExporter.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Writes patients, for example the results of a search, to a file or any
+ * other stream as CSV or JSON.
+ *
+ * */
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/** *****************************************************************************
+  * A PatientExporter writes patients to an OutputStream one at a time through a
+  * buffer of BUFFER_SIZE characters, so exporting a whole hospital takes no more
+  * memory than exporting a single patient. Together with the PatientResults of a
+  * search, which hands out its patients one by one, any query can be exported
+  * without building a list or a String of the results.
+  *
+  * The CSV has the columns read by PatientCsvImporter, so an exported file can be
+  * imported again. The JSON is an array with one object per patient, which also
+  * holds the patient number.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class PatientExporter {
+
+  //characters buffered before they are written to the stream
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  //first line of an exported CSV file
+  public static final String CSV_HEADER = "name,age,gender,diagnosis,symptoms";
+
+  /** *****************************************************************************
+    * Writes the patients as CSV lines, after a header line, and returns the number of
+    * patients written. The stream is flushed but not closed.
+    * @params patients
+    * @params out
+    **************************************************************************** **/
+  public static int writeCsv(Iterable<Patient> patients, OutputStream out) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    writer.write(CSV_HEADER);
+    writer.write('\n');
+
+    int count = 0;
+    for (Patient p : patients) {
+      writeCsvField(writer, p.getName());
+      writer.write(',');
+      writer.write(Integer.toString(p.getAge()));
+      writer.write(',');
+      writeCsvField(writer, p.getGender());
+      writer.write(',');
+      writeCsvField(writer, p.getDiagnosis());
+
+      //every symptom is a field of its own, which the importer reads back as one symptom even
+      //with a comma in it. A patient without symptoms ends with the empty symptoms field, which
+      //imports as no symptoms
+      writer.write(',');
+      boolean firstSymptom = true;
+      for (String symptom : p.getSymptoms()) {
+        if (!firstSymptom)
+          writer.write(',');
+        writeCsvField(writer, symptom);
+        firstSymptom = false;
+      }
+      writer.write('\n');
+      count++;
+    }
+    writer.flush();
+    return count;
+  }
+
+  /** *****************************************************************************
+    * Writes the patients as a JSON array of objects and returns the number of
+    * patients written. The stream is flushed but not closed.
+    * @params patients
+    * @params out
+    **************************************************************************** **/
+  public static int writeJson(Iterable<Patient> patients, OutputStream out) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    writer.write('[');
+
+    int count = 0;
+    for (Patient p : patients) {
+      writer.write((count == 0) ? "\n  {\"name\": " : ",\n  {\"name\": ");
+      writeJsonString(writer, p.getName());
+      writer.write(", \"patientNumber\": ");
+      writer.write(Integer.toString(p.getPatientNumber()));
+      writer.write(", \"age\": ");
+      writer.write(Integer.toString(p.getAge()));
+      writer.write(", \"gender\": ");
+      writeJsonString(writer, p.getGender());
+      writer.write(", \"diagnosis\": ");
+      writeJsonString(writer, p.getDiagnosis());
+      writer.write(", \"symptoms\": [");
+      boolean first = true;
+      for (String symptom : p.getSymptoms()) {
+        if (!first)
+          writer.write(", ");
+        writeJsonString(writer, symptom);
+        first = false;
+      }
+      writer.write("]}");
+      count++;
+    }
+    writer.write((count == 0) ? "]\n" : "\n]\n");
+    writer.flush();
+    return count;
+  }
+
+
+  //helper methods
+
+  /** *****************************************************************************
+    * Writes a CSV field, in double quotes if it holds a comma, quote or line break.
+    * Null is written as an empty field.
+    * @params writer
+    * @params value
+    **************************************************************************** **/
+  private static void writeCsvField(Writer writer, String value) throws IOException {
+    if (value == null)
+      return;
+
+    boolean quote = false;
+    for (int i = 0; i < value.length() && !quote; i++) {
+      char c = value.charAt(i);
+      quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
+    }
+    if (!quote) {
+      writer.write(value);
+      return;
+    }
+
+    writer.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"')
+        writer.write('"');
+      writer.write(c);
+    }
+    writer.write('"');
+  }
+
+  /** *****************************************************************************
+    * Writes a JSON string with quotes, backslashes and control characters escaped,
+    * or null
+    * @params writer
+    * @params value
+    **************************************************************************** **/
+  private static void writeJsonString(Writer writer, String value) throws IOException {
+    if (value == null) {
+      writer.write("null");
+      return;
+    }
+
+    writer.write('"');
+    int plainStart = 0; //start of the characters not yet written that need no escape
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\' || c < 0x20) {
+        writer.write(value, plainStart, i - plainStart);
+        if (c == '"')
+          writer.write("\\\"");
+        else if (c == '\\')
+          writer.write("\\\\");
+        else if (c == '\n')
+          writer.write("\\n");
+        else if (c == '\t')
+          writer.write("\\t");
+        else if (c == '\r')
+          writer.write("\\r");
+        else
+          writer.write(String.format("\\u%04x", (int) c));
+        plainStart = i + 1;
+      }
+    }
+    writer.write(value, plainStart, value.length() - plainStart);
+    writer.write('"');
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) throws Exception {
+    HospitalRecords BMC = new HospitalRecords("Boston Medical Center");
+    BMC.addPatient(new Patient("John Smith", 36, "male", "major depressive disorder", "diminished interest,weight loss"));
+    BMC.addPatient(new Patient("Roy, \"Carry\"", 21, "female", "bipolar disorder", "manic episode,overtalkativeness"));
+    BMC.addPatient(new Patient("Mark Jones", 23, "male", "schizophrenia", "delusions"));
+    BMC.addPatient(new Patient("Anna Lee", 30, "female", "undiagnosed", "delusions"));
+    BMC.getPatient("Anna Lee").setSymptoms(new LinkedList<String>());
+    BMC.getPatient("Mark Jones").setSymptoms(new LinkedList<String>(Arrays.asList("delusions", "voices, at night")));
+
+    ByteArrayOutputStream csv = new ByteArrayOutputStream();
+    System.out.println("Patients written as CSV (4): " + writeCsv(BMC.findPatients(new PatientQuery()), csv));
+    System.out.print(csv.toString("UTF-8"));
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    System.out.println("Males written as JSON (2): " + writeJson(BMC.findPatients(new PatientQuery().withGender("male")), json));
+    System.out.print(json.toString("UTF-8"));
+
+    //the CSV can be imported again
+    File file = File.createTempFile("patients", ".csv");
+    try (OutputStream out = new FileOutputStream(file)) {
+      writeCsv(BMC.findPatients(new PatientQuery()), out);
+    }
+    HospitalRecords copy = new HospitalRecords("Boston Medical Center");
+    new PatientCsvImporter().importFile(copy, file.getPath());
+    System.out.println("Imported again (4, Roy, \"Carry\" with 2 symptoms, Anna Lee with none): " + copy.getNumPatients() + ", "
+                         + copy.getPatient("Roy, \"Carry\"").getSymptoms() + ", " + copy.getPatient("Anna Lee").getSymptoms());
+    System.out.println("Symptom with a comma kept whole (2): " + copy.getPatient("Mark Jones").getSymptoms().size());
+
+    //a million patients go to disk without holding the export in memory
+    String[] disorders = {"schizophrenia", "bipolar disorder", "major depressive disorder"};
+    LinkedList<Patient> patients = new LinkedList<Patient>();
+    Random random = new Random(4);
+    for (int i = 0; i < 1000000; i++)
+      patients.add(new Patient("Patient " + i, random.nextInt(90), (i % 2 == 0) ? "female" : "male", disorders[random.nextInt(3)],
+                               "delusions,insomnia"));
+    HospitalRecords large = new HospitalRecords("Massachusetts General Hospital", new ColumnarPatientStore());
+    large.addPatients(patients);
+    patients = null;
+    for (int run = 0; run < 2; run++) {
+      long start = System.nanoTime();
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+        writeCsv(large.findPatients(new PatientQuery()), out);
+      }
+      long csvTime = System.nanoTime() - start;
+      long csvSize = file.length();
+      start = System.nanoTime();
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+        writeJson(large.findPatients(new PatientQuery()), out);
+      }
+      long jsonTime = System.nanoTime() - start;
+      System.out.println("1000000 patients: CSV " + csvSize / (1 << 20) + " MB in " + csvTime / 1000000 + " ms, JSON "
+                           + file.length() / (1 << 20) + " MB in " + jsonTime / 1000000 + " ms");
+    }
+    file.delete();
+  }
+
+}
@@ -0,0 +1,511 @@
+/* FILENAME: PatientJournal.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Keeps every change made to a hospital in a file on disk, so that the
+ * hospital can be rebuilt when the program is started again.
+ *
+ * */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/** *****************************************************************************
+  * A PatientJournal appends one record per change to a hospital: patients added and
+  * removed, and every change made through the Patient setters. Each record is written
+  * as its length, its content and a checksum, so a record cut short by a crash is
+  * recognized and dropped when the journal is read back.
+  *
+  * Records are first collected in memory and written to disk by sync(). A thread
+  * that calls sync() while another thread is already writing waits for it and then
+  * writes everything that piled up in the meantime with a single force to disk, so
+  * many changes share the cost of one sync when patients come in quickly.
+  *
+  * A record is encoded before the hospital makes its change, so a change that cannot
+  * be recorded is refused while nothing has changed yet. If writing to the file
+  * fails, the file is cut back to the last record forced to disk and the journal
+  * stops: every thread waiting for the failed write and every later change or sync
+  * gets the error, since the changes in memory can no longer be kept on disk.
+  *
+  * A hospital's journal can be split into segments, one file each, so that the
+  * segments already saved in a snapshot can be deleted. Every record sets a value or
+  * finds its patient by number, so the segments written after a snapshot can be
+  * replayed on top of it even if the snapshot already holds some of their changes.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class PatientJournal {
+
+  //record types
+  private static final byte ADD = 1;
+  private static final byte REMOVE = 2; //written by earlier versions, finds the patient by name
+  private static final byte NAME = 3;
+  private static final byte AGE = 4;
+  private static final byte GENDER = 5;
+  private static final byte DIAGNOSIS = 6;
+  private static final byte SYMPTOMS = 7;
+  private static final byte REMOVE_NUMBER = 8;
+
+  //instance variables
+  private final Path file;
+  private final FileChannel channel;
+  private volatile PatientJournal previous; //segment written before this one, until it is closed
+
+  private ByteArrayOutputStream pending = new ByteArrayOutputStream(); //records not yet written
+  private ByteArrayOutputStream writing = new ByteArrayOutputStream(); //records being written by the current writer
+  private long appended; //number of records appended so far
+  private long durable; //number of records forced to disk
+  private long durableSize; //bytes of the file forced to disk, where the next write starts
+  private boolean flushing; //true while a thread is writing to the file
+  private IOException failure; //set once a write failed, after which the journal refuses everything
+
+  private final CRC32 checksum = new CRC32(); //used to check records while replaying
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Takes in the journal file and the channel it was opened with
+    * @params journalFile
+    * @params journalChannel
+    **************************************************************************** **/
+  private PatientJournal(Path journalFile, FileChannel journalChannel) throws IOException {
+    file = journalFile;
+    channel = journalChannel;
+    durableSize = journalChannel.size();
+  }
+
+  /** *****************************************************************************
+    * Opens the journal kept in the given file, creating the file if needed. New
+    * records are added after the records already in the file, so replay() should be
+    * called first.
+    * @params fileName
+    **************************************************************************** **/
+  public static PatientJournal open(String fileName) throws IOException {
+    Path journalFile = Paths.get(fileName);
+    FileChannel journalChannel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                  StandardOpenOption.WRITE);
+    journalChannel.position(journalChannel.size());
+    return new PatientJournal(journalFile, journalChannel);
+  }
+
+  /** *****************************************************************************
+    * Applies the records of the journal to the given hospital, which should not yet
+    * be using this journal. A damaged record at the end of the file, left by a crash
+    * in the middle of a write, is cut off together with anything after it. Changes
+    * to patients that are not in the hospital are skipped, since a snapshot leaves out
+    * the patients removed while it was written. Returns the number of records applied.
+    * @params hospital
+    **************************************************************************** **/
+  public synchronized int replay(HospitalRecords hospital) throws IOException {
+    int applied = 0;
+    long validEnd = 0;
+    channel.position(0);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+    long size = channel.size();
+
+    while (size - validEnd >= 4) {
+      int length = in.readInt();
+      if (length < 1 || length > size - validEnd - 8)
+        break;
+
+      byte[] content = new byte[length];
+      in.readFully(content);
+      int expected = in.readInt();
+      checksum.reset();
+      checksum.update(content, 0, length);
+      if ((int) checksum.getValue() != expected)
+        break;
+
+      apply(hospital, new DataInputStream(new ByteArrayInputStream(content)));
+      applied++;
+      validEnd += length + 8;
+    }
+
+    //drops a damaged end so that new records follow the last good one
+    channel.truncate(validEnd);
+    channel.position(validEnd);
+    durableSize = validEnd;
+    return applied;
+  }
+
+
+  /*RECORDS, encoded by HospitalRecords and Patient before a change is made and
+    appended once it is made, while the write lock of the hospital is held*/
+
+  byte[] addedRecord(Patient patient) {
+    ByteArrayOutputStream bytes = startRecord(ADD, patient.getPatientNumber());
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      writeString(out, patient.getName());
+      out.writeInt(patient.getAge());
+      writeString(out, patient.getGender());
+      writeString(out, patient.getDiagnosis());
+      writeSymptoms(out, patient.getSymptoms());
+    } catch (IOException e) {
+      throw cannotRecord(e);
+    }
+    return endRecord(bytes);
+  }
+
+  byte[] removedRecord(int patientNumber) {
+    return endRecord(startRecord(REMOVE_NUMBER, patientNumber));
+  }
+
+  byte[] nameRecord(int patientNumber, String newName) {
+    return stringRecord(NAME, patientNumber, newName);
+  }
+
+  byte[] ageRecord(int patientNumber, int newAge) {
+    ByteArrayOutputStream bytes = startRecord(AGE, patientNumber);
+    try {
+      new DataOutputStream(bytes).writeInt(newAge);
+    } catch (IOException e) {
+      throw cannotRecord(e);
+    }
+    return endRecord(bytes);
+  }
+
+  byte[] genderRecord(int patientNumber, String newGender) {
+    return stringRecord(GENDER, patientNumber, newGender);
+  }
+
+  byte[] diagnosisRecord(int patientNumber, String newDiagnosis) {
+    return stringRecord(DIAGNOSIS, patientNumber, newDiagnosis);
+  }
+
+  byte[] symptomsRecord(int patientNumber, LinkedList<String> newSymptoms) {
+    ByteArrayOutputStream bytes = startRecord(SYMPTOMS, patientNumber);
+    try {
+      writeSymptoms(new DataOutputStream(bytes), newSymptoms);
+    } catch (IOException e) {
+      throw cannotRecord(e);
+    }
+    return endRecord(bytes);
+  }
+
+  /** *****************************************************************************
+    * Adds an encoded record to the records waiting to be written, once its change
+    * has been made
+    * @params encoded, a record returned by one of the record methods
+    **************************************************************************** **/
+  synchronized void append(byte[] encoded) {
+    pending.write(encoded, 0, encoded.length);
+    appended++;
+  }
+
+
+  /** *****************************************************************************
+    * Returns once every record appended before the call is forced to disk. If
+    * another thread is already writing, waits for it and then writes the records that
+    * came in meanwhile, together with those of the other waiting threads.
+    **************************************************************************** **/
+  public void sync() {
+    ByteArrayOutputStream batch;
+    long batchEnd;
+
+    //records made just before the hospital moved on to this segment come first
+    PatientJournal before = previous;
+    if (before != null)
+      before.sync();
+
+    synchronized (this) {
+      long target = appended;
+      while (durable < target && flushing) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while waiting for the journal", e);
+        }
+      }
+      checkUsable();
+      if (durable >= target)
+        return;
+
+      //this thread writes everything appended so far
+      flushing = true;
+      batch = pending;
+      pending = writing;
+      writing = batch;
+      batchEnd = appended;
+    }
+
+    IOException failed = null;
+    try {
+      ByteBuffer bytes = ByteBuffer.wrap(batch.toByteArray());
+      while (bytes.hasRemaining())
+        channel.write(bytes);
+      channel.force(false);
+    } catch (IOException e) {
+      failed = e;
+    } finally {
+      synchronized (this) {
+        if (failed == null) {
+          durableSize += batch.size();
+          durable = batchEnd;
+          batch.reset();
+        } else {
+          //cuts off whatever part of the batch reached the file, so that the file ends
+          //with the last record forced to disk, and stops the journal
+          try {
+            channel.truncate(durableSize);
+            channel.position(durableSize);
+          } catch (IOException e) {
+            failed.addSuppressed(e);
+          }
+          failure = failed;
+        }
+        flushing = false;
+        notifyAll();
+      }
+    }
+    checkUsable();
+  }
+
+  /** *****************************************************************************
+    * Returns the number of records appended since the journal was opened
+    **************************************************************************** **/
+  public synchronized long getRecordCount() {
+    return appended;
+  }
+
+  /** *****************************************************************************
+    * Sets the segment this one follows, so that a sync of this segment also waits
+    * for the records still pending in the previous one. Cleared once the previous
+    * segment is closed.
+    * @params segment
+    **************************************************************************** **/
+  void setPrevious(PatientJournal segment) {
+    previous = segment;
+  }
+
+  /** *****************************************************************************
+    * Writes the remaining records and closes the file
+    **************************************************************************** **/
+  public void close() throws IOException {
+    try {
+      sync();
+    } finally {
+      channel.close();
+    }
+  }
+
+
+  //helper methods
+
+  /** *****************************************************************************
+    * Throws the error of the write that failed, if one did
+    **************************************************************************** **/
+  private synchronized void checkUsable() {
+    if (failure != null)
+      throw new UncheckedIOException("The journal " + file + " could not be written, changes are no longer kept",
+                                     failure);
+  }
+
+  /** *****************************************************************************
+    * Starts a record of the given type for the given patient
+    * @params type
+    * @params patientNumber
+    **************************************************************************** **/
+  private ByteArrayOutputStream startRecord(byte type, int patientNumber) {
+    checkUsable(); //a change that could not be kept is refused before it is made
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(type);
+    bytes.write(patientNumber >>> 24);
+    bytes.write(patientNumber >>> 16);
+    bytes.write(patientNumber >>> 8);
+    bytes.write(patientNumber);
+    return bytes;
+  }
+
+  /** *****************************************************************************
+    * Returns the record as it is written: its length, its content and a checksum
+    * @params content
+    **************************************************************************** **/
+  private static byte[] endRecord(ByteArrayOutputStream content) {
+    CRC32 crc = new CRC32();
+    byte[] bytes = content.toByteArray();
+    crc.update(bytes, 0, bytes.length);
+    ByteBuffer encoded = ByteBuffer.allocate(bytes.length + 8);
+    encoded.putInt(bytes.length).put(bytes).putInt((int) crc.getValue());
+    return encoded.array();
+  }
+
+  /** *****************************************************************************
+    * Returns the error for a value that cannot be written to the journal, such as a
+    * string longer than 65535 bytes
+    * @params e
+    **************************************************************************** **/
+  private static IllegalArgumentException cannotRecord(IOException e) {
+    return new IllegalArgumentException("The change cannot be recorded in the journal: " + e.getMessage(), e);
+  }
+
+  private byte[] stringRecord(byte type, int patientNumber, String newValue) {
+    ByteArrayOutputStream bytes = startRecord(type, patientNumber);
+    try {
+      writeString(new DataOutputStream(bytes), newValue);
+    } catch (IOException e) {
+      throw cannotRecord(e);
+    }
+    return endRecord(bytes);
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null)
+      out.writeUTF(s);
+  }
+
+  private static void writeSymptoms(DataOutputStream out, LinkedList<String> symptoms) throws IOException {
+    out.writeInt(symptoms.size());
+    for (String symptom : symptoms)
+      out.writeUTF(symptom);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static LinkedList<String> readSymptoms(DataInputStream in) throws IOException {
+    LinkedList<String> symptoms = new LinkedList<String>();
+    for (int i = in.readInt(); i > 0; i--)
+      symptoms.add(in.readUTF());
+    return symptoms;
+  }
+
+  /** *****************************************************************************
+    * Applies a single record to the hospital
+    * @params hospital
+    * @params in
+    **************************************************************************** **/
+  private static void apply(HospitalRecords hospital, DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    if (type == ADD) {
+      int number = in.readInt();
+      String name = readString(in);
+      int age = in.readInt();
+      String gender = readString(in);
+      String diagnosis = readString(in);
+      hospital.addPatient(new Patient(name, number, age, gender, diagnosis, readSymptoms(in)));
+      PatientNumberAllocator.getDefault().skipPast(number);
+      return;
+    }
+    if (type == REMOVE) {
+      hospital.removePatient(readString(in));
+      return;
+    }
+
+    if (type == REMOVE_NUMBER) {
+      hospital.removePatientNumber(in.readInt());
+      return;
+    }
+
+    //every other record changes one patient, found by number
+    Patient patient = hospital.getPatientByNumber(in.readInt());
+    if (patient == null)
+      return;
+    if (type == NAME)
+      patient.setName(readString(in));
+    else if (type == AGE)
+      patient.setAge(in.readInt());
+    else if (type == GENDER)
+      patient.setGender(readString(in));
+    else if (type == DIAGNOSIS)
+      patient.setDiagnosis(readString(in));
+    else if (type == SYMPTOMS)
+      patient.setSymptoms(readSymptoms(in));
+    else
+      throw new IOException("Unknown journal record type " + type);
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) throws Exception {
+    Path testFile = Files.createTempFile("hospitalJournal", ".dat");
+
+    HospitalRecords BMC = new HospitalRecords("Boston Medical Center");
+    PatientJournal journal = PatientJournal.open(testFile.toString());
+    BMC.setJournal(journal);
+    BMC.addPatient(new Patient("John Smith", 36, "male", "major depressive disorder", "diminished interest,weight loss"));
+    BMC.addPatient(new Patient("Carry Roy", 21, "female", "bipolar disorder", "manic episode,overtalkativeness"));
+    BMC.addPatient(new Patient("Mark Jones", 23, "male", "schizophrenia", "delusions,hallucinations"));
+    BMC.getPatient("John Smith").setAge(37);
+    BMC.getPatient("Carry Roy").addSymptoms("reduced need for sleep");
+    BMC.getPatient("Mark Jones").setName("Marcus Jones");
+    BMC.removePatient("Carry Roy");
+    journal.close();
+
+    //a crash in the middle of a write leaves part of a record at the end
+    Files.write(testFile, new byte[] {0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+
+    HospitalRecords restored = new HospitalRecords("Boston Medical Center");
+    PatientJournal reopened = PatientJournal.open(testFile.toString());
+    System.out.println("Records replayed (7): " + reopened.replay(restored));
+    System.out.println("Restored hospital (John Smith aged 37, Marcus Jones):" + restored);
+    System.out.println("Same patients as before the restart (true): " + restored.toString().equals(BMC.toString()));
+
+    //several threads adding patients share the syncs to disk
+    restored.setJournal(reopened);
+    final HospitalRecords shared = restored;
+    Thread[] threads = new Thread[4];
+    long start = System.nanoTime();
+    for (int t = 0; t < threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 250; i++)
+            shared.addPatient(new Patient("Patient " + thread + "-" + i, 30, "female", "schizophrenia", "delusions"));
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    System.out.println("1000 synced additions from 4 threads took " + (System.nanoTime() - start) / 1000000 + " ms");
+    reopened.close();
+
+    HospitalRecords again = new HospitalRecords("Boston Medical Center");
+    PatientJournal last = PatientJournal.open(testFile.toString());
+    System.out.println("Records replayed after the additions (1007): " + last.replay(again));
+    System.out.println("Patients (1002): " + again.getNumPatients());
+    again.setJournal(last);
+
+    //a change that cannot be recorded is refused before it is made
+    char[] longName = new char[70000];
+    Arrays.fill(longName, 'a');
+    try {
+      again.getPatient("John Smith").setName(new String(longName));
+      System.out.println("A name too long for the journal was accepted");
+    } catch (IllegalArgumentException e) {
+      System.out.println("Name too long for the journal refused, still John Smith: " + again.isPatient("John Smith"));
+    }
+
+    //a failed write stops the journal instead of reporting the changes as kept
+    last.channel.close();
+    try {
+      again.addPatient(new Patient("Lost Patient", 30, "female", "schizophrenia", "delusions"));
+      System.out.println("A write to a closed journal was reported as kept");
+    } catch (UncheckedIOException e) {
+      System.out.println("Failed write reported: " + e.getMessage());
+    }
+    try {
+      again.addPatient(new Patient("Later Patient", 30, "female", "schizophrenia", "delusions"));
+      System.out.println("A change after a failed write was accepted");
+    } catch (UncheckedIOException e) {
+      System.out.println("Later change refused, Later Patient not added (false): " + again.isPatient("Later Patient"));
+    }
+
+    HospitalRecords afterFailure = new HospitalRecords("Boston Medical Center");
+    PatientJournal reread = PatientJournal.open(testFile.toString());
+    System.out.println("Records on disk after the failure (1007): " + reread.replay(afterFailure));
+    reread.close();
+    Files.delete(testFile);
+  }
+
+}
@@ -0,0 +1,81 @@
+/* FILENAME: PatientListModel.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Feeds the results of a search to a JList one page at a time, so that the
+ * GUI only formats the patient files that are scrolled into view.
+ *
+ * */
+
+import javax.swing.*;
+import java.util.*;
+
+/** *****************************************************************************
+  * A PatientListModel class is the list model behind the patient lists of the GUI. A
+  * JList with a fixed cell height and width only asks its model for the rows it
+  * shows, so the model keeps the results of the search and formats a single page of
+  * patient files at a time instead of the whole hospital.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class PatientListModel extends AbstractListModel<String> {
+
+  //number of patient files formatted together
+  private static final int PAGE_SIZE = 20;
+
+  //instance variables
+  private HospitalRecords HR;
+  private PatientQuery query;
+  private PatientResults results;
+  private int pageStart = -1; //-1 when no page has been formatted yet
+  private String[] page = {};
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Takes in a hospital and a query and runs the query
+    * @params hospital
+    * @params patientQuery
+    **************************************************************************** **/
+  public PatientListModel(HospitalRecords hospital, PatientQuery patientQuery) {
+    HR = hospital;
+    query = patientQuery;
+    results = HR.findPatients(query);
+  }
+
+  /** *****************************************************************************
+    * Returns the number of patients that matched the query
+    **************************************************************************** **/
+  public int getSize() {
+    return results.size();
+  }
+
+  /** *****************************************************************************
+    * Returns the patient file at the given position with HTML tags, formatting the
+    * page it is on if that page is not the current one
+    * @params index
+    **************************************************************************** **/
+  public String getElementAt(int index) {
+    if (pageStart < 0 || index < pageStart || index >= pageStart + PAGE_SIZE) {
+      pageStart = index - index % PAGE_SIZE;
+      page = HR.toStringArrayWithHtml(results.getPage(pageStart, PAGE_SIZE));
+    }
+    //the page is short when patients have been removed since the query was run
+    return (index - pageStart < page.length) ? page[index - pageStart] : "";
+  }
+
+  /** *****************************************************************************
+    * Runs the query again, used after patients are added to or removed from the hospital
+    **************************************************************************** **/
+  public void refresh() {
+    int oldSize = getSize();
+    results = HR.findPatients(query);
+    pageStart = -1;
+
+    if (oldSize > 0)
+      fireIntervalRemoved(this, 0, oldSize - 1);
+    if (getSize() > 0)
+      fireIntervalAdded(this, 0, getSize() - 1);
+  }
+
+}
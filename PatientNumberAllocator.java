@@ -0,0 +1,200 @@
+/* FILENAME: PatientNumberAllocator.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Hands out the patient numbers of new patients. Every number is given out
+ * once, also across restarts of the program when the allocator is kept in a file.
+ *
+ * */
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.*;
+
+/** *****************************************************************************
+  * A PatientNumberAllocator gives out increasing patient numbers, starting from
+  * FIRST_NUMBER, and can be used by several threads at once. An allocator opened on a
+  * file reserves numbers a block at a time and writes the end of the reserved block
+  * to the file before any of its numbers are given out. After a restart it continues
+  * after the last reserved block, so a number is never given out twice; at most the
+  * unused part of a block is skipped.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class PatientNumberAllocator {
+
+  //number of the first patient, as in the earlier random numbers (arbitrary)
+  public static final int FIRST_NUMBER = 1000;
+
+  //numbers reserved each time the file is written
+  private static final int BLOCK_SIZE = 1000;
+
+  //allocator used by new Patient objects
+  private static volatile PatientNumberAllocator defaultAllocator = new PatientNumberAllocator();
+
+  //instance variables
+  private final AtomicInteger next;
+  private volatile int reservedUpTo; //numbers below this one may be given out
+  private final Path file; //null when the numbers are only kept in memory
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Creates an allocator that is only kept in memory and starts over with every run
+    **************************************************************************** **/
+  public PatientNumberAllocator() {
+    next = new AtomicInteger(FIRST_NUMBER);
+    reservedUpTo = Integer.MAX_VALUE;
+    file = null;
+  }
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Creates an allocator that continues after the numbers reserved in the given file
+    * @params numberFile
+    * @params firstFree
+    **************************************************************************** **/
+  private PatientNumberAllocator(Path numberFile, int firstFree) {
+    next = new AtomicInteger(firstFree);
+    reservedUpTo = firstFree;
+    file = numberFile;
+  }
+
+  /** *****************************************************************************
+    * Returns an allocator kept in the given file, which is created if it does not exist
+    * @params fileName
+    **************************************************************************** **/
+  public static PatientNumberAllocator open(String fileName) throws IOException {
+    Path numberFile = Paths.get(fileName);
+    int firstFree = FIRST_NUMBER;
+    if (Files.exists(numberFile)) {
+      String content = new String(Files.readAllBytes(numberFile), StandardCharsets.UTF_8).trim();
+      try {
+        firstFree = Integer.parseInt(content);
+      } catch (NumberFormatException e) {
+        throw new IOException("Not a patient number file: " + fileName, e);
+      }
+    }
+    return new PatientNumberAllocator(numberFile, firstFree);
+  }
+
+  /** *****************************************************************************
+    * Returns the allocator that new patients take their number from
+    **************************************************************************** **/
+  public static PatientNumberAllocator getDefault() {
+    return defaultAllocator;
+  }
+
+  /** *****************************************************************************
+    * Sets the allocator that new patients take their number from, used by the program
+    * to keep the numbers in a file
+    * @params allocator
+    **************************************************************************** **/
+  public static void setDefault(PatientNumberAllocator allocator) {
+    defaultAllocator = allocator;
+  }
+
+  /** *****************************************************************************
+    * Returns a patient number that has not been given out before
+    **************************************************************************** **/
+  public int nextNumber() {
+    int number = next.getAndIncrement();
+    if (number == Integer.MAX_VALUE)
+      throw new IllegalStateException("No patient numbers left");
+
+    //only the thread that runs past the reserved block waits for the file
+    if (number >= reservedUpTo)
+      reserve(number);
+    return number;
+  }
+
+  /** *****************************************************************************
+    * Makes sure numbers up to the given one will not be given out again, used when
+    * patients that already have a number are read back
+    * @params number
+    **************************************************************************** **/
+  public void skipPast(int number) {
+    int current = next.get();
+    while (current <= number && !next.compareAndSet(current, number + 1))
+      current = next.get();
+  }
+
+  /** *****************************************************************************
+    * Reserves a new block of numbers starting at the given number, writing the end
+    * of the block to the file before it can be used
+    * @params number
+    **************************************************************************** **/
+  private synchronized void reserve(int number) {
+    if (number < reservedUpTo)
+      return;
+
+    int limit = (int) Math.min((long) number + BLOCK_SIZE, Integer.MAX_VALUE);
+    try {
+      writeLimit(limit);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not reserve patient numbers in " + file, e);
+    }
+    reservedUpTo = limit;
+  }
+
+  /** *****************************************************************************
+    * Replaces the content of the file with the given number. The number is written
+    * to a temporary file that is forced to disk and then moved over the old file, so
+    * the file always holds either the old or the new number.
+    * @params limit
+    **************************************************************************** **/
+  private void writeLimit(int limit) throws IOException {
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.write(StandardCharsets.UTF_8.encode(limit + "\n"));
+      channel.force(true);
+    }
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) throws Exception {
+    Path testFile = Files.createTempFile("patientNumbers", ".txt");
+    Files.delete(testFile);
+
+    PatientNumberAllocator allocator = PatientNumberAllocator.open(testFile.toString());
+    System.out.println("First numbers (1000, 1001): " + allocator.nextNumber() + ", " + allocator.nextNumber());
+    System.out.println("Reserved in the file (2000): " + new String(Files.readAllBytes(testFile)).trim());
+
+    PatientNumberAllocator restarted = PatientNumberAllocator.open(testFile.toString());
+    System.out.println("First number after a restart (2000): " + restarted.nextNumber());
+
+    //several threads taking numbers at once never get the same one
+    final PatientNumberAllocator shared = restarted;
+    final java.util.Set<Integer> seen = java.util.concurrent.ConcurrentHashMap.newKeySet();
+    final AtomicInteger duplicates = new AtomicInteger();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 25000; i++) {
+            if (!seen.add(shared.nextNumber()))
+              duplicates.incrementAndGet();
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    System.out.println("Duplicates among 100000 numbers from 4 threads (0): " + duplicates.get());
+
+    restarted.skipPast(500000);
+    System.out.println("Number after skipPast(500000) (500001): " + restarted.nextNumber());
+
+    Files.delete(testFile);
+  }
+
+}
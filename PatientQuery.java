@@ -0,0 +1,176 @@
+/* FILENAME: PatientQuery.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Describes a search over the patients of a hospital that combines several
+ * conditions, such as a disorder, an age range and a gender.
+ *
+ * */
+
+import java.util.*;
+
+/** *****************************************************************************
+  * A PatientQuery holds the conditions of a combined search. A patient matches the
+  * query when it meets every condition that has been set; conditions that are not
+  * set match every patient. The query is run with HospitalRecords.getPatients().
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class PatientQuery {
+
+  //instance variables, null when the condition is not part of the query
+  private String disorder;
+  private String gender;
+  private Integer lowerAge, upperAge;
+  
+  //symptoms that must all be present, of which at least one must be present, and that must be absent
+  private LinkedList<String> symptoms = new LinkedList<String>();
+  private LinkedList<String> anySymptoms = new LinkedList<String>();
+  private LinkedList<String> excludedSymptoms = new LinkedList<String>();
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Creates a query without any conditions, which matches every patient
+    **************************************************************************** **/
+  public PatientQuery() {
+  }
+
+  /** *****************************************************************************
+    * Only matches patients diagnosed with the given disorder
+    * @params disorderName
+    **************************************************************************** **/
+  public PatientQuery withDisorder(String disorderName) {
+    disorder = disorderName;
+    return this;
+  }
+
+  /** *****************************************************************************
+    * Only matches patients whose age is within the given bounds (inclusive)
+    * @params lowerBound
+    * @params upperBound
+    **************************************************************************** **/
+  public PatientQuery withAgeRange(int lowerBound, int upperBound) {
+    lowerAge = lowerBound;
+    upperAge = upperBound;
+    return this;
+  }
+
+  /** *****************************************************************************
+    * Only matches patients of the given gender
+    * @params genderName
+    **************************************************************************** **/
+  public PatientQuery withGender(String genderName) {
+    gender = genderName;
+    return this;
+  }
+
+  /** *****************************************************************************
+    * Only matches patients presenting the given symptom, can be called several times
+    * to require several symptoms
+    * @params symptom
+    **************************************************************************** **/
+  public PatientQuery withSymptom(String symptom) {
+    symptoms.add(symptom);
+    return this;
+  }
+
+  /** *****************************************************************************
+    * Only matches patients presenting at least one of the given symptoms
+    * @params symptomChoices
+    **************************************************************************** **/
+  public PatientQuery withAnySymptom(String... symptomChoices) {
+    anySymptoms.addAll(Arrays.asList(symptomChoices));
+    return this;
+  }
+
+  /** *****************************************************************************
+    * Only matches patients that do not present the given symptom
+    * @params symptom
+    **************************************************************************** **/
+  public PatientQuery withoutSymptom(String symptom) {
+    excludedSymptoms.add(symptom);
+    return this;
+  }
+
+
+  /*GETTERS*/
+
+  /** *****************************************************************************
+    * Returns the disorder of the query, null if it is not a condition
+    **************************************************************************** **/
+  public String getDisorder() {
+    return disorder;
+  }
+
+  /** *****************************************************************************
+    * Returns the gender of the query, null if it is not a condition
+    **************************************************************************** **/
+  public String getGender() {
+    return gender;
+  }
+
+  /** *****************************************************************************
+    * Returns boolean determining if the query has an age range
+    **************************************************************************** **/
+  public boolean hasAgeRange() {
+    return lowerAge != null;
+  }
+
+  /** *****************************************************************************
+    * Returns the lower bound of the age range
+    **************************************************************************** **/
+  public int getLowerAge() {
+    return lowerAge;
+  }
+
+  /** *****************************************************************************
+    * Returns the upper bound of the age range
+    **************************************************************************** **/
+  public int getUpperAge() {
+    return upperAge;
+  }
+
+  /** *****************************************************************************
+    * Returns the symptoms that must all be present
+    **************************************************************************** **/
+  public LinkedList<String> getSymptoms() {
+    return symptoms;
+  }
+
+  /** *****************************************************************************
+    * Returns the symptoms of which at least one must be present, empty if this is
+    * not a condition
+    **************************************************************************** **/
+  public LinkedList<String> getAnySymptoms() {
+    return anySymptoms;
+  }
+
+  /** *****************************************************************************
+    * Returns the symptoms that must be absent
+    **************************************************************************** **/
+  public LinkedList<String> getExcludedSymptoms() {
+    return excludedSymptoms;
+  }
+
+  /** *****************************************************************************
+    * Returns a string representation of the query
+    **************************************************************************** **/
+  public String toString() {
+    String s = "Patients";
+    if (disorder != null)
+      s += " with disorder " + disorder;
+    if (hasAgeRange())
+      s += " of age (" + lowerAge + "," + upperAge + ")";
+    if (gender != null)
+      s += " of gender " + gender;
+    if (!symptoms.isEmpty())
+      s += " presenting " + symptoms;
+    if (!anySymptoms.isEmpty())
+      s += " presenting any of " + anySymptoms;
+    if (!excludedSymptoms.isEmpty())
+      s += " not presenting " + excludedSymptoms;
+    return s;
+  }
+
+}
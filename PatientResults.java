@@ -0,0 +1,128 @@
+/* FILENAME: PatientResults.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Holds the outcome of a search over the patients of a hospital without
+ * building the list of matching patients up front.
+ *
+ * */
+
+import java.util.*;
+import java.util.stream.*;
+
+/** *****************************************************************************
+  * A PatientResults class keeps the rows that matched a search and only looks up the
+  * patients in them when they are read, either one page at a time or through an
+  * iterator or a stream. The rows are fixed when the search is run: patients added
+  * later are not part of the results and patients removed later are skipped.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class PatientResults implements Iterable<Patient> {
+
+  //instance variables
+  private HospitalRecords hospital;
+  private RowSet rows;
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Takes in the hospital that was searched and the rows that matched, the rows must
+    * not be changed afterwards
+    * @params hospital
+    * @params rows
+    **************************************************************************** **/
+  PatientResults(HospitalRecords hospital, RowSet rows) {
+    this.hospital = hospital;
+    this.rows = rows;
+  }
+
+  /** *****************************************************************************
+    * Returns the number of patients that matched the search
+    **************************************************************************** **/
+  public int size() {
+    return rows.size();
+  }
+
+  /** *****************************************************************************
+    * Returns boolean determining if no patient matched the search
+    **************************************************************************** **/
+  public boolean isEmpty() {
+    return rows.isEmpty();
+  }
+
+  /** *****************************************************************************
+    * Returns an iterator that looks up each matching patient as it is reached
+    **************************************************************************** **/
+  public Iterator<Patient> iterator() {
+    return iterator(0);
+  }
+
+  /** *****************************************************************************
+    * Returns a sequential stream of the matching patients, looked up as the stream
+    * is consumed
+    **************************************************************************** **/
+  public Stream<Patient> stream() {
+    Spliterator<Patient> patients = Spliterators.spliteratorUnknownSize(iterator(),
+                                                                        Spliterator.ORDERED | Spliterator.NONNULL);
+    return StreamSupport.stream(patients, false);
+  }
+
+  /** *****************************************************************************
+    * Returns a linked list with at most limit patients, starting at the given position
+    * of the results. Only the patients on the page are looked up.
+    * @params offset
+    * @params limit
+    **************************************************************************** **/
+  public LinkedList<Patient> getPage(int offset, int limit) {
+    if (offset < 0 || limit < 0)
+      throw new IllegalArgumentException("Invalid page: offset " + offset + ", limit " + limit);
+
+    LinkedList<Patient> page = new LinkedList<Patient>();
+    Iterator<Patient> it = iterator(offset);
+    while (page.size() < limit && it.hasNext())
+      page.add(it.next());
+    return page;
+  }
+
+  /** *****************************************************************************
+    * Returns a linked list of all the matching patients
+    **************************************************************************** **/
+  public LinkedList<Patient> toLinkedList() {
+    LinkedList<Patient> patients = new LinkedList<Patient>();
+    for (Patient p : this)
+      patients.add(p);
+    return patients;
+  }
+
+
+  //helper methods
+
+  /** *****************************************************************************
+    * Returns an iterator over the matching patients that starts after skipping the
+    * given number of rows, rows whose patient has since been removed are passed over
+    * @params offset
+    **************************************************************************** **/
+  private Iterator<Patient> iterator(int offset) {
+    final PrimitiveIterator.OfInt it = rows.iterator(offset);
+
+    return new Iterator<Patient>() {
+      private Patient next;
+
+      public boolean hasNext() {
+        while (next == null && it.hasNext())
+          next = hospital.patientAt(it.nextInt());
+        return next != null;
+      }
+
+      public Patient next() {
+        if (!hasNext())
+          throw new NoSuchElementException();
+        Patient p = next;
+        next = null;
+        return p;
+      }
+    };
+  }
+
+}
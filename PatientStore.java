@@ -0,0 +1,81 @@
+/* FILENAME: PatientStore.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Describes how HospitalRecords keeps the information of its patients. Each
+ * patient is stored in a numbered row.
+ *
+ * */
+
+import java.util.*;
+
+/** *****************************************************************************
+  * A PatientStore holds the information on the patients of a hospital, one row per
+  * patient. Rows are numbered in the order the patients are added and the number of
+  * a removed patient is never given out again.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public interface PatientStore {
+
+  /** *****************************************************************************
+    * Stores the given patient in a new row and returns the row number. The patient
+    * is attached to the hospital so that later changes reach the store.
+    * @params hospital
+    * @params patient
+    **************************************************************************** **/
+  public int addPatient(HospitalRecords hospital, Patient patient);
+
+  /** *****************************************************************************
+    * Releases the row of a patient that has been removed from the hospital
+    * @params row
+    **************************************************************************** **/
+  public void removePatient(int row);
+
+  /** *****************************************************************************
+    * Returns the patient stored in the given row
+    * @params hospital
+    * @params row
+    **************************************************************************** **/
+  public Patient getPatient(HospitalRecords hospital, int row);
+
+  /** *****************************************************************************
+    * Makes room for the given number of rows, used before adding a batch of patients
+    * @params rows
+    **************************************************************************** **/
+  public void ensureCapacity(int rows);
+
+  /** *****************************************************************************
+    * Returns the number of rows that have been handed out so far
+    **************************************************************************** **/
+  public int getRowCount();
+
+
+  /*GETTERS*/
+
+  public String getName(int row);
+
+  public int getPatientNumber(int row);
+
+  public int getAge(int row);
+
+  public String getGender(int row);
+
+  public String getDiagnosis(int row);
+
+  public LinkedList<String> getSymptoms(int row);
+
+
+  /*SETTERS*/
+
+  public void setName(int row, String newName);
+
+  public void setAge(int row, int newAge);
+
+  public void setGender(int row, String newGender);
+
+  public void setDiagnosis(int row, String newDiagnosis);
+
+  public void setSymptoms(int row, LinkedList<String> newSymptoms);
+
+}
@@ -0,0 +1,636 @@
+/* FILENAME: RowSet.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Holds a set of patient row numbers as a compressed bitmap. Used by
+ * HospitalRecords as the list of patients kept under each key of its indexes.
+ *
+ * */
+
+import java.util.*;
+
+/** *****************************************************************************
+  * A RowSet class keeps a set of row numbers the way a roaring bitmap does. Rows are
+  * grouped by their upper 16 bits, and each group of up to 65536 rows is kept in a
+  * container: a sorted char array while the group is sparse and a 65536 bit bitmap
+  * once it holds more than 4096 rows. Sets can be combined with and, or and andNot
+  * one container at a time.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class RowSet {
+
+  //a container switches between an array and a bitmap at this many rows
+  private static final int ARRAY_LIMIT = 4096;
+
+  //instance variables, keys[i] holds the upper 16 bits of the rows in containers[i]
+  private char[] keys;
+  private Container[] containers;
+  private int containerCount;
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Creates an empty set of rows
+    **************************************************************************** **/
+  public RowSet() {
+    keys = new char[4];
+    containers = new Container[4];
+  }
+
+  /** *****************************************************************************
+    * Adds a row to the set
+    * @params row
+    **************************************************************************** **/
+  public void add(int row) {
+    char key = (char) (row >>> 16);
+    int i = findContainer(key);
+    if (i < 0) {
+      i = -(i + 1);
+      insertContainer(i, key, new ArrayContainer());
+    }
+    containers[i] = containers[i].add((char) row);
+  }
+
+  /** *****************************************************************************
+    * Removes a row from the set, no change if the row is not in the set
+    * @params row
+    **************************************************************************** **/
+  public void remove(int row) {
+    int i = findContainer((char) (row >>> 16));
+    if (i >= 0) {
+      containers[i] = containers[i].remove((char) row);
+      if (containers[i].cardinality() == 0)
+        removeContainer(i);
+    }
+  }
+
+  /** *****************************************************************************
+    * Returns boolean determining if the row is in the set
+    * @params row
+    **************************************************************************** **/
+  public boolean contains(int row) {
+    int i = findContainer((char) (row >>> 16));
+    return i >= 0 && containers[i].contains((char) row);
+  }
+
+  /** *****************************************************************************
+    * Returns the number of rows in the set
+    **************************************************************************** **/
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < containerCount; i++)
+      size += containers[i].cardinality();
+    return size;
+  }
+
+  /** *****************************************************************************
+    * Returns boolean determining if the set is empty
+    **************************************************************************** **/
+  public boolean isEmpty() {
+    return containerCount == 0;
+  }
+
+  /** *****************************************************************************
+    * Returns a new set that also holds the given row and leaves this set unchanged.
+    * Only the container the row falls in is copied and the others are shared, so
+    * neither set may be changed in place afterwards.
+    * @params row
+    **************************************************************************** **/
+  public RowSet withAdded(int row) {
+    if (contains(row))
+      return this;
+
+    RowSet result = shareContainers();
+    char key = (char) (row >>> 16);
+    int i = result.findContainer(key);
+    if (i < 0)
+      result.insertContainer(-(i + 1), key, new ArrayContainer().add((char) row));
+    else
+      result.containers[i] = containers[i].copy().add((char) row);
+    return result;
+  }
+
+  /** *****************************************************************************
+    * Returns a new set without the given row and leaves this set unchanged, sharing
+    * containers the same way as withAdded()
+    * @params row
+    **************************************************************************** **/
+  public RowSet withRemoved(int row) {
+    if (!contains(row))
+      return this;
+
+    RowSet result = shareContainers();
+    int i = result.findContainer((char) (row >>> 16));
+    result.containers[i] = containers[i].copy().remove((char) row);
+    if (result.containers[i].cardinality() == 0)
+      result.removeContainer(i);
+    return result;
+  }
+
+  /** *****************************************************************************
+    * Returns a new set with the rows that are in both this set and the other set
+    * @params other
+    **************************************************************************** **/
+  public RowSet and(RowSet other) {
+    RowSet result = new RowSet();
+    int i = 0, j = 0;
+    while (i < containerCount && j < other.containerCount) {
+      if (keys[i] < other.keys[j]) {
+        i++;
+      } else if (keys[i] > other.keys[j]) {
+        j++;
+      } else {
+        Container c = containers[i].and(other.containers[j]);
+        if (c.cardinality() > 0)
+          result.appendContainer(keys[i], c);
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /** *****************************************************************************
+    * Returns a new set with the rows that are in this set, the other set or both
+    * @params other
+    **************************************************************************** **/
+  public RowSet or(RowSet other) {
+    RowSet result = copy();
+    result.orWith(other);
+    return result;
+  }
+
+  /** *****************************************************************************
+    * Returns a new set with the rows of this set that are not in the other set
+    * @params other
+    **************************************************************************** **/
+  public RowSet andNot(RowSet other) {
+    RowSet result = new RowSet();
+    int j = 0;
+    for (int i = 0; i < containerCount; i++) {
+      while (j < other.containerCount && other.keys[j] < keys[i])
+        j++;
+
+      Container c;
+      if (j < other.containerCount && other.keys[j] == keys[i])
+        c = containers[i].andNot(other.containers[j]);
+      else
+        c = containers[i].copy();
+
+      if (c.cardinality() > 0)
+        result.appendContainer(keys[i], c);
+    }
+    return result;
+  }
+
+  /** *****************************************************************************
+    * Returns a new set with the rows of all the given sets
+    * @params sets
+    **************************************************************************** **/
+  public static RowSet unionOf(Collection<RowSet> sets) {
+    RowSet result = new RowSet();
+    for (RowSet set : sets)
+      result.orWith(set);
+    return result;
+  }
+
+  /** *****************************************************************************
+    * Returns a copy of the set
+    **************************************************************************** **/
+  public RowSet copy() {
+    RowSet result = new RowSet();
+    for (int i = 0; i < containerCount; i++)
+      result.appendContainer(keys[i], containers[i].copy());
+    return result;
+  }
+
+  /** *****************************************************************************
+    * Returns an iterator over the rows in increasing order
+    **************************************************************************** **/
+  public PrimitiveIterator.OfInt iterator() {
+    return iterator(0);
+  }
+
+  /** *****************************************************************************
+    * Returns an iterator over the rows in increasing order that starts after skipping
+    * the given number of rows. Whole containers are skipped by their size, so only the
+    * container holding the first returned row is walked.
+    * @params skip
+    **************************************************************************** **/
+  public PrimitiveIterator.OfInt iterator(int skip) {
+    int first = 0;
+    while (first < containerCount && skip >= containers[first].cardinality()) {
+      skip -= containers[first].cardinality();
+      first++;
+    }
+    final int firstContainer = first;
+    final int skipInFirst = skip;
+
+    return new PrimitiveIterator.OfInt() {
+      private int container = firstContainer - 1;
+      private CharIterator current = (firstContainer < containerCount) ? containers[firstContainer].iterator(skipInFirst) : null;
+      {
+        if (current != null)
+          container = firstContainer;
+      }
+
+      public boolean hasNext() {
+        while (current == null || !current.hasNext()) {
+          if (container + 1 >= containerCount)
+            return false;
+          container++;
+          current = containers[container].iterator(0);
+        }
+        return true;
+      }
+
+      public int nextInt() {
+        if (!hasNext())
+          throw new NoSuchElementException();
+        return (keys[container] << 16) | current.next();
+      }
+    };
+  }
+
+  /** *****************************************************************************
+    * Returns a string representation of the set
+    **************************************************************************** **/
+  public String toString() {
+    StringBuilder s = new StringBuilder("[");
+    PrimitiveIterator.OfInt it = iterator();
+    while (it.hasNext()) {
+      s.append(it.nextInt());
+      if (it.hasNext())
+        s.append(", ");
+    }
+    return s.append("]").toString();
+  }
+
+
+  //helper methods
+
+  /** *****************************************************************************
+    * Adds the rows of the other set to this set
+    * @params other
+    **************************************************************************** **/
+  private void orWith(RowSet other) {
+    int i = 0;
+    for (int j = 0; j < other.containerCount; j++) {
+      while (i < containerCount && keys[i] < other.keys[j])
+        i++;
+
+      if (i < containerCount && keys[i] == other.keys[j])
+        containers[i] = containers[i].or(other.containers[j]);
+      else
+        insertContainer(i, other.keys[j], other.containers[j].copy());
+      i++;
+    }
+  }
+
+  /** *****************************************************************************
+    * Returns a new set holding the same containers as this set, with room for one more
+    **************************************************************************** **/
+  private RowSet shareContainers() {
+    RowSet result = new RowSet();
+    result.keys = Arrays.copyOf(keys, containerCount + 1);
+    result.containers = Arrays.copyOf(containers, containerCount + 1);
+    result.containerCount = containerCount;
+    return result;
+  }
+
+  /** *****************************************************************************
+    * Returns the position of the container with the given key, or -(insertion point + 1)
+    * @params key
+    **************************************************************************** **/
+  private int findContainer(char key) {
+    //rows are mostly added in increasing order, so the last container is checked first
+    if (containerCount > 0 && keys[containerCount - 1] == key)
+      return containerCount - 1;
+    return Arrays.binarySearch(keys, 0, containerCount, key);
+  }
+
+  private void insertContainer(int position, char key, Container container) {
+    if (containerCount == keys.length) {
+      keys = Arrays.copyOf(keys, containerCount * 2);
+      containers = Arrays.copyOf(containers, containerCount * 2);
+    }
+    System.arraycopy(keys, position, keys, position + 1, containerCount - position);
+    System.arraycopy(containers, position, containers, position + 1, containerCount - position);
+    keys[position] = key;
+    containers[position] = container;
+    containerCount++;
+  }
+
+  private void appendContainer(char key, Container container) {
+    insertContainer(containerCount, key, container);
+  }
+
+  private void removeContainer(int position) {
+    System.arraycopy(keys, position + 1, keys, position, containerCount - position - 1);
+    System.arraycopy(containers, position + 1, containers, position, containerCount - position - 1);
+    containers[--containerCount] = null;
+  }
+
+
+  /** *****************************************************************************
+    * Iterates over the lower 16 bits of the rows in a container
+    *************************************************************************** **/
+  private interface CharIterator {
+    boolean hasNext();
+    char next();
+  }
+
+  /** *****************************************************************************
+    * A Container holds the lower 16 bits of the rows that share the same upper 16 bits.
+    * Operations that change a container return the container to keep using, which
+    * is a different kind of container when the number of rows crosses ARRAY_LIMIT.
+    *************************************************************************** **/
+  private static abstract class Container {
+    abstract int cardinality();
+    abstract boolean contains(char low);
+    abstract Container add(char low);
+    abstract Container remove(char low);
+    abstract Container and(Container other);
+    abstract Container or(Container other);
+    abstract Container andNot(Container other);
+    abstract Container copy();
+    abstract CharIterator iterator(int skip);
+  }
+
+  /** *****************************************************************************
+    * An ArrayContainer keeps a sparse group of rows in a sorted char array
+    *************************************************************************** **/
+  private static class ArrayContainer extends Container {
+    char[] values;
+    int count;
+
+    ArrayContainer() {
+      values = new char[4];
+    }
+
+    ArrayContainer(char[] values, int count) {
+      this.values = values;
+      this.count = count;
+    }
+
+    int cardinality() {
+      return count;
+    }
+
+    boolean contains(char low) {
+      return Arrays.binarySearch(values, 0, count, low) >= 0;
+    }
+
+    Container add(char low) {
+      int position = count;
+      if (count > 0 && low <= values[count - 1]) {
+        position = Arrays.binarySearch(values, 0, count, low);
+        if (position >= 0)
+          return this;
+        position = -(position + 1);
+      }
+
+      if (count == ARRAY_LIMIT)
+        return toBitmap().add(low);
+
+      if (count == values.length)
+        values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, count * 2));
+      System.arraycopy(values, position, values, position + 1, count - position);
+      values[position] = low;
+      count++;
+      return this;
+    }
+
+    Container remove(char low) {
+      int position = Arrays.binarySearch(values, 0, count, low);
+      if (position >= 0) {
+        System.arraycopy(values, position + 1, values, position, count - position - 1);
+        count--;
+      }
+      return this;
+    }
+
+    Container and(Container other) {
+      char[] result = new char[Math.max(4, Math.min(count, other.cardinality()))];
+      int size = 0;
+      if (other instanceof ArrayContainer) {
+        //merges the two sorted arrays
+        ArrayContainer a = (ArrayContainer) other;
+        int i = 0, j = 0;
+        while (i < count && j < a.count) {
+          if (values[i] < a.values[j]) i++;
+          else if (values[i] > a.values[j]) j++;
+          else {
+            result[size++] = values[i];
+            i++;
+            j++;
+          }
+        }
+      } else {
+        for (int i = 0; i < count; i++) {
+          if (other.contains(values[i]))
+            result[size++] = values[i];
+        }
+      }
+      return new ArrayContainer(result, size);
+    }
+
+    Container or(Container other) {
+      if (other instanceof BitmapContainer)
+        return other.or(this);
+
+      //merges the two sorted arrays
+      ArrayContainer a = (ArrayContainer) other;
+      char[] result = new char[Math.max(4, count + a.count)];
+      int size = 0, i = 0, j = 0;
+      while (i < count || j < a.count) {
+        if (j >= a.count || (i < count && values[i] < a.values[j])) result[size++] = values[i++];
+        else if (i >= count || values[i] > a.values[j]) result[size++] = a.values[j++];
+        else {
+          result[size++] = values[i];
+          i++;
+          j++;
+        }
+      }
+
+      ArrayContainer merged = new ArrayContainer(result, size);
+      return (size > ARRAY_LIMIT) ? merged.toBitmap() : merged;
+    }
+
+    Container andNot(Container other) {
+      char[] result = new char[Math.max(4, count)];
+      int size = 0;
+      for (int i = 0; i < count; i++) {
+        if (!other.contains(values[i]))
+          result[size++] = values[i];
+      }
+      return new ArrayContainer(result, size);
+    }
+
+    Container copy() {
+      return new ArrayContainer(Arrays.copyOf(values, Math.max(4, count)), count);
+    }
+
+    CharIterator iterator(final int skip) {
+      return new CharIterator() {
+        private int next = skip;
+
+        public boolean hasNext() {
+          return next < count;
+        }
+
+        public char next() {
+          return values[next++];
+        }
+      };
+    }
+
+    BitmapContainer toBitmap() {
+      BitmapContainer bitmap = new BitmapContainer();
+      for (int i = 0; i < count; i++)
+        bitmap.words[values[i] >>> 6] |= 1L << values[i];
+      bitmap.cardinality = count;
+      return bitmap;
+    }
+  }
+
+  /** *****************************************************************************
+    * A BitmapContainer keeps a dense group of rows as 65536 bits
+    *************************************************************************** **/
+  private static class BitmapContainer extends Container {
+    long[] words = new long[1024];
+    int cardinality;
+
+    int cardinality() {
+      return cardinality;
+    }
+
+    boolean contains(char low) {
+      return (words[low >>> 6] & (1L << low)) != 0;
+    }
+
+    Container add(char low) {
+      long before = words[low >>> 6];
+      words[low >>> 6] = before | (1L << low);
+      if (before != words[low >>> 6])
+        cardinality++;
+      return this;
+    }
+
+    Container remove(char low) {
+      long before = words[low >>> 6];
+      words[low >>> 6] = before & ~(1L << low);
+      if (before != words[low >>> 6])
+        cardinality--;
+      return (cardinality <= ARRAY_LIMIT) ? toArray() : this;
+    }
+
+    Container and(Container other) {
+      if (other instanceof ArrayContainer)
+        return other.and(this);
+
+      BitmapContainer result = new BitmapContainer();
+      long[] otherWords = ((BitmapContainer) other).words;
+      for (int i = 0; i < 1024; i++) {
+        result.words[i] = words[i] & otherWords[i];
+        result.cardinality += Long.bitCount(result.words[i]);
+      }
+      return (result.cardinality <= ARRAY_LIMIT) ? result.toArray() : result;
+    }
+
+    Container or(Container other) {
+      BitmapContainer result = (BitmapContainer) copy();
+      if (other instanceof ArrayContainer) {
+        ArrayContainer a = (ArrayContainer) other;
+        for (int i = 0; i < a.count; i++)
+          result.add(a.values[i]);
+      } else {
+        long[] otherWords = ((BitmapContainer) other).words;
+        result.cardinality = 0;
+        for (int i = 0; i < 1024; i++) {
+          result.words[i] |= otherWords[i];
+          result.cardinality += Long.bitCount(result.words[i]);
+        }
+      }
+      return result;
+    }
+
+    Container andNot(Container other) {
+      BitmapContainer result = (BitmapContainer) copy();
+      if (other instanceof ArrayContainer) {
+        ArrayContainer a = (ArrayContainer) other;
+        for (int i = 0; i < a.count; i++) {
+          long before = result.words[a.values[i] >>> 6];
+          result.words[a.values[i] >>> 6] = before & ~(1L << a.values[i]);
+          if (before != result.words[a.values[i] >>> 6])
+            result.cardinality--;
+        }
+      } else {
+        long[] otherWords = ((BitmapContainer) other).words;
+        result.cardinality = 0;
+        for (int i = 0; i < 1024; i++) {
+          result.words[i] &= ~otherWords[i];
+          result.cardinality += Long.bitCount(result.words[i]);
+        }
+      }
+      return (result.cardinality <= ARRAY_LIMIT) ? result.toArray() : result;
+    }
+
+    Container copy() {
+      BitmapContainer result = new BitmapContainer();
+      System.arraycopy(words, 0, result.words, 0, 1024);
+      result.cardinality = cardinality;
+      return result;
+    }
+
+    CharIterator iterator(int skip) {
+      //skips whole words by their number of set bits, then the remaining bits one by one
+      int firstWord = 0;
+      while (skip >= Long.bitCount(words[firstWord])) {
+        skip -= Long.bitCount(words[firstWord]);
+        firstWord++;
+      }
+      long firstBits = words[firstWord];
+      for (int i = 0; i < skip; i++)
+        firstBits &= firstBits - 1;
+
+      final int startWord = firstWord;
+      final long startBits = firstBits;
+      return new CharIterator() {
+        private int word = startWord;
+        private long bits = startBits;
+
+        public boolean hasNext() {
+          while (bits == 0) {
+            if (word == 1023)
+              return false;
+            bits = words[++word];
+          }
+          return true;
+        }
+
+        public char next() {
+          hasNext();
+          char low = (char) ((word << 6) + Long.numberOfTrailingZeros(bits));
+          bits &= bits - 1; //clears the lowest set bit
+          return low;
+        }
+      };
+    }
+
+    ArrayContainer toArray() {
+      char[] values = new char[Math.max(4, cardinality)];
+      int size = 0;
+      for (int i = 0; i < 1024; i++) {
+        long bits = words[i];
+        while (bits != 0) {
+          values[size++] = (char) ((i << 6) + Long.numberOfTrailingZeros(bits));
+          bits &= bits - 1;
+        }
+      }
+      return new ArrayContainer(values, size);
+    }
+  }
+
+}
@@ -66,8 +66,9 @@ public class SchiPanel extends JPanel {
   public SchiPanel() throws FileNotFoundException {
     
     try {
-      //creating new disorder for schizophrenia and setting instance variables for it
-      dis = new Disorder("schizophrenia.txt");
+      //taking the shared disorder and setting instance variables for it, the criteria
+      //and symptoms are copies the panel can use up
+      dis = DisorderRegistry.getDefault().getDisorder(DisorderRegistry.SCHIZOPHRENIA_FILE);
       tree = dis.getTree();
       disCriteriaLL = dis.getCriteria();
       disSymptomsLL = dis.getSymptoms();
@@ -207,6 +208,19 @@ public class SchiPanel extends JPanel {
     
   }
   
+  /** *****************************************************************************
+    * Returns the ticked symptoms of criterion A as a mask, bit i set for checkbox i + 1
+    **************************************************************************** **/
+  private long tickedSymptoms() {
+    JCheckBox[] boxes = {jcbA1, jcbA2, jcbA3, jcbA4, jcbA5};
+    long ticked = 0;
+    for (int i = 0; i < boxes.length; i++) {
+      if (boxes[i].isSelected())
+        ticked |= 1L << i;
+    }
+    return ticked;
+  }
+  
   /** *****************************************************************************
     * A ButtonListener class detects which buttons were clicked. Depending on the 
     * button's purpose, the criteria checker will either advance to the next 
@@ -222,10 +236,16 @@ public class SchiPanel extends JPanel {
       **************************************************************************** **/
     public void actionPerformed (ActionEvent e) {
       
-      //if the next button in the first panel is clicked, advance
+      //if the next button in the first panel is clicked, advance when the ticked symptoms
+      //meet the rules of criterion A, otherwise the patient does not fit the diagnosis
       if (e.getSource() == bNextA) {
-        tree = tree.getRight();
-        cardLayout.next(cardPanel);
+        if (dis.meetsRules('A', tickedSymptoms())) {
+          tree = tree.getRight();
+          cardLayout.next(cardPanel);
+        } else {
+          tree = tree.getLeft();
+          treeChecker();
+        }
         
       }  else {
         //loops through linked list of generic panels to check for
@@ -0,0 +1,115 @@
+/* FILENAME: ScreeningReport.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Holds the outcome of screening every patient of a hospital against the
+ * disorders: the candidate patients of each disorder and how fast they were found.
+ *
+ * */
+
+import java.util.*;
+
+/** *****************************************************************************
+  * A ScreeningReport class keeps, for each disorder screened, the rows of the patients
+  * whose recorded symptoms meet its first criteria. The patients are looked up only
+  * when the candidates are read, as for any other search of the hospital. A
+  * candidate still has to be checked against the other criteria of the disorder.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class ScreeningReport {
+
+  //instance variables
+  private HospitalRecords hospital;
+  private LinkedHashMap<String, RowSet> candidates; //rows of the candidates, by disorder name
+  private int patientCount; //patients screened
+  private long nanos; //time the screening took
+  private int threads; //threads the screening was split over
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Takes in the hospital screened, the rows of the candidates of each disorder and
+    * what the screening took
+    * @params hospital
+    * @params candidates, rows of the candidates by disorder name, not changed afterwards
+    * @params patientCount
+    * @params nanos
+    * @params threads
+    **************************************************************************** **/
+  ScreeningReport(HospitalRecords hospital, LinkedHashMap<String, RowSet> candidates, int patientCount, long nanos,
+                  int threads) {
+    this.hospital = hospital;
+    this.candidates = candidates;
+    this.patientCount = patientCount;
+    this.nanos = nanos;
+    this.threads = threads;
+  }
+
+  /** *****************************************************************************
+    * Returns the names of the disorders screened, in the order they were given
+    **************************************************************************** **/
+  public LinkedList<String> getDisorderNames() {
+    return new LinkedList<String>(candidates.keySet());
+  }
+
+  /** *****************************************************************************
+    * Returns the candidates of the disorder with the given name, empty if the
+    * disorder was not screened
+    * @params disorderName
+    **************************************************************************** **/
+  public PatientResults getCandidates(String disorderName) {
+    RowSet rows = candidates.get(disorderName);
+    return new PatientResults(hospital, (rows == null) ? new RowSet() : rows);
+  }
+
+  /** *****************************************************************************
+    * Returns the number of candidates of the disorder with the given name
+    * @params disorderName
+    **************************************************************************** **/
+  public int getCandidateCount(String disorderName) {
+    RowSet rows = candidates.get(disorderName);
+    return (rows == null) ? 0 : rows.size();
+  }
+
+  /** *****************************************************************************
+    * Returns the number of patients screened
+    **************************************************************************** **/
+  public int getPatientCount() {
+    return patientCount;
+  }
+
+  /** *****************************************************************************
+    * Returns the time the screening took, in milliseconds
+    **************************************************************************** **/
+  public long getMillis() {
+    return nanos / 1000000;
+  }
+
+  /** *****************************************************************************
+    * Returns the number of patients screened per second against all the disorders
+    **************************************************************************** **/
+  public long getPatientsPerSecond() {
+    return (nanos == 0) ? 0 : (long) patientCount * 1000000000L / nanos;
+  }
+
+  /** *****************************************************************************
+    * Returns the number of threads the screening was split over
+    **************************************************************************** **/
+  public int getThreadCount() {
+    return threads;
+  }
+
+  /** *****************************************************************************
+    * Gives a String representation of the report
+    **************************************************************************** **/
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    s.append("Screened ").append(patientCount).append(" patients against ").append(candidates.size())
+      .append(" disorders in ").append(getMillis()).append(" ms on ").append(threads).append(" threads (")
+      .append(getPatientsPerSecond()).append(" patients per second)");
+    for (Map.Entry<String, RowSet> entry : candidates.entrySet())
+      s.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue().size()).append(" candidates");
+    return s.toString();
+  }
+}
@@ -0,0 +1,72 @@
+/* FILENAME: StringDictionary.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Maps each distinct string to a small integer id so that repeated values
+ * such as genders, diagnoses and symptoms can be stored as numbers.
+ *
+ * */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** *****************************************************************************
+  * A StringDictionary class assigns consecutive ids, starting from 0, to the strings
+  * it is given and can turn an id back into its string. A null string always has
+  * the id -1. Strings are added by one thread at a time, but ids can be looked up
+  * and turned back into strings while strings are being added.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class StringDictionary {
+
+  //instance variables
+  private ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+  private volatile String[] strings = new String[8]; //replaced by a larger copy when full
+  private int size;
+
+  /** *****************************************************************************
+    * Returns the id of the given string, adding the string to the dictionary if it
+    * has not been seen before
+    * @params s
+    **************************************************************************** **/
+  public int getId(String s) {
+    if (s == null)
+      return -1;
+
+    Integer id = ids.get(s);
+    if (id == null) {
+      if (size == strings.length)
+        strings = Arrays.copyOf(strings, size * 2);
+      id = size;
+      strings[size++] = s;
+      ids.put(s, id);
+    }
+    return id;
+  }
+
+  /** *****************************************************************************
+    * Returns the id of the given string, or -1 if it is not in the dictionary
+    * @params s
+    **************************************************************************** **/
+  public int findId(String s) {
+    Integer id = (s == null) ? null : ids.get(s);
+    return (id == null) ? -1 : id;
+  }
+
+  /** *****************************************************************************
+    * Returns the string with the given id, null for the id -1
+    * @params id
+    **************************************************************************** **/
+  public String getString(int id) {
+    return (id < 0) ? null : strings[id];
+  }
+
+  /** *****************************************************************************
+    * Returns the number of distinct strings in the dictionary
+    **************************************************************************** **/
+  public int size() {
+    return size;
+  }
+
+}
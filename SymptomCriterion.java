@@ -0,0 +1,281 @@
+/* FILENAME: SymptomCriterion.java
+ * AUTHOR: Yuyu Li
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Reads the symptom count rules of the first criteria of a disorder, so
+ * that the symptoms recorded for a patient can be checked against them without anyone
+ * clicking through the criteria panels.
+ *
+ * */
+
+import java.util.*;
+import java.util.regex.*;
+
+/** *****************************************************************************
+  * A SymptomCriterion class holds Criterion A of a disorder: the symptoms listed in
+  * the disorder file and the CriterionRules over them, such as two or more of the
+  * symptoms, one of which among the first three. The rules are the "@A" lines of the
+  * disorder file; a file without them has its rules read from the prose of the
+  * criteria instead ("Two or more of the following", "At least one of these must be
+  * the first or second symptoms"). A patient meets the criterion when its recorded
+  * symptoms meet every rule.
+  *
+  * Symptoms are compared by their SymptomVocabulary ids. The ids of the vocabulary
+  * are matched to the listed symptoms once, ignoring case and surrounding spaces, so
+  * checking a patient takes an array lookup per recorded symptom to make the mask of
+  * its listed symptoms, and a bit count per rule. The criterion cannot be changed, so
+  * it can be checked by any number of threads at once.
+  *
+  * @author Yuyu Li
+  *************************************************************************** **/
+public class SymptomCriterion {
+
+  //count words that may start the first criteria, by their value
+  private static final String[] NUMBER_WORDS = {"zero", "one", "two", "three", "four", "five", "six", "seven",
+    "eight", "nine", "ten"};
+  //ordinal words that may name the first symptoms of the list, by their value
+  private static final String[] ORDINAL_WORDS = {"", "first", "second", "third", "fourth", "fifth", "sixth",
+    "seventh", "eighth", "ninth", "tenth"};
+  private static final Pattern OR_MORE = Pattern.compile("(?i)\\b(\\w+)\\s+or\\s+more\\b");
+  private static final Pattern MUST_BE = Pattern.compile("(?i)must\\s+be\\s+the\\s+(.*)");
+
+  //instance variables
+  private final String disorderName;
+  private final String[] symptoms; //listed symptoms, in the order of the disorder file
+  private final CriterionRule[] rules; //rules of criteria A, all must be met
+  private final HashMap<String, Integer> positions = new HashMap<String, Integer>(); //listed symptom key to position
+  private volatile int[] positionOfId = new int[0]; //vocabulary id to position, -1 if not listed or past the first 64
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Makes a criterion from a list of symptoms and the rules over it
+    *
+    * @params disorderName, the disorder the criterion belongs to
+    * @params symptoms, the listed symptoms, in order
+    * @params rules, the rules of the criterion, at least one
+    **************************************************************************** **/
+  public SymptomCriterion(String disorderName, List<String> symptoms, CriterionRule[] rules) {
+    if (rules.length == 0)
+      throw new IllegalArgumentException("A symptom criterion needs at least one rule");
+    this.disorderName = disorderName;
+    this.symptoms = symptoms.toArray(new String[symptoms.size()]);
+    this.rules = rules.clone();
+    for (int i = 0; i < this.symptoms.length && i < CriterionRule.MAX_SYMPTOMS; i++)
+      positions.put(keyOf(this.symptoms[i]), i);
+  }
+
+  /** *****************************************************************************
+    * Constructor
+    *
+    * Makes a criterion from a list of symptoms and a count rule over it
+    *
+    * @params disorderName, the disorder the criterion belongs to
+    * @params symptoms, the listed symptoms, in order
+    * @params minimumCount, the number of different listed symptoms that must be present
+    * @params firstCount, one of the first firstCount symptoms must be present
+    **************************************************************************** **/
+  public SymptomCriterion(String disorderName, List<String> symptoms, int minimumCount, int firstCount) {
+    this(disorderName, symptoms, countRules(symptoms.size(), minimumCount, firstCount));
+  }
+
+  /** *****************************************************************************
+    * Returns the rules of criteria A asking for minimumCount of the symptoms, one of
+    * them among the first firstCount
+    * @params symptomCount, minimumCount, firstCount
+    **************************************************************************** **/
+  private static CriterionRule[] countRules(int symptomCount, int minimumCount, int firstCount) {
+    if (firstCount < 1 || firstCount > symptomCount || symptomCount > CriterionRule.MAX_SYMPTOMS)
+      throw new IllegalArgumentException("Invalid counts for " + symptomCount + " symptoms: " + minimumCount
+                                           + " or more, one of the first " + firstCount);
+    CriterionRule count = new CriterionRule(0, minimumCount, maskOfFirst(symptomCount));
+    if (firstCount == symptomCount)
+      return new CriterionRule[] {count};
+    return new CriterionRule[] {count, new CriterionRule(0, 1, maskOfFirst(firstCount))};
+  }
+
+  /** *****************************************************************************
+    * Returns the mask of the first n symptoms
+    * @params n
+    **************************************************************************** **/
+  private static long maskOfFirst(int n) {
+    return (n == CriterionRule.MAX_SYMPTOMS) ? -1L : (1L << n) - 1;
+  }
+
+  /** *****************************************************************************
+    * Returns the symptom criterion made of the rules of the first criteria of the
+    * disorder, or read from its prose if it has no rules. Returns null if the first
+    * criteria has no rules and does not ask for a number of its symptoms either.
+    * @params d, the Disorder to read
+    **************************************************************************** **/
+  public static SymptomCriterion of(Disorder d) {
+    CriterionRule[] rules = d.getRules('A');
+    if (rules.length > 0)
+      return new SymptomCriterion(d.getName(), d.getSymptoms(), rules);
+    
+    LinkedList<LinkedList<String>> criteria = d.getCriteria();
+    LinkedList<String> symptoms = d.getSymptoms();
+    if (criteria.isEmpty() || symptoms.isEmpty() || symptoms.size() > CriterionRule.MAX_SYMPTOMS)
+      return null;
+
+    int minimumCount = -1;
+    int firstCount = symptoms.size(); //any listed symptom, unless a question narrows it
+    for (String question : criteria.getFirst()) {
+      Matcher orMore = OR_MORE.matcher(question);
+      if (minimumCount < 0 && orMore.find())
+        minimumCount = valueOf(orMore.group(1), NUMBER_WORDS);
+      Matcher mustBe = MUST_BE.matcher(question);
+      if (mustBe.find()) {
+        //the last ordinal named is how far down the list the required symptom may be
+        for (String word : mustBe.group(1).split("[^A-Za-z0-9]+")) {
+          int ordinal = valueOf(word, ORDINAL_WORDS);
+          if (ordinal > 0)
+            firstCount = Math.min(ordinal, symptoms.size());
+        }
+      }
+    }
+    if (minimumCount < 1 || minimumCount > symptoms.size())
+      return null;
+    return new SymptomCriterion(d.getName(), symptoms, minimumCount, firstCount);
+  }
+
+  /** *****************************************************************************
+    * Returns the value of a count or ordinal word, or of a number, -1 if it is neither
+    * @params word, words
+    **************************************************************************** **/
+  private static int valueOf(String word, String[] words) {
+    for (int i = 0; i < words.length; i++) {
+      if (words[i].length() > 0 && words[i].equalsIgnoreCase(word))
+        return i;
+    }
+    try {
+      return Integer.parseInt(word);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** *****************************************************************************
+    * Returns the key a symptom is compared by
+    * @params symptom
+    **************************************************************************** **/
+  private static String keyOf(String symptom) {
+    return symptom.trim().toLowerCase();
+  }
+
+  /** *****************************************************************************
+    * Returns boolean determining if the given symptoms meet the criterion
+    * @params symptomIds, ids of the symptoms in the SymptomVocabulary
+    **************************************************************************** **/
+  public boolean isMetBy(int[] symptomIds) {
+    return CriterionRule.allMetBy(rules, getSymptomMask(symptomIds));
+  }
+
+  /** *****************************************************************************
+    * Returns the listed symptoms among the given ones as a mask, bit i set for the
+    * listed symptom i + 1. A symptom given twice sets its bit once.
+    * @params symptomIds, ids of the symptoms in the SymptomVocabulary
+    **************************************************************************** **/
+  public long getSymptomMask(int[] symptomIds) {
+    int[] positionOf = positionOfId;
+    long present = 0;
+    for (int i = 0; i < symptomIds.length; i++) {
+      int id = symptomIds[i];
+      if (id < 0)
+        continue;
+      if (id >= positionOf.length)
+        positionOf = matchIds(id);
+      int position = positionOf[id];
+      if (position >= 0)
+        present |= 1L << position;
+    }
+    return present;
+  }
+
+  /** *****************************************************************************
+    * Matches the symptoms added to the vocabulary since the last match and returns
+    * the table from ids to positions, which then covers the given id
+    * @params id
+    **************************************************************************** **/
+  private synchronized int[] matchIds(int id) {
+    int[] positionOf = positionOfId;
+    if (id < positionOf.length)
+      return positionOf;
+
+    SymptomVocabulary vocabulary = SymptomVocabulary.getDefault();
+    int[] matched = Arrays.copyOf(positionOf, Math.max(id + 1, vocabulary.size()));
+    for (int i = positionOf.length; i < matched.length; i++) {
+      Integer position = positions.get(keyOf(vocabulary.getString(i)));
+      matched[i] = (position == null) ? -1 : position;
+    }
+    positionOfId = matched;
+    return matched;
+  }
+
+  /** *****************************************************************************
+    * Returns the name of the disorder of the criterion
+    **************************************************************************** **/
+  public String getDisorderName() {
+    return disorderName;
+  }
+
+  /** *****************************************************************************
+    * Returns a copy of the listed symptoms, in order
+    **************************************************************************** **/
+  public LinkedList<String> getSymptoms() {
+    return new LinkedList<String>(Arrays.asList(symptoms));
+  }
+
+  /** *****************************************************************************
+    * Returns a copy of the rules of the criterion
+    **************************************************************************** **/
+  public CriterionRule[] getRules() {
+    return rules.clone();
+  }
+
+  /** *****************************************************************************
+    * Gives a String representation of the criterion
+    **************************************************************************** **/
+  public String toString() {
+    return disorderName + " " + Arrays.toString(rules);
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) throws Exception {
+    SymptomCriterion schizophrenia = of(DisorderRegistry.getDefault().getDisorder(DisorderRegistry.SCHIZOPHRENIA_FILE));
+    SymptomCriterion majDepressive =
+      of(DisorderRegistry.getDefault().getDisorder(DisorderRegistry.MAJOR_DEPRESSIVE_DISORDER_FILE));
+    System.out.println(schizophrenia + " (rules of the file, @A 2 of 1-5, @A 1 of 1-3)");
+    System.out.println(majDepressive + " (rules of the file, @A 5 of 1-9, @A 1 of 1-2)");
+
+    //a disorder file without rules has them read from the prose of its first criteria
+    Disorder withoutRules = new Disorder(DisorderRegistry.SCHIZOPHRENIA_FILE);
+    while (withoutRules.getCriteriaCount() > 0)
+      withoutRules.removeCriteria('A');
+    withoutRules.addCriteria("Three or more of the following.;At least one of these must be the first or second symptoms.");
+    System.out.println(of(withoutRules) + " (read from the prose, @A 3 of 1-5, @A 1 of 1-2)");
+
+    SymptomVocabulary vocabulary = SymptomVocabulary.getDefault();
+    System.out.println("delusions, hallucinations (true): " + schizophrenia.isMetBy(vocabulary.getIds("delusions,hallucinations")));
+    System.out.println("Delusions, delusions (false, one symptom twice): "
+                         + schizophrenia.isMetBy(vocabulary.getIds("Delusions, delusions")));
+    System.out.println("negative symptoms, disorganized speech (true): "
+                         + schizophrenia.isMetBy(vocabulary.getIds("negative symptoms, disorganized speech")));
+    System.out.println("negative symptoms, grossly disorganized or catatonic behavior (false, none of the first 3): "
+                         + schizophrenia.isMetBy(vocabulary.getIds("negative symptoms,grossly disorganized or catatonic behavior")));
+    System.out.println("Five depressive symptoms without the first two (false): "
+                         + majDepressive.isMetBy(vocabulary.getIds("significant weight loss/gain,fatigue or loss of energy,"
+                                                                     + "insomnia or hypersomnia nearly everyday,"
+                                                                     + "feelings of worthlessness/excessive guilt,"
+                                                                     + "psychomotor agitation or retardation")));
+    System.out.println("Five depressive symptoms with the second (true): "
+                         + majDepressive.isMetBy(vocabulary.getIds("diminished interest or pleasure,fatigue or loss of energy,"
+                                                                     + "insomnia or hypersomnia nearly everyday,"
+                                                                     + "feelings of worthlessness/excessive guilt,"
+                                                                     + "new symptom never seen,"
+                                                                     + "psychomotor agitation or retardation")));
+  }
+}
@@ -0,0 +1,151 @@
+/* FILENAME: SymptomVocabulary.java
+ * AUTHOR: Meltem Ozcan
+ * LAST MODIFIED: 12/18/2014
+ *
+ * PURPOSE: Gives every distinct symptom one integer id shared by the whole program,
+ * so that patients can keep their symptoms as a few ints instead of a list of strings.
+ *
+ * */
+
+import java.util.*;
+
+/** *****************************************************************************
+  * A SymptomVocabulary turns symptoms into ids and back. There is one default
+  * vocabulary for the program: patients, stores and disorders all use it, so the
+  * same symptom has the same id everywhere and its string is kept only once, however
+  * many patients present it. The disorders add the symptoms of their files as they
+  * are read, which gives the common symptoms the lowest ids.
+  *
+  * The symptom is kept exactly as it was given, without trimming, so that a patient
+  * reads back the symptoms it was made with. Ids can be looked up by any number of
+  * threads at once, new symptoms are added one at a time.
+  *
+  * @author Meltem Ozcan
+  *************************************************************************** **/
+public class SymptomVocabulary {
+
+  //the vocabulary used by patients, stores and disorders
+  private static final SymptomVocabulary DEFAULT = new SymptomVocabulary();
+
+  //instance variables
+  private final StringDictionary dictionary = new StringDictionary();
+
+  /** *****************************************************************************
+    * Returns the vocabulary shared by the whole program
+    **************************************************************************** **/
+  public static SymptomVocabulary getDefault() {
+    return DEFAULT;
+  }
+
+  /** *****************************************************************************
+    * Returns the id of the given symptom, adding the symptom to the vocabulary if it
+    * has not been seen before. A null symptom has the id -1.
+    * @params symptom
+    **************************************************************************** **/
+  public int getId(String symptom) {
+    //known symptoms, nearly all of them, are found without taking the lock
+    int id = dictionary.findId(symptom);
+    if (id >= 0 || symptom == null)
+      return id;
+
+    synchronized (this) {
+      return dictionary.getId(symptom);
+    }
+  }
+
+  /** *****************************************************************************
+    * Returns the id of the given symptom, or -1 if it is not in the vocabulary
+    * @params symptom
+    **************************************************************************** **/
+  public int findId(String symptom) {
+    return dictionary.findId(symptom);
+  }
+
+  /** *****************************************************************************
+    * Returns the symptom with the given id, null for the id -1
+    * @params id
+    **************************************************************************** **/
+  public String getString(int id) {
+    return dictionary.getString(id);
+  }
+
+  /** *****************************************************************************
+    * Returns the number of distinct symptoms in the vocabulary
+    **************************************************************************** **/
+  public int size() {
+    return dictionary.size();
+  }
+
+  /** *****************************************************************************
+    * Returns the ids of a comma separated string of symptoms, in order
+    * @params symptoms
+    **************************************************************************** **/
+  public int[] getIds(String symptoms) {
+    String[] symptomsArray = symptoms.split(",");
+    int[] ids = new int[symptomsArray.length];
+    for (int i = 0; i < symptomsArray.length; i++)
+      ids[i] = getId(symptomsArray[i]);
+    return ids;
+  }
+
+  /** *****************************************************************************
+    * Returns the ids of a list of symptoms, in order
+    * @params symptoms
+    **************************************************************************** **/
+  public int[] getIds(Collection<String> symptoms) {
+    int[] ids = new int[symptoms.size()];
+    int i = 0;
+    for (String symptom : symptoms)
+      ids[i++] = getId(symptom);
+    return ids;
+  }
+
+  /** *****************************************************************************
+    * Returns a new list with the symptoms of the given ids, in order
+    * @params ids
+    **************************************************************************** **/
+  public LinkedList<String> getStrings(int[] ids) {
+    LinkedList<String> symptoms = new LinkedList<String>();
+    for (int i = 0; i < ids.length; i++)
+      symptoms.add(dictionary.getString(ids[i]));
+    return symptoms;
+  }
+
+  /** *****************************************************************************
+    * Provides testing code
+    * @params args
+    **************************************************************************** **/
+  public static void main(String[] args) throws Exception {
+    SymptomVocabulary vocabulary = getDefault();
+    new Disorder("schizophrenia.txt");
+    System.out.println("Symptoms read from schizophrenia.txt: " + vocabulary.size());
+    System.out.println("Id of 'delusions' (known, small): " + vocabulary.findId("delusions"));
+    System.out.println("Id of 'stomach ache' (-1): " + vocabulary.findId("stomach ache"));
+
+    int[] ids = vocabulary.getIds("delusions,stomach ache,delusions");
+    System.out.println("Ids of delusions,stomach ache,delusions (first and last equal): " + Arrays.toString(ids));
+    System.out.println("Back to strings: " + vocabulary.getStrings(ids));
+
+    //the memory of a million patients' symptoms, as strings and as ids
+    String[] symptoms = {"delusions", "hallucinations", "insomnia", "fatigue", "weight loss", "manic episode"};
+    Random random = new Random(1);
+    Runtime runtime = Runtime.getRuntime();
+    for (int run = 0; run < 2; run++) {
+      Object[] held = new Object[1000000];
+      System.gc();
+      long before = runtime.totalMemory() - runtime.freeMemory();
+      for (int i = 0; i < held.length; i++) {
+        String line = symptoms[random.nextInt(6)] + "," + symptoms[random.nextInt(6)] + "," + symptoms[random.nextInt(6)];
+        if (run == 0)
+          held[i] = new LinkedList<String>(Arrays.asList(line.split(",")));
+        else
+          held[i] = vocabulary.getIds(line);
+      }
+      System.gc();
+      long used = runtime.totalMemory() - runtime.freeMemory() - before;
+      System.out.println("1000000 lists of 3 symptoms " + ((run == 0) ? "as strings: " : "as ids: ") + used / (1 << 20)
+                           + " MB (" + held.length + " held)");
+    }
+  }
+
+}